@@ -43,6 +43,7 @@ public interface Constants {
     public static final String DF = "df";
     public static final String GCT = "gct";
     public static final String PCL = "pcl";
+    public static final String BDS = "bds";
     public static final String MAT = "mat";
     public static final String RNK = "rnk";
     public static final String DTGDS = "dtgds";
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg;
+
+import edu.mit.broad.genome.objects.Dataset;
+import edu.mit.broad.genome.objects.Template;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Scores every row of a Dataset against a block of Templates in one go, for the metrics where
+ * that can be done much faster than one Metric.getScore call per row and template.
+ *
+ * @see DatasetMetrics#createBatchedMetric
+ */
+public abstract class BatchedMetric {
+
+    protected final Metric fMetric;
+    protected final Map<String, Boolean> fParams;
+    protected final Dataset fDataset;
+
+    protected BatchedMetric(final Metric metric, final Map<String, Boolean> params, final Dataset ds) {
+        if (metric == null) {
+            throw new IllegalArgumentException("Param metric cannot be null");
+        }
+
+        if (ds == null) {
+            throw new IllegalArgumentException("Param ds cannot be null");
+        }
+
+        this.fMetric = metric;
+        this.fParams = params;
+        this.fDataset = ds;
+    }
+
+    public Metric getMetric() {
+        return fMetric;
+    }
+
+    public Dataset getDataset() {
+        return fDataset;
+    }
+
+    /**
+     * Score all rows of the Dataset for templates[from, to)
+     *
+     * @param exec_opt  if not null, blocks of rows are scored on it and this call waits for them
+     * @param numChunks the number of blocks of rows to make when exec_opt is used
+     * @return one array of row scores (in Dataset row order) per template
+     */
+    public abstract double[][] score(final Template[] templates, final int from, final int to,
+                                     final ExecutorService exec_opt, final int numChunks);
+
+    /**
+     * A range of rows [rowFrom, rowTo)
+     */
+    protected interface RowRangeTask {
+        public void run(final int rowFrom, final int rowTo);
+    }
+
+    /**
+     * Runs task over all the rows of the Dataset, in numChunks blocks on exec_opt or all at once on this thread
+     */
+    protected void forEachRowChunk(final ExecutorService exec_opt, final int numChunks, final RowRangeTask task) {
+        final int numRow = fDataset.getNumRow();
+
+        if (exec_opt == null || numChunks <= 1 || numRow < numChunks) {
+            task.run(0, numRow);
+            return;
+        }
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>(numChunks);
+        final int chunkSize = (numRow + numChunks - 1) / numChunks;
+        for (int start = 0; start < numRow; start += chunkSize) {
+            final int rowFrom = start;
+            final int rowTo = Math.min(start + chunkSize, numRow);
+            futures.add(exec_opt.submit(new Runnable() {
+                public void run() {
+                    task.run(rowFrom, rowTo);
+                }
+            }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while scoring rows", ie);
+            } catch (ExecutionException ee) {
+                final Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+}
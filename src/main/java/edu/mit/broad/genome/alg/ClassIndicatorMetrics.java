@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg;
+
+import edu.mit.broad.genome.objects.Dataset;
+import edu.mit.broad.genome.objects.Template;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Scores every row of a Dataset against a block of (usually permuted) two class Templates at once
+ * for the class-mean and class-median based categorical metrics (Signal2Noise, tTest, the diffs and ratios of
+ * means or medians).
+ * <p/>
+ * Each Template is bound (Metric.bind) once per block into the members of its two classes, which is the sparse
+ * form of a sample x template indicator matrix. Rows are then read from the Dataset one at a time and every
+ * bound kernel of the block is run over the row while it is in cache: the class sums (and, for the variances,
+ * a second pass about the class means) are taken over the row for each Template in turn, not as a dense
+ * Dataset x indicator product. The Dataset's values are not copied, so a MappedDataset stays off the heap.
+ * <p/>
+ * The kernels do the same arithmetic as Vector, so the scores are identical to those of Metric.getScore.
+ * Class medians are found by selection (see Selection) rather than by sorting a copy of each class.
+ *
+ * @see MetricKernels
+ */
+public class ClassIndicatorMetrics extends BatchedMetric {
+
+    private final int fNumRow;
+    private final int fNumCol;
+
+    /**
+     * @return true if scores for metric (with the specified params) can be computed by this class
+     */
+    public static boolean isBatchable(final Metric metric, final Map<String, Boolean> params) {
+        if (metric == null) {
+            return false;
+        }
+
+        // @note exact classes only -- a subclass may well score differently
+        final Class<?> cl = metric.getClass();
+
+        return cl == Metrics.Signal2Noise.class || cl == Metrics.tTest.class
+                || cl == Metrics.ClassDiff.class || cl == Metrics.ClassRatio.class || cl == Metrics.ClassLog2Ratio.class
+                || cl == Metrics.ClassMeansDiff.class || cl == Metrics.ClassMeansRatio.class
+                || cl == Metrics.ClassMeansLog2Ratio.class || cl == Metrics.ClassOfInterestMean.class
+                || cl == Metrics.ClassMediansDiff.class || cl == Metrics.ClassMediansRatio.class
+                || cl == Metrics.ClassMediansLog2Ratio.class || cl == Metrics.ClassOfInterestMedian.class;
+    }
+
+    /**
+     * Class constructor
+     */
+    public ClassIndicatorMetrics(final Metric metric, final Map<String, Boolean> params, final Dataset ds) {
+        super(metric, params, ds);
+
+        if (!isBatchable(metric, params)) {
+            throw new IllegalArgumentException("Metric cannot be batched: " + metric + " params: " + params);
+        }
+
+        this.fNumRow = ds.getNumRow();
+        this.fNumCol = ds.getNumCol();
+    }
+
+    public double[][] score(final Template[] templates, final int from, final int to,
+                            final ExecutorService exec_opt, final int numChunks) {
+
+        final int numTemplates = to - from;
+        final Metric.Kernel[] kernels = new Metric.Kernel[numTemplates];
+        for (int t = 0; t < numTemplates; t++) {
+            kernels[t] = fMetric.bind(templates[from + t], fParams);
+        }
+
+        final double[][] scores = new double[numTemplates][fNumRow];
+
+        forEachRowChunk(exec_opt, numChunks, new RowRangeTask() {
+            public void run(final int rowFrom, final int rowTo) {
+                final float[] row = new float[fNumCol];
+                for (int r = rowFrom; r < rowTo; r++) {
+                    fDataset.getRow(r).copyInto(row, 0);
+                    for (int t = 0; t < numTemplates; t++) {
+                        scores[t][r] = kernels[t].score(row, 0, fNumCol);
+                    }
+                }
+            }
+        });
+
+        return scores;
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg;
+
+import edu.mit.broad.genome.math.Vector;
+import edu.mit.broad.genome.objects.Dataset;
+import edu.mit.broad.genome.objects.Template;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Scores every row of a Dataset against a block of (usually permuted) phenotype Templates at once for the
+ * profile vs template metrics that reduce to a dot product: Pearson, Cosine, Euclidean and RegressionSlope.
+ * <p/>
+ * The rows are standardized once, over the samples of the reference Template and in its item order (centered
+ * and scaled to unit length for Pearson and RegressionSlope, scaled to unit length for Cosine, as is for
+ * Euclidean). Each Template of a block becomes a phenotype column prepared the same way, so that the scores
+ * for the block are a rows x samples by samples x templates matrix product (for Euclidean, the sums of the
+ * squared differences), done in tiles of rows and spread over the workers by blocks of rows.
+ * <p/>
+ * The scores agree with Metric.getScore up to floating point rounding -- the per row metrics use one pass
+ * sums of squares while this uses the centered form. That is fine for the permuted Templates (the nulls),
+ * but the observed Template is to be scored with Metric.getScore, so that the observed ranked list is the
+ * same however the nulls are made. A row with no variance gets NaN for Pearson and RegressionSlope, as does
+ * an all zero row for Cosine. Templates that do not cover the same samples as the reference are scored a row
+ * at a time, with the same arithmetic.
+ */
+public class CorrelationMetrics extends BatchedMetric {
+
+    private static final int PEARSON = 0;
+    private static final int COSINE = 1;
+    private static final int EUCLIDEAN = 2;
+    private static final int REGRESSION_SLOPE = 3;
+
+    // Rows per tile of the product; a tile of standardized rows is reused for every template of the block
+    private static final int ROW_TILE = 64;
+
+    private final int fKind;
+    private final int fNumRow;
+    private final int fNumSamples;
+
+    // The profile positions of the reference template's items, in item order
+    private final int[] fPositions;
+
+    // The prepared rows, row major, fNumSamples per row
+    private final double[] fRows;
+
+    // Per row: the length of the (centered) row
+    private final double[] fRowAux;
+
+    // RegressionSlope only: the sum of the per class stddevs of each row (same for every template)
+    private final double[] fRowStddevSum;
+
+    /**
+     * @return true if scores for metric (with the specified params) can be computed by this class
+     */
+    public static boolean isBatchable(final Metric metric, final Map<String, Boolean> params) {
+        return kindOf(metric) != -1;
+    }
+
+    private static int kindOf(final Metric metric) {
+        if (metric == null) {
+            return -1;
+        }
+
+        // @note exact classes only -- a subclass may well score differently (e.g. PearsonD)
+        final Class<?> cl = metric.getClass();
+        if (cl == Metrics.Pearson.class) {
+            return PEARSON;
+        } else if (cl == Metrics.Cosine.class) {
+            return COSINE;
+        } else if (cl == Metrics.Euclidean.class) {
+            return EUCLIDEAN;
+        } else if (cl == Metrics.RegressionSlope.class) {
+            return REGRESSION_SLOPE;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Class constructor
+     * reference -> the Template whose samples (profile positions) the rows are standardized over; usually
+     * the first of the permuted templates
+     */
+    public CorrelationMetrics(final Metric metric, final Map<String, Boolean> params, final Dataset ds,
+                              final Template reference) {
+        super(metric, params, ds);
+
+        if (reference == null) {
+            throw new IllegalArgumentException("Param reference cannot be null");
+        }
+
+        this.fKind = kindOf(metric);
+        if (fKind == -1) {
+            throw new IllegalArgumentException("Metric cannot be batched: " + metric);
+        }
+
+        this.fNumRow = ds.getNumRow();
+        this.fPositions = MetricKernels.itemProfilePositions(reference);
+        this.fNumSamples = fPositions.length;
+        final long numValues = (long) fNumRow * fNumSamples;
+        if (numValues > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many values to batch: " + fNumRow + " rows x " + fNumSamples + " samples");
+        }
+
+        this.fRows = new double[(int) numValues];
+        this.fRowAux = new double[fNumRow];
+        this.fRowStddevSum = (fKind == REGRESSION_SLOPE) ? new double[fNumRow] : null;
+
+        for (int r = 0; r < fNumRow; r++) {
+            final Vector profile = ds.getRow(r);
+            final Vector x = reference.synchProfile(profile);
+            fRowAux[r] = prepare(x, fRows, r * fNumSamples);
+
+            if (fKind == REGRESSION_SLOPE) {
+                fRowStddevSum[r] = stddevSum(profile, reference);
+            }
+        }
+    }
+
+    // As in XMath.regressionSlope
+    private double stddevSum(final Vector profile, final Template template) {
+        final boolean biased = AlgMap.isBiased(fParams);
+        final boolean fixlow = AlgMap.isFixLowVar(fParams);
+        final Vector[] splits = template.splitByTemplateClass(profile);
+        double stddevSum = 0;
+        for (int i = 0; i < splits.length; i++) {
+            stddevSum += splits[i].stddev(biased, fixlow);
+        }
+
+        return stddevSum;
+    }
+
+    /**
+     * Writes the prepared form of v into into[offset, offset + v.getSize())
+     *
+     * @return the aux value for v (see fRowAux)
+     */
+    private double prepare(final Vector v, final double[] into, final int offset) {
+        final int n = v.getSize();
+
+        double mean = 0;
+        if (fKind == PEARSON || fKind == REGRESSION_SLOPE) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += v.getElement(i);
+            }
+            mean = sum / n;
+        }
+
+        double squaresum = 0;
+        for (int i = 0; i < n; i++) {
+            final double val = v.getElement(i) - mean;
+            into[offset + i] = val;
+            squaresum += val * val;
+        }
+
+        final double length = Math.sqrt(squaresum);
+        if (fKind == EUCLIDEAN) {
+            return length;
+        }
+
+        for (int i = 0; i < n; i++) {
+            into[offset + i] /= length;
+        }
+
+        return length;
+    }
+
+    public double[][] score(final Template[] templates, final int from, final int to,
+                            final ExecutorService exec_opt, final int numChunks) {
+
+        final int numTemplates = to - from;
+        final Template[] ts = new Template[numTemplates];
+        final boolean[] compatible = new boolean[numTemplates];
+        final double[][] phenotypes = new double[numTemplates][];
+        final double[] phenotypeAux = new double[numTemplates];
+        for (int t = 0; t < numTemplates; t++) {
+            ts[t] = templates[from + t];
+            compatible[t] = isCompatible(ts[t]);
+            final Vector y = ts[t].toVector();
+            phenotypes[t] = new double[y.getSize()];
+            phenotypeAux[t] = preparePhenotype(y, phenotypes[t]);
+        }
+
+        final double[][] scores = new double[numTemplates][fNumRow];
+
+        forEachRowChunk(exec_opt, numChunks, new RowRangeTask() {
+            public void run(final int rowFrom, final int rowTo) {
+                scoreRows(rowFrom, rowTo, ts, compatible, phenotypes, phenotypeAux, scores);
+            }
+        });
+
+        return scores;
+    }
+
+    // Same samples, in the same item order, as the reference (and for RegressionSlope one item per class, as
+    // the per class stddevs were worked out from the reference)
+    private boolean isCompatible(final Template template) {
+        if (template.getNumItems() != fNumSamples) {
+            return false;
+        }
+
+        if (fKind == REGRESSION_SLOPE && template.getNumClasses() != fNumSamples) {
+            return false;
+        }
+
+        final int[] positions = MetricKernels.itemProfilePositions(template);
+        for (int i = 0; i < fNumSamples; i++) {
+            if (positions[i] != fPositions[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private double preparePhenotype(final Vector y, final double[] into) {
+        final double aux = prepare(y, into, 0);
+
+        if (fKind == REGRESSION_SLOPE) {
+            // The slope wants the centered phenotype as is and not scaled to unit length
+            for (int i = 0; i < into.length; i++) {
+                into[i] *= aux;
+            }
+        }
+
+        return aux;
+    }
+
+    private void scoreRows(final int rowFrom, final int rowTo, final Template[] ts, final boolean[] compatible,
+                           final double[][] phenotypes, final double[] phenotypeAux, final double[][] scores) {
+
+        for (int tileFrom = rowFrom; tileFrom < rowTo; tileFrom += ROW_TILE) {
+            final int tileTo = Math.min(tileFrom + ROW_TILE, rowTo);
+
+            for (int t = 0; t < ts.length; t++) {
+                final double[] y = phenotypes[t];
+                final double[] tscores = scores[t];
+
+                if (!compatible[t]) {
+                    for (int r = tileFrom; r < tileTo; r++) {
+                        tscores[r] = scoreRow(fDataset.getRow(r), ts[t], y);
+                    }
+                    continue;
+                }
+
+                for (int r = tileFrom; r < tileTo; r++) {
+                    final double combined = combine(fRows, r * fNumSamples, y);
+                    tscores[r] = finish(combined, fRowAux[r], (fKind == REGRESSION_SLOPE) ? fRowStddevSum[r] : 0);
+                }
+            }
+        }
+    }
+
+    // A row against a template with other samples than the reference: prepared for it here, but then scored
+    // just as the prepared rows are
+    private double scoreRow(final Vector profile, final Template template, final double[] y) {
+        final Vector x = template.synchProfile(profile);
+        final double[] row = new double[x.getSize()];
+        final double rowAux = prepare(x, row, 0);
+        return finish(combine(row, 0, y), rowAux, (fKind == REGRESSION_SLOPE) ? stddevSum(profile, template) : 0);
+    }
+
+    // The dot product of the prepared row (at offset) and phenotype, or for Euclidean the sum of their squared
+    // differences (summed as is, rather than from the sums of squares, which cancel for close rows)
+    private double combine(final double[] rows, final int offset, final double[] y) {
+        double sum = 0;
+        if (fKind == EUCLIDEAN) {
+            for (int i = 0; i < y.length; i++) {
+                final double diff = rows[offset + i] - y[i];
+                sum += diff * diff;
+            }
+        } else {
+            for (int i = 0; i < y.length; i++) {
+                sum += rows[offset + i] * y[i];
+            }
+        }
+
+        return sum;
+    }
+
+    private double finish(final double combined, final double rowAux, final double rowStddevSum) {
+        switch (fKind) {
+            case PEARSON:
+                return combined;
+            case COSINE:
+                return 1.0d - combined;
+            case EUCLIDEAN:
+                return Math.sqrt(combined);
+            case REGRESSION_SLOPE:
+                if (rowStddevSum == 0) {
+                    return Float.NaN;
+                }
+                return (combined / rowAux) / rowStddevSum;
+            default:
+                throw new IllegalStateException("Unknown kind: " + fKind);
+        }
+    }
+
+}
@@ -36,16 +36,49 @@ public class DatasetMetrics {
         }
         
         final int rows = ds.getNumRow();
-        final DoubleElement[] sorted = new DoubleElement[rows];
-                
+        final double[] scores = new double[rows];
+
+        // Template and params are resolved once for the whole dataset
+        final Metric.Kernel kernel = metric.bind(template, metricParams);
+        final float[] profile = new float[ds.getNumCol()];
         for (int i = 0; i < rows; i++) {
-            double dist = metric.getScore(ds.getRow(i), template, metricParams);
-            final DoubleElement del = new DoubleElement(i, dist);
-            sorted[i] = del;
+            ds.getRow(i).copyInto(profile, 0);
+            scores[i] = kernel.score(profile, 0, profile.length);
         }
         
-        Arrays.parallelSort(sorted, new DoubleElement.DoubleElementComparator(sort, order.isAscending()));
-        List<DoubleElement> dels = Arrays.asList(sorted);
-        return new ScoredDatasetImpl(new AddressedVector(dels), ds);
+        return scoreDataset(scores, sort, order, ds);
+    }
+
+    /**
+     * @param reference the (first) Template that will be scored; some BatchedMetrics prepare the data for its samples
+     * @return a BatchedMetric for metric or null if metric (with these params) can only be scored row by row
+     */
+    public BatchedMetric createBatchedMetric(final Metric metric, final Map<String, Boolean> metricParams,
+                                             final Dataset ds, final Template reference) {
+        if (ClassIndicatorMetrics.isBatchable(metric, metricParams)) {
+            return new ClassIndicatorMetrics(metric, metricParams, ds);
+        } else if (CorrelationMetrics.isBatchable(metric, metricParams)) {
+            return new CorrelationMetrics(metric, metricParams, ds, reference);
+        }
+
+        return null;
+    }
+
+    /**
+     * Sort/order a Dataset by scores that have already been computed (for instance by a BatchedMetric)
+     * scores -> one per row of ds, in row order
+     */
+    public ScoredDataset scoreDataset(final double[] scores, final SortMode sort, final Order order, final Dataset ds) {
+
+        if (ds == null) {
+            throw new IllegalArgumentException("Param ds cannot be null");
+        }
+
+        if (scores == null || scores.length != ds.getNumRow()) {
+            throw new IllegalArgumentException("Param scores must have one score per row of ds");
+        }
+
+        final int[] rowOrder = ArgSort.argsort(scores, sort, order);
+        return new ScoredDatasetImpl(rowOrder, ArgSort.gather(scores, rowOrder), ds);
     }
 }
\ No newline at end of file
@@ -62,6 +62,41 @@ public class GeneSetGenerators {
         return rndgsets;
     }
 
+    /**
+     * Draws the ranks of the members of a random gene set of numMembers (of a ranked list of numLabels) into
+     * into[0, numMembers), as createRandomGeneSetsFixedSize draws them (the same draws from rnd, so the same
+     * members), but without making a GeneSet of their names. The ranks are in the order drawn, whereas the
+     * members of those GeneSets are in no particular (hash) order.
+     *
+     * @param seen scratch of at least numLabels, all false (and left so)
+     */
+    public static void sampleRandomRanks(final int numMembers, final int numLabels, final Random rnd,
+                                         final int[] into, final boolean[] seen) {
+        if (numMembers > numLabels) {
+            throw new IllegalArgumentException("Cannot pick more numbers (no replacement) numRndNeeded: " + numMembers + " than max possible number maxRndNumExclusive: " + numLabels);
+        }
+
+        // as in XMath.randomlySampleWithoutReplacement, no random picking is needed (or done) for all of them
+        if (numMembers == numLabels) {
+            for (int i = 0; i < numMembers; i++) {
+                into[i] = i;
+            }
+            return;
+        }
+
+        for (int cnt = 0; cnt < numMembers; ) {
+            final int r = rnd.nextInt(numLabels);
+            if (!seen[r]) {
+                seen[r] = true;
+                into[cnt++] = r;
+            }
+        }
+
+        for (int i = 0; i < numMembers; i++) {
+            seen[into[i]] = false;
+        }
+    }
+
     public static GeneSet[] removeGeneSetsSmallerThan(final GeneSet[] gsets, final int cutoff) {
 
         List list = new ArrayList();
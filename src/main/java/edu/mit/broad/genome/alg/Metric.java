@@ -38,6 +38,27 @@ public interface Metric {
 
     public int getMinNumSamplesNeededPerClassForCalculation();
 
+    /**
+     * Resolves the params and the template (class members, item positions etc) once, for
+     * scoring many profiles against the same template.
+     * The Kernel gives exactly the same scores as getScore.
+     * Template may be null for the metrics that do not need one.
+     */
+    public Kernel bind(Template template, Map<String, Boolean> params);
+
+    /**
+     * A Metric bound to a Template and params (see bind).
+     * Kernels hold no per call state and can be used from several threads at once.
+     */
+    public static interface Kernel {
+
+        /**
+         * The profile is data[offset, offset + length), in Dataset column order
+         */
+        public double score(float[] data, int offset, int length);
+
+    }
+
     /**
      * Inner class struc
      */
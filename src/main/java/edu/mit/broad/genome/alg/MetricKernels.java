@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg;
+
+import edu.mit.broad.genome.math.Selection;
+import edu.mit.broad.genome.math.Vector;
+import edu.mit.broad.genome.math.XMath;
+import edu.mit.broad.genome.objects.Template;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The Metric.Kernel implementations behind Metric.bind.
+ * <p/>
+ * Each kernel reproduces the arithmetic of the corresponding Metric.getScore (and of the Vector and XMath
+ * methods it calls) exactly, but works straight off the float data with the Template compiled into
+ * profile positions, so that no Vectors are made and no params looked up per profile.
+ * Whatever the per profile code does not handle (such as a class with no values left) is left to getScore.
+ *
+ * @see Metric#bind
+ */
+public class MetricKernels {
+
+    private static final int S2N = 0;
+    private static final int TTEST = 1;
+    private static final int DIFF = 2;
+    private static final int RATIO = 3;
+    private static final int LOG2_RATIO = 4;
+    private static final int COI = 5;
+
+    private static final int PEARSON = 10;
+    private static final int COSINE = 11;
+    private static final int EUCLIDEAN = 12;
+    private static final int MANHATTEN = 13;
+
+    // Per thread buffer for the values of a class, shared by all the median kernels (a kernel can be in use
+    // on several threads at once, and only needs the buffer for one class at a time)
+    private static final ThreadLocal<float[]> CLASS_VALUES = new ThreadLocal<float[]>();
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private MetricKernels() {
+    }
+
+    /**
+     * @return a Kernel that simply calls metric.getScore for every profile
+     */
+    public static Metric.Kernel perProfile(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return new PerProfile(metric, template, params);
+    }
+
+    // ------------------------------------------------------------------------ //
+    // ---------------------- CLASS MEAN / MEDIAN METRICS --------------------- //
+    // ------------------------------------------------------------------------ //
+
+    static Metric.Kernel s2n(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return classStats(S2N, true, AlgMap.isMedian(params), metric, template, params);
+    }
+
+    static Metric.Kernel tTest(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return classStats(TTEST, true, AlgMap.isMedian(params), metric, template, params);
+    }
+
+    /**
+     * @param nanSafe   true for the metrics that split with VectorSplitter.splitBiphasic_nansafe
+     * @param useMedian compare class medians rather than class means
+     */
+    static Metric.Kernel classDiff(final boolean nanSafe, final boolean useMedian, final Metric metric,
+                                   final Template template, final Map<String, Boolean> params) {
+        return classStats(DIFF, nanSafe, useMedian, metric, template, params);
+    }
+
+    static Metric.Kernel classRatio(final boolean nanSafe, final boolean useMedian, final Metric metric,
+                                    final Template template, final Map<String, Boolean> params) {
+        return classStats(RATIO, nanSafe, useMedian, metric, template, params);
+    }
+
+    static Metric.Kernel classLog2Ratio(final boolean nanSafe, final boolean useMedian, final Metric metric,
+                                        final Template template, final Map<String, Boolean> params) {
+        return classStats(LOG2_RATIO, nanSafe, useMedian, metric, template, params);
+    }
+
+    static Metric.Kernel classOfInterest(final boolean useMedian, final Metric metric, final Template template,
+                                         final Map<String, Boolean> params) {
+        return classStats(COI, true, useMedian, metric, template, params);
+    }
+
+    private static Metric.Kernel classStats(final int kind, final boolean nanSafe, final boolean useMedian,
+                                            final Metric metric, final Template template,
+                                            final Map<String, Boolean> params) {
+        // Not biphasic: leave it to getScore (which reports it)
+        if (template == null || template.getNumClasses() != 2) {
+            return perProfile(metric, template, params);
+        }
+
+        return new ClassStats(kind, nanSafe, useMedian, metric, template, params);
+    }
+
+    // ------------------------------------------------------------------------ //
+    // ------------------------ PROFILE VS TEMPLATE -------------------------- //
+    // ------------------------------------------------------------------------ //
+
+    static Metric.Kernel pearson(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return profileVsTemplate(PEARSON, metric, template, params);
+    }
+
+    static Metric.Kernel cosine(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return profileVsTemplate(COSINE, metric, template, params);
+    }
+
+    static Metric.Kernel euclidean(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return profileVsTemplate(EUCLIDEAN, metric, template, params);
+    }
+
+    static Metric.Kernel manhatten(final Metric metric, final Template template, final Map<String, Boolean> params) {
+        return profileVsTemplate(MANHATTEN, metric, template, params);
+    }
+
+    private static Metric.Kernel profileVsTemplate(final int kind, final Metric metric, final Template template,
+                                                   final Map<String, Boolean> params) {
+        if (template == null) {
+            return perProfile(metric, template, params);
+        }
+
+        final Vector tv;
+        try {
+            tv = template.toVector();
+        } catch (NumberFormatException e) {
+            // Not a numeric template: leave it to getScore (which reports it)
+            return perProfile(metric, template, params);
+        }
+
+        final int[] positions = itemProfilePositions(template);
+        final float[] values = new float[tv.getSize()];
+        tv.copyInto(values, 0);
+
+        switch (kind) {
+            case PEARSON:
+                return new Pearson(positions, values);
+            case COSINE:
+                return new Cosine(positions, values);
+            case EUCLIDEAN:
+                return new Euclidean(positions, values);
+            case MANHATTEN:
+                return new Manhatten(positions, values);
+            default:
+                throw new IllegalStateException("Unknown kind: " + kind);
+        }
+    }
+
+    /**
+     * @return the profile position of each item of template, in item order (i.e. as used by synchProfile)
+     */
+    static int[] itemProfilePositions(final Template template) {
+        final int[] ordered = template.getProfilePositionsOrdered();
+        final int numPositions = (ordered.length == 0) ? 0 : ordered[ordered.length - 1] + 1;
+        final float[] positions = new float[numPositions];
+        for (int p = 0; p < numPositions; p++) {
+            positions[p] = p;
+        }
+
+        final Vector synched = template.synchProfile(new Vector(positions, true));
+        final int[] itemPositions = new int[synched.getSize()];
+        for (int i = 0; i < itemPositions.length; i++) {
+            itemPositions[i] = (int) synched.getElement(i);
+        }
+
+        return itemPositions;
+    }
+
+    private static Vector toVector(final float[] data, final int offset, final int length) {
+        return new Vector(Arrays.copyOfRange(data, offset, offset + length), true);
+    }
+
+    /**
+     * Fallback for the metrics (or the templates) without a specialized kernel
+     */
+    private static class PerProfile implements Metric.Kernel {
+
+        private final Metric fMetric;
+        private final Template fTemplate;
+        private final Map<String, Boolean> fParams;
+
+        PerProfile(final Metric metric, final Template template, final Map<String, Boolean> params) {
+            this.fMetric = metric;
+            this.fTemplate = template;
+            this.fParams = params;
+        }
+
+        public double score(final float[] data, final int offset, final int length) {
+            return fMetric.getScore(toVector(data, offset, length), fTemplate, fParams);
+        }
+    }
+
+    /**
+     * The metrics made from the means or medians (and stddevs) of the two classes of a biphasic template.
+     * x is the class of interest and y the other class, each in class item order as in Template.splitByTemplateClass,
+     * so that the sums come out the same as in Vector. Medians are selected (see Selection) from a per thread buffer.
+     */
+    private static class ClassStats extends PerProfile {
+
+        private final int fKind;
+        private final boolean fNanSafe;
+        private final boolean fUseMedian;
+        private final boolean fBiased;
+        private final boolean fFixLow;
+        private final int[] fX;
+        private final int[] fY;
+
+        ClassStats(final int kind, final boolean nanSafe, final boolean useMedian, final Metric metric,
+                   final Template template, final Map<String, Boolean> params) {
+            super(metric, template, params);
+            this.fKind = kind;
+            this.fNanSafe = nanSafe;
+            this.fUseMedian = useMedian;
+            this.fBiased = AlgMap.isBiased(params);
+            this.fFixLow = AlgMap.isFixLowVar(params);
+
+            final int xIndex = (template.getClassOfInterestIndex() == 0) ? 0 : 1;
+            this.fX = toProfilePositions(template.getClass(xIndex));
+            this.fY = toProfilePositions(template.getClass(1 - xIndex));
+        }
+
+        private static int[] toProfilePositions(final Template.Class cl) {
+            final int[] pos = new int[cl.getSize()];
+            for (int p = 0; p < pos.length; p++) {
+                pos[p] = cl.getItem(p).getProfilePosition();
+            }
+            return pos;
+        }
+
+        public double score(final float[] data, final int offset, final int length) {
+            final int nx = count(data, offset, fX);
+            final int ny = count(data, offset, fY);
+
+            if (nx == 0 || ny == 0) {
+                // No values left in a class: splitBiphasic_nansafe gives up, which Signal2Noise scores as 0
+                // and the other metrics do not handle -- leave them to it
+                return (fNanSafe && fKind == S2N) ? 0 : super.score(data, offset, length);
+            }
+
+            final boolean needsSpread = (fKind == S2N || fKind == TTEST);
+            final double mx = (fUseMedian && !needsSpread) ? Double.NaN : sum(data, offset, fX) / nx;
+            final double my = (fUseMedian && !needsSpread) ? Double.NaN : sum(data, offset, fY) / ny;
+            final double cx = fUseMedian ? median(data, offset, fX, nx) : mx;
+            final double cy = (fKind == COI) ? Double.NaN : (fUseMedian ? median(data, offset, fY, ny) : my);
+
+            switch (fKind) {
+                case S2N:
+                    return (cx - cy) / (stddev(data, offset, fX, nx, mx) + stddev(data, offset, fY, ny, my));
+                case TTEST:
+                    return tTest(data, offset, cx - cy, nx, mx, ny, my);
+                case DIFF:
+                    return cx - cy;
+                case RATIO:
+                    return cx / cy;
+                case LOG2_RATIO:
+                    return XMath.log2(cx / cy);
+                case COI:
+                    return cx;
+                default:
+                    throw new IllegalStateException("Unknown kind: " + fKind);
+            }
+        }
+
+        private double tTest(final float[] data, final int offset, final double numr, final int nx, final double mx,
+                             final int ny, final double my) {
+            final double varx = var(data, offset, fX, nx, mx);
+            final double vary = var(data, offset, fY, ny, my);
+
+            // @note same (inverted looking) use of the sizes as XMath.tTest
+            final double denr;
+            if (fBiased) {
+                denr = Math.sqrt((varx / (nx - 1)) + (vary / (ny - 1)));
+            } else {
+                denr = Math.sqrt((varx / nx) + (vary / ny));
+            }
+
+            return numr / denr;
+        }
+
+        private int count(final float[] data, final int offset, final int[] members) {
+            if (!fNanSafe) {
+                return members.length;
+            }
+
+            int n = 0;
+            for (int i = 0; i < members.length; i++) {
+                if (!Float.isNaN(data[offset + members[i]])) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        // As Vector.median of the (NaN-less if nan safe) class values
+        private double median(final float[] data, final int offset, final int[] members, final int n) {
+            float[] buf = CLASS_VALUES.get();
+            if (buf == null || buf.length < n) {
+                buf = new float[Math.max(n, 64)];
+                CLASS_VALUES.set(buf);
+            }
+
+            int pos = 0;
+            for (int i = 0; i < members.length; i++) {
+                final float val = data[offset + members[i]];
+                if (!fNanSafe || !Float.isNaN(val)) {
+                    buf[pos++] = val;
+                }
+            }
+
+            return Selection.median(buf, 0, n);
+        }
+
+        private double sum(final float[] data, final int offset, final int[] members) {
+            double sum = 0;
+            for (int i = 0; i < members.length; i++) {
+                final float val = data[offset + members[i]];
+                if (!fNanSafe || !Float.isNaN(val)) {
+                    sum += val;
+                }
+            }
+            return sum;
+        }
+
+        // As Vector.var(biased, fixlow)
+        private double var(final float[] data, final int offset, final int[] members, final int n, final double mean) {
+            if (fFixLow) {
+                final double stddev = stddev(data, offset, members, n, mean);
+                return stddev * stddev;
+            }
+
+            return varNotFixed(data, offset, members, n, mean);
+        }
+
+        // As Vector.stddev(biased, fixlow)
+        private double stddev(final float[] data, final int offset, final int[] members, final int n, final double mean) {
+            double stddev = Math.sqrt(varNotFixed(data, offset, members, n, mean));
+
+            if (fFixLow) {
+                // @note with medians Vector only works out the mean when there is a variance to compute,
+                // so a single value class is fixed against a NaN mean
+                final boolean meanKnown = !fUseMedian || (fBiased ? n : n - 1) > 0;
+                final double fixMean = meanKnown ? mean : Double.NaN;
+                double minallowed = XMath.isNearlyZero(fixMean) ? 0.20 : (0.20 * Math.abs(fixMean));
+                stddev = Math.max(stddev, minallowed);
+            }
+
+            return stddev;
+        }
+
+        private double varNotFixed(final float[] data, final int offset, final int[] members, final int n, final double mean) {
+            final int len = fBiased ? n : n - 1;
+
+            // Variance of 1 point is 0
+            if (len <= 0) {
+                return 0.0;
+            }
+
+            double var = 0.0;
+            for (int i = 0; i < members.length; i++) {
+                final float val = data[offset + members[i]];
+                if (!fNanSafe || !Float.isNaN(val)) {
+                    double tmp = val - mean;
+                    var += tmp * tmp;
+                }
+            }
+
+            return var / len;
+        }
+    }
+
+    /**
+     * Base for the kernels that compare the synched profile with template.toVector()
+     */
+    private static abstract class ProfileVsTemplate implements Metric.Kernel {
+
+        protected final int[] fPositions;
+        protected final float[] fTemplateValues;
+
+        ProfileVsTemplate(final int[] positions, final float[] templateValues) {
+            this.fPositions = positions;
+            this.fTemplateValues = templateValues;
+        }
+    }
+
+    // As XMath.pearson
+    private static class Pearson extends ProfileVsTemplate {
+
+        private final double fSumY;
+        private final double fSquareSumY;
+
+        Pearson(final int[] positions, final float[] templateValues) {
+            super(positions, templateValues);
+            final Vector y = new Vector(fTemplateValues, true);
+            this.fSumY = y.sum();
+            this.fSquareSumY = y.squaresum();
+        }
+
+        public double score(final float[] data, final int offset, final int length) {
+            final double N = (double) fPositions.length;
+
+            if (N == 0 || N == 1) {
+                return Float.NaN;
+            }
+
+            double sumprod = 0;
+            double sum = 0;
+            double squaresum = 0;
+            for (int i = 0; i < fPositions.length; i++) {
+                final float x = data[offset + fPositions[i]];
+                sumprod += x * fTemplateValues[i];
+                sum += x;
+                squaresum += x * x;
+            }
+
+            double numr = sumprod - ((sum * fSumY) / N);
+            double denr = ((squaresum - ((sum * sum) / N)))
+                    * ((fSquareSumY - ((fSumY * fSumY) / N)));
+
+            denr = Math.sqrt(denr);
+
+            return numr / denr;
+        }
+    }
+
+    // As XMath.cosine
+    private static class Cosine extends ProfileVsTemplate {
+
+        Cosine(final int[] positions, final float[] templateValues) {
+            super(positions, templateValues);
+        }
+
+        public double score(final float[] data, final int offset, final int length) {
+            double mag_x = 0.0;
+            double mag_y = 0.0;
+            double sump = 0.0;
+
+            for (int i = 0; i < fPositions.length; i++) {
+                final float x = data[offset + fPositions[i]];
+                final float y = fTemplateValues[i];
+                mag_x += x * x;
+                mag_y += y * y;
+                sump += x * y;
+            }
+
+            return 1.0d - (sump / Math.sqrt(mag_x * mag_y));
+        }
+    }
+
+    // As XMath.euclidean
+    private static class Euclidean extends ProfileVsTemplate {
+
+        Euclidean(final int[] positions, final float[] templateValues) {
+            super(positions, templateValues);
+        }
+
+        public double score(final float[] data, final int offset, final int length) {
+            float sum = 0;
+
+            for (int i = 0; i < fPositions.length; i++) {
+                float diff = data[offset + fPositions[i]] - fTemplateValues[i];
+                sum += diff * diff;
+            }
+
+            return Math.sqrt(sum);
+        }
+    }
+
+    // As XMath.manhatten
+    private static class Manhatten extends ProfileVsTemplate {
+
+        Manhatten(final int[] positions, final float[] templateValues) {
+            super(positions, templateValues);
+        }
+
+        public double score(final float[] data, final int offset, final int length) {
+            double sum = 0.0;
+
+            for (int i = 0; i < fPositions.length; i++) {
+                sum += Math.abs(data[offset + fPositions[i]] - fTemplateValues[i]);
+            }
+
+            return sum;
+        }
+    }
+
+}
@@ -131,6 +131,14 @@ public class Metrics {
         public int getMinNumSamplesNeededPerClassForCalculation() {
             return 1;
         }
+
+        /**
+         * Default is to score every profile with getScore. The common metrics override this with kernels
+         * that work straight off the data (see MetricKernels).
+         */
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.perProfile(this, template, params);
+        }
     }
 
     /**
@@ -162,6 +170,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.euclidean(this, template, params);
+        }
+
     }
 
 
@@ -194,6 +206,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.manhatten(this, template, params);
+        }
+
     }
 
     /**
@@ -227,6 +243,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.pearson(this, template, params);
+        }
+
     }
 
     /**
@@ -256,6 +276,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.cosine(this, template, params);
+        }
+
     }    // End Cosine
 
 
@@ -342,24 +366,6 @@ public class Metrics {
             super(CATEGORICAL);
         }
 
-        // TODO: build specialized compute lambda 
-        // This shows some promise for performance improvement but needs to be
-        // better verified and then pushed across all applicable metrics.
-        // We're not ready to do that.
-//        boolean usebiased;
-//        boolean fixlow;
-//        boolean usemedian;
-//        
-//        BiFunction<Vector, Vector, Double> s2n = null;
-//        
-//        public void config(Map params) {
-//            usebiased = AlgMap.isBiased(params);
-//            fixlow = AlgMap.isFixLowVar(params);
-//            usemedian = AlgMap.isMedian(params);
-            
-//            s2n = XMath.getS2n(usebiased, usemedian, fixlow);
-//        }
-        
         /**
          * params:
          * USE_BIASED -> true or false (Boolean objects). Default is FALSE.
@@ -367,7 +373,7 @@ public class Metrics {
          * FIX_LOW    -> true or false (Boolean objects). Default is TRUE
          * Template is required.
          */
-        // TODO: Ignore these params.  Instead, config the metric ahead of the computation
+        // @note see bind for a kernel with the params resolved ahead of the computation
         public double getScore(Vector profile, Template template, Map<String, Boolean> params) {
 
             boolean usebiased = AlgMap.isBiased(params);
@@ -383,11 +389,9 @@ public class Metrics {
                 int coiIndex = template.getClassOfInterestIndex();
 
                 if (coiIndex == 0) {
-                    return //s2n.apply(vs[0], vs[1]);
-                            XMath.s2n(vs[0], vs[1], usebiased, usemedian, fixlow);
+                    return XMath.s2n(vs[0], vs[1], usebiased, usemedian, fixlow);
                 } else {
-                    return //s2n.apply(vs[1], vs[0]);
-                            XMath.s2n(vs[1], vs[0], usebiased, usemedian, fixlow);
+                    return XMath.s2n(vs[1], vs[0], usebiased, usemedian, fixlow);
                 }
             }
 
@@ -397,6 +401,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.s2n(this, template, params);
+        }
+
         public int getMinNumSamplesNeededPerClassForCalculation() {
             return MIN_NUM_FOR_VAR;
         }
@@ -515,6 +523,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.tTest(this, template, params);
+        }
+
         public int getMinNumSamplesNeededPerClassForCalculation() {
             return MIN_NUM_FOR_VAR;
         }
@@ -631,6 +643,11 @@ public class Metrics {
             return NAME;
         }
 
+        // @note not the Pearson kernel -- this one scores the two classes against each other
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.perProfile(this, template, params);
+        }
+
     }
 
     /**
@@ -670,6 +687,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classDiff(true, false, this, template, params);
+        }
+
     }
 
     public static class ClassMeansRatio extends AbstractMetric {
@@ -706,6 +727,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classRatio(false, false, this, template, params);
+        }
+
     }
 
     public static class ClassRatio extends AbstractMetric {
@@ -744,6 +769,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classRatio(false, !AlgMap.isMean(params), this, template, params);
+        }
+
     } // End class ClassRatio
 
 
@@ -783,6 +812,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classLog2Ratio(false, !AlgMap.isMean(params), this, template, params);
+        }
+
     } // End class ClassLog2Ratio
 
     public static class ClassDiff extends AbstractMetric {
@@ -821,6 +854,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classDiff(false, !AlgMap.isMean(params), this, template, params);
+        }
+
     }
 
 
@@ -858,6 +895,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classRatio(false, true, this, template, params);
+        }
+
     }
 
     public static class ClassMeansLog2Ratio extends AbstractMetric {
@@ -894,6 +935,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classLog2Ratio(true, false, this, template, params);
+        }
+
 
     }
 
@@ -932,6 +977,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classLog2Ratio(true, true, this, template, params);
+        }
+
     }
 
     /**
@@ -968,6 +1017,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classOfInterest(false, this, template, params);
+        }
+
     }
 
     /**
@@ -1004,6 +1057,10 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classOfInterest(true, this, template, params);
+        }
+
     }
 
     /**
@@ -1043,5 +1100,9 @@ public class Metrics {
             return NAME;
         }
 
+        public Kernel bind(final Template template, final Map<String, Boolean> params) {
+            return MetricKernels.classDiff(true, true, this, template, params);
+        }
+
     }
 }
\ No newline at end of file
@@ -29,23 +29,14 @@ public class RankedListGenerators {
 
     public static RankedList sortByVectorAndGetRankedList(final Vector iv, final SortMode sort,
                                                           final Order order, final List<String> names) {
-        final DoubleElement[] dels = RankedListGenerators._sort(new AddressedVector(iv), sort, order);
-		final Vector v = new Vector(dels.length);
-		final List<String> clonedLabels = new ArrayList<String>();
-		for (int i = 0; i < dels.length; i++) {
-		    v.setElement(i, (float) dels[i].fValue);
-		    clonedLabels.add(names.get(dels[i].fIndex));
-		}
-		
-		return new DefaultRankedList(null, clonedLabels, v);
-    }
-
-    private static DoubleElement[] _sort(final AddressedVector av, final SortMode sort, final Order order) {
-        DoubleElement[] dels = new DoubleElement[av.getSize()];
-        for (int i = 0; i < av.getSize(); i++) {
-            dels[i] = new DoubleElement(av.getAddress(i), av.getScore(i));
+        final float[] scores = new float[iv.getSize()];
+        iv.copyInto(scores, 0);
+        final int[] sorted = ArgSort.argsort(scores, sort, order);
+        final List<String> clonedLabels = new ArrayList<String>(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            clonedLabels.add(names.get(sorted[i]));
         }
 
-        return DoubleElement.sort(sort, order, dels);
+        return new DefaultRankedList(null, clonedLabels, new Vector(ArgSort.gather(scores, sorted), true));
     }
 }
\ No newline at end of file
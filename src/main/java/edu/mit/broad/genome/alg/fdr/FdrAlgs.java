@@ -9,8 +9,16 @@ import edu.mit.broad.genome.objects.Dataset;
 import edu.mit.broad.genome.objects.LabelledVector;
 import edu.mit.broad.genome.objects.RankedList;
 import edu.mit.broad.genome.objects.strucs.SkewCorrectedFdrStruc;
+import edu.mit.broad.genome.utils.ParallelLoops;
+import gnu.trove.TFloatArrayList;
 import gnu.trove.THashMap;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
 /**
  * False discovery rate algorithms.
  *
@@ -18,6 +26,15 @@ import gnu.trove.THashMap;
  */
 public class FdrAlgs {
 
+    // Blocks of sets per thread for the column counts, so that uneven blocks even out
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    // Sets per task for the per set stats
+    private static final int SETS_PER_TASK = 16;
+
+    // Random columns sorted (and held) at a time
+    private static final int COLUMNS_PER_CHUNK = 64;
+
     public static class FdrMap extends THashMap {
 
         FdrMap() {
@@ -50,14 +67,28 @@ public class FdrAlgs {
                                          final DatasetModed all_rnd_scores_norm_moded_pos,
                                          final DatasetModed all_rnd_scores_norm_moded_neg,
                                          final SortMode sort) {
+        return calcFdrs_skewed(real_scores, rnd_scores_by_row_FULL, real_scores_norm,
+                all_rnd_scores_norm_moded_pos, all_rnd_scores_norm_moded_neg, sort, null);
+    }
+
+    /**
+     * As above, with the work for the sets spread over pool_opt (same fdrs whatever the number of threads)
+     */
+    public static FdrMap calcFdrs_skewed(final LabelledVector real_scores,
+                                         final Dataset rnd_scores_by_row_FULL,
+                                         final LabelledVector real_scores_norm,
+                                         final DatasetModed all_rnd_scores_norm_moded_pos,
+                                         final DatasetModed all_rnd_scores_norm_moded_neg,
+                                         final SortMode sort,
+                                         final ForkJoinPool pool_opt) {
 
         FdrMap map = new FdrMap();
 
         _calcFdrs_skewed(real_scores, rnd_scores_by_row_FULL, real_scores_norm,
-                all_rnd_scores_norm_moded_pos, all_rnd_scores_norm_moded_neg, sort, Order.DESCENDING, true, map);
+                all_rnd_scores_norm_moded_pos, all_rnd_scores_norm_moded_neg, sort, Order.DESCENDING, true, map, pool_opt);
 
         _calcFdrs_skewed(real_scores, rnd_scores_by_row_FULL, real_scores_norm,
-                all_rnd_scores_norm_moded_pos, all_rnd_scores_norm_moded_neg, sort, Order.ASCENDING, false, map);
+                all_rnd_scores_norm_moded_pos, all_rnd_scores_norm_moded_neg, sort, Order.ASCENDING, false, map, pool_opt);
 
         return map;
     }
@@ -71,7 +102,8 @@ public class FdrAlgs {
                                          final SortMode sort,
                                          final Order order,
                                          final boolean doPos,
-                                         final FdrMap map) {
+                                         final FdrMap map,
+                                         final ForkJoinPool pool_opt) {
 
         // sanity checks
         if (real_scores == null) {
@@ -96,30 +128,223 @@ public class FdrAlgs {
         // where these are NOT considered the greatest.  Note idea of storing Null instead...
         final RankedList real_scores_norm_sorted = real_scores_norm.sort(sort, order);
 
+        // The sets of this side (pos sets for doPos, else the neg ones)
+        final List<String> names = new ArrayList<String>();
+        final TFloatArrayList scores = new TFloatArrayList();
         for (int r = 0; r < real_scores.getSize(); r++) {
-            final String name = real_scores.getLabel(r);
             final float real_score_of_name = real_scores.getScore(r);
 
             // ... then, if storing Null we could just skip fdr.
             // Or, it might be possible to check for NaN / Infinity here and skip.
-            if (doPos && XMath.isPositive(real_score_of_name)) {
-                final SkewCorrectedFdrStruc fdr = new SkewCorrectedFdrStruc(name,
-                        real_score_of_name,
+            if ((doPos && XMath.isPositive(real_score_of_name)) || (!doPos && XMath.isNegative(real_score_of_name))) {
+                names.add(real_scores.getLabel(r));
+                scores.add(real_score_of_name);
+            }
+        }
+
+        final int numNames = names.size();
+        final float[] scoresNorm = new float[numNames];
+        for (int i = 0; i < numNames; i++) {
+            scoresNorm[i] = real_scores_norm_sorted.getScore(names.get(i));
+        }
+
+        final DatasetModed all_rnd_scores_norm_moded = doPos ? all_rnd_scores_norm_moded_pos : all_rnd_scores_norm_moded_neg;
+
+        if (all_rnd_scores_norm_moded_pos.getNumCol() != all_rnd_scores_norm_moded_neg.getNumCol()) {
+            throw new MismatchedSizeException("num_cols pos", all_rnd_scores_norm_moded_pos.getNumCol(), "num cols neg", all_rnd_scores_norm_moded_neg.getNumCol());
+        }
+
+        final float numSets = real_scores_norm_sorted.getSize(doPos ? ScoreMode.POS_ONLY : ScoreMode.NEG_ONLY);
+
+        // Contiguous blocks of sets, each swept over all the columns
+        final int numBlocks = (pool_opt == null) ? 1 : Math.min(numNames, pool_opt.getParallelism() * BLOCKS_PER_THREAD);
+        final ColumnCounts counts = new ColumnCounts(scoresNorm, doPos, numBlocks);
+
+        // The columns are sorted a chunk at a time, and not kept, so that the sorted (pos or neg) random scores
+        // are never all held at once
+        final int numCol = all_rnd_scores_norm_moded.getNumCol();
+        for (int chunkFrom = 0; numNames > 0 && chunkFrom < numCol; chunkFrom += COLUMNS_PER_CHUNK) {
+            final int from = chunkFrom;
+            final Vector[] cols_sorted = new Vector[Math.min(COLUMNS_PER_CHUNK, numCol - from)];
+            final boolean[] cols_clean = new boolean[cols_sorted.length];
+            ParallelLoops.forEach(pool_opt, 0, cols_sorted.length, 1, new IntConsumer() {
+                public void accept(final int i) {
+                    cols_sorted[i] = all_rnd_scores_norm_moded.sortColumn(from + i);
+                    cols_clean[i] = ColumnCounts.isSorted(cols_sorted[i], doPos);
+                }
+            });
+
+            ParallelLoops.forEach(pool_opt, 0, numBlocks, 1, new IntConsumer() {
+                public void accept(final int b) {
+                    counts.count(b, cols_sorted, cols_clean);
+                }
+            });
+        }
+
+        if (pool_opt != null && numNames > 0) {
+            // build the lazy name lookups before the concurrent reads
+            real_scores_norm_sorted.getRank(names.get(0));
+            rnd_scores_by_row_FULL.getRow(names.get(0));
+        }
+
+        final SkewCorrectedFdrStruc[] fdrs = new SkewCorrectedFdrStruc[numNames];
+        ParallelLoops.forEach(pool_opt, 0, numNames, SETS_PER_TASK, new IntConsumer() {
+            public void accept(final int i) {
+                final String name = names.get(i);
+                fdrs[i] = new SkewCorrectedFdrStruc(name,
+                        scores.get(i),
                         real_scores_norm_sorted,
                         rnd_scores_by_row_FULL.getRow(name), // @note fetching by name, not index
-                        all_rnd_scores_norm_moded_pos,
-                        all_rnd_scores_norm_moded_neg,
-                        doPos);
-                map.add(name, fdr);
-            } else if (!doPos && XMath.isNegative(real_score_of_name)) {
-                final SkewCorrectedFdrStruc fdr = new SkewCorrectedFdrStruc(name,
-                        real_score_of_name,
-                        real_scores_norm_sorted,
-                        rnd_scores_by_row_FULL.getRow(name), // // @note fetching by name, not index
-                        all_rnd_scores_norm_moded_pos,
-                        all_rnd_scores_norm_moded_neg,
+                        all_rnd_scores_norm_moded,
+                        numSets,
+                        counts.colMeanSum[i],
+                        counts.numColsActual[i],
+                        counts.moreRndThan[i],
+                        counts.totalRndCntUsed[i],
                         doPos);
-                map.add(name, fdr);
+            }
+        });
+
+        for (int i = 0; i < numNames; i++) {
+            map.add(names.get(i), fdrs[i]);
+        }
+    }
+
+    /**
+     * For each of a set of real normalized scores, the per column counts of random normalized scores that are
+     * more (or, for the neg side, less) extreme, summed over the columns as SkewCorrectedFdrStruc does.
+     * <p/>
+     * Rather than scanning every (sorted) column for every score, the scores are sorted the same way as the
+     * columns and each column is counted for all the scores in one merge-like sweep. The counts are those of
+     * XMath.getMoreThanCount (getLessThanCount): the number of column values before the first one that the
+     * score is more (less) than. A column that is not cleanly sorted (e.g. has NaNs) is scanned as before.
+     * <p/>
+     * The scores are split into contiguous blocks, and the columns fed (in order, a chunk at a time) to every
+     * block. Columns are visited in order and the float sums accumulated exactly as in SkewCorrectedFdrStruc, so
+     * the fdrs are the same.
+     * <p/>
+     * The sets whose permutations were stopped early (see NullScoreStore) are NaN, and so not there, in the
+     * columns past their last permutation: each column's fraction is over the sets that reached it.
+     */
+    private static class ColumnCounts {
+
+        private final float[] colMeanSum;
+        private final int[] numColsActual;
+        private final int[] moreRndThan;
+        private final int[] totalRndCntUsed;
+
+        private final boolean doPos;
+
+        // Per block: the first score, the scores, their order and the per column counts
+        private final int[] blockFrom;
+        private final float[][] blockScores;
+        private final int[][] blockOrder;
+        private final int[][] blockCnts;
+
+        private ColumnCounts(final float[] scoresNorm, final boolean doPos, final int numBlocks) {
+            final int numScores = scoresNorm.length;
+            this.doPos = doPos;
+            this.colMeanSum = new float[numScores];
+            this.numColsActual = new int[numScores];
+            this.moreRndThan = new int[numScores];
+            this.totalRndCntUsed = new int[numScores];
+
+            this.blockFrom = new int[numBlocks];
+            this.blockScores = new float[numBlocks][];
+            this.blockOrder = new int[numBlocks][];
+            this.blockCnts = new int[numBlocks][];
+            for (int b = 0; b < numBlocks; b++) {
+                final int from = (int) ((long) numScores * b / numBlocks);
+                final int to = (int) ((long) numScores * (b + 1) / numBlocks);
+                blockFrom[b] = from;
+                blockScores[b] = Arrays.copyOfRange(scoresNorm, from, to);
+                // Most extreme first, as in the columns
+                blockOrder[b] = ArgSort.argsort(blockScores[b], SortMode.REAL, doPos ? Order.DESCENDING : Order.ASCENDING);
+                blockCnts[b] = new int[to - from];
+            }
+        }
+
+        /**
+         * Adds the counts of the (next, in column order) sorted columns to the scores of block b. Different
+         * blocks can be counted concurrently
+         *
+         * @param cols_clean per column, isSorted
+         */
+        private void count(final int b, final Vector[] cols_sorted, final boolean[] cols_clean) {
+            final int from = blockFrom[b];
+            final float[] block = blockScores[b];
+            final int[] cnts = blockCnts[b];
+
+            for (int c = 0; c < cols_sorted.length; c++) {
+                final Vector col_sorted = cols_sorted[c];
+                final float size = col_sorted.getSize();
+
+                if (cols_clean[c]) {
+                    sweep(block, blockOrder[b], col_sorted, doPos, cnts);
+                } else {
+                    for (int i = 0; i < block.length; i++) {
+                        cnts[i] = doPos ? XMath.getMoreThanCount(block[i], col_sorted)
+                                : XMath.getLessThanCount(block[i], col_sorted);
+                    }
+                }
+
+                for (int i = 0; i < block.length; i++) {
+                    final float moreOrLessThan = cnts[i];
+                    totalRndCntUsed[from + i] += size;
+                    moreRndThan[from + i] += moreOrLessThan;
+
+                    if (size != 0) { // skip, no pos or neg ones here
+                        colMeanSum[from + i] += moreOrLessThan / size;
+                        numColsActual[from + i]++;
+                    }
+                }
+            }
+        }
+
+        // descending (doPos) or ascending and with no NaNs
+        private static boolean isSorted(final Vector col, final boolean doPos) {
+            for (int i = 0; i < col.getSize(); i++) {
+                final float val = col.getElement(i);
+                if (Float.isNaN(val)) {
+                    return false;
+                }
+
+                if (i > 0) {
+                    final float prev = col.getElement(i - 1);
+                    if (doPos ? prev < val : prev > val) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        private static void sweep(final float[] scoresNorm, final int[] scoreOrder, final Vector col,
+                                  final boolean doPos, final int[] cnts) {
+            final int size = col.getSize();
+            int pos = 0;
+            for (int o = 0; o < scoreOrder.length; o++) {
+                final int i = scoreOrder[o];
+                final float score = scoresNorm[i];
+
+                if (Float.isNaN(score)) {
+                    // Never more (or less) than anything, so all counted
+                    cnts[i] = size;
+                    continue;
+                }
+
+                if (doPos) {
+                    while (pos < size && !(score > col.getElement(pos))) {
+                        pos++;
+                    }
+                } else {
+                    while (pos < size && !(score < col.getElement(pos))) {
+                        pos++;
+                    }
+                }
+
+                cnts[i] = pos;
             }
         }
     }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg.gsea;
+
+/**
+ * The null distribution of the classic (unweighted) ES under gene set permutation, worked out rather than
+ * sampled.
+ * <p/>
+ * With the classic table a gene set of k members (hits) on a ranked list of n labels steps its running sum up
+ * by 1/k at a hit and down by 1/(n - k) at a miss, so it is the difference of the two empirical distributions
+ * and its largest deviation is the two sample Kolmogorov-Smirnov statistic D. A random set of size k is a
+ * uniformly random lattice path of k hits and n - k misses. Reversing the path negates its ES, so a random ES is
+ * as likely to be positive as negative and, given its sign, more extreme than es just as often as D is more
+ * than |es|. That is the nominal p as the permutations count it (see XMath.getPValueTwoTailed_pos_neg_seperate),
+ * up to the paths whose positive and negative deviations tie.
+ * <p/>
+ * Deviations are held exactly, as whole numbers of 1/(k * (n - k)) units (the lattice ES), so that the exact
+ * tail does not hang on the float rounding of the ES.
+ */
+public class ClassicKSNull {
+
+    // Above this many lattice cells (hits x misses) the exact tail costs more than it is worth, and the
+    // asymptotic one is close to it
+    private static final long MAX_EXACT_CELLS = 1000000L;
+
+    // E[sup |B|] of a Brownian bridge, sqrt(pi / 2) * ln(2)
+    private static final double MEAN_KOLMOGOROV = Math.sqrt(Math.PI / 2) * Math.log(2);
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private ClassicKSNull() {
+    }
+
+    /**
+     * @param hitRanks  the (distinct) ranks of the members of the set on the ranked list, sorted ascending
+     * @param numLabels the size of the ranked list
+     * @param pos       true for the largest positive deviation, false for the (absolute) largest negative one
+     * @return the lattice ES: the deviation of the running sum in units of 1 / (hits * misses)
+     */
+    public static long latticeES(final int[] hitRanks, final int numLabels, final boolean pos) {
+        final long k = hitRanks.length;
+        final long m = numLabels - k;
+        if (k < 1 || m < 1) {
+            throw new IllegalArgumentException("Need at least one hit and one miss, got: " + k + " hits of: " + numLabels);
+        }
+
+        // The running sum peaks just after a hit and troughs just before one
+        long max = 0;
+        for (int h = 0; h < hitRanks.length; h++) {
+            final long misses = hitRanks[h] - h;
+            max = Math.max(max, pos ? (h + 1) * m - misses * k : misses * k - h * m);
+        }
+
+        return max;
+    }
+
+    /**
+     * @param latticeES a lattice ES (see latticeES)
+     * @return the probability that a random set of numHits members has D (in lattice units) more than latticeES:
+     * exact for sets that span no more than MAX_EXACT_CELLS lattice cells, else asymptotic
+     */
+    public static double tail(final long latticeES, final int numHits, final int numLabels) {
+        final long k = numHits;
+        final long m = numLabels - numHits;
+        if (k < 1 || m < 1) {
+            throw new IllegalArgumentException("Need at least one hit and one miss, got: " + k + " hits of: " + numLabels);
+        }
+
+        if (k * m > MAX_EXACT_CELLS) {
+            return asymptoticTail((double) latticeES / (k * m), numHits, numLabels);
+        }
+
+        return exactTail(latticeES, (int) k, (int) m);
+    }
+
+    // The probability that a random path of k hits and m misses strays more than bound (in lattice units) from 0.
+    // exceeded[j] is the probability that a path to (i hits, j misses) has strayed, which is 1 off the band and
+    // else the chance weighted sum over the two cells it can come from (a fraction i / (i + j) of the paths to
+    // (i, j) come from (i - 1, j)). Summing chances rather than taking 1 - P(in band) keeps small tails accurate
+    private static double exactTail(final long bound, final int k, final int m) {
+        final double[] exceeded = new double[m + 1];
+        for (int i = 0; i <= k; i++) {
+            for (int j = 0; j <= m; j++) {
+                if (Math.abs((long) i * m - (long) j * k) > bound) {
+                    exceeded[j] = 1;
+                } else if (i + j > 0) {
+                    final double fromHit = (i == 0) ? 0 : i * exceeded[j];
+                    final double fromMiss = (j == 0) ? 0 : j * exceeded[j - 1];
+                    exceeded[j] = (fromHit + fromMiss) / (i + j);
+                }
+            }
+        }
+
+        return exceeded[m];
+    }
+
+    /**
+     * @param d the deviation (the abs of a classic ES)
+     * @return the asymptotic (Kolmogorov) probability that a random set of numHits members has D more than d,
+     * with Stephens' correction for the effective sample size
+     */
+    public static double asymptoticTail(final double d, final int numHits, final int numLabels) {
+        final double lambda = d * scale(numHits, numLabels);
+        if (lambda < 0.2) {
+            return 1; // to within 1e-20, and the series is slow to converge
+        }
+
+        final double a2 = -2 * lambda * lambda;
+        double fac = 2;
+        double sum = 0;
+        double prevTerm = 0;
+        for (int j = 1; j <= 100; j++) {
+            final double term = fac * Math.exp(a2 * j * j);
+            sum += term;
+            if (Math.abs(term) <= 1e-10 * prevTerm || Math.abs(term) <= 1e-16 * sum) {
+                break;
+            }
+            fac = -fac;
+            prevTerm = Math.abs(term);
+        }
+
+        return Math.max(0, Math.min(1, sum));
+    }
+
+    /**
+     * @return the asymptotic mean of D for a random set of numHits members, the classic analog of the mean of the
+     * random ess of a sign that the permutation NES is normalized by
+     */
+    public static double meanES(final int numHits, final int numLabels) {
+        return MEAN_KOLMOGOROV / scale(numHits, numLabels);
+    }
+
+    // sqrt(effective n) + 0.12 + 0.11 / sqrt(effective n), the scale of D in Kolmogorov units
+    private static double scale(final int numHits, final int numLabels) {
+        final double k = numHits;
+        final double m = numLabels - numHits;
+        if (k < 1 || m < 1) {
+            throw new IllegalArgumentException("Need at least one hit and one miss, got: " + numHits + " hits of: " + numLabels);
+        }
+
+        final double sqrtNe = Math.sqrt(k * m / (k + m));
+        return sqrtNe + 0.12 + 0.11 / sqrtNe;
+    }
+
+}
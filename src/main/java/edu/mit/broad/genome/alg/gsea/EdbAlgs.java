@@ -6,6 +6,8 @@ package edu.mit.broad.genome.alg.gsea;
 import edu.mit.broad.genome.Errors;
 import edu.mit.broad.genome.MismatchedSizeException;
 import edu.mit.broad.genome.math.Matrix;
+import edu.mit.broad.genome.math.NullScoreStore;
+import edu.mit.broad.genome.math.NullScoreStores;
 import edu.mit.broad.genome.math.Vector;
 import edu.mit.broad.genome.objects.*;
 import edu.mit.broad.genome.objects.esmatrix.db.EnrichmentResult;
@@ -31,12 +33,29 @@ public class EdbAlgs {
         return new LabelledVector(labels, v);
     }
 
+    /**
+     * @return the rnd ess of the results, a gene set per row and a permutation per column. Read in place
+     * (a NullScoreDataset) when the results are rows of one store, else copied into a Matrix
+     */
     public static Dataset createRndESDataset(final EnrichmentResult[] results) {
 
         _nonNull(results);
 
         // each gset on a row, cols are perms
+        // @note the rows of a store need not all be full (adaptive permutations), so the store's column count is
+        // used for it rather than insisting on the same number of perms for every result
+        final NullScoreStore store = getSharedStore(results);
+        if (store != null) {
+            final List<String> rowNames = new ArrayList<String>(results.length);
+            for (int r = 0; r < results.length; r++) {
+                rowNames.add(results[r].getGeneSetName());
+            }
+
+            return new NullScoreDataset("some_name_rnd_es", store, rowNames, _permColNames(store.getNumCol()));
+        }
+
         int numPerms = enforceSameNumOfPerms(results);
+
         Matrix m = new Matrix(results.length, numPerms);
 
         List<String> rowNames = new ArrayList<String>(results.length);
@@ -50,6 +69,27 @@ public class EdbAlgs {
         return new DefaultDataset("some_name_rnd_es", m, rowNames, _permColNames(numPerms), null);
     }
 
+    // The store whose rows are the rnd ess of the results, in order, if any. When the results share rows of one
+    // store (gene sets sharing a null distribution) this is a view of it with a row per result
+    private static NullScoreStore getSharedStore(final EnrichmentResult[] results) {
+        final NullScoreStore store = results[0].getRndStore();
+        if (store == null) {
+            return null;
+        }
+
+        final int[] rows = new int[results.length];
+        boolean inOrder = store.getNumRow() == results.length;
+        for (int r = 0; r < results.length; r++) {
+            if (results[r].getRndStore() != store) {
+                return null;
+            }
+            rows[r] = results[r].getRndRow();
+            inOrder &= rows[r] == r;
+        }
+
+        return inOrder ? store : new NullScoreStores.RowMapped(store, rows);
+    }
+
     public static GeneSet[] getGeneSets(final EnrichmentResult[] results) {
         _nonNull(results);
 
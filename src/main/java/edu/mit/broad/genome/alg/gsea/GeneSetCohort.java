@@ -4,17 +4,25 @@
 package edu.mit.broad.genome.alg.gsea;
 
 import edu.mit.broad.genome.TraceUtils;
+import edu.mit.broad.genome.objects.Dataset;
 import edu.mit.broad.genome.objects.GeneSet;
 import edu.mit.broad.genome.objects.RankedList;
-import gnu.trove.THashSet;
+import edu.mit.broad.genome.objects.ScoredDataset;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
 /**
  * Defines a collection of gene sets and their associated scoring scheme (weights)
+ * <p/>
+ * Each gene set is compiled against the ranked list into the sorted ranks of its members
+ * and the hit / miss points at those ranks, so that the KS walk in KSCore needs no name lookups.
+ * <p/>
+ * The cohort can then be re-bound to another ranking of the same features (a permutation) with
+ * rebind(RankedList), which keeps the gene set structure and only recomputes the ranks and weights.
+ * A cohort is NOT safe to share between threads while it is being rebound.
+ *
  * @author Aravind Subramanian
  */
 public class GeneSetCohort {
@@ -22,19 +30,41 @@ public class GeneSetCohort {
     private Logger log = Logger.getLogger(GeneSetCohort.class);
 
     private GeneSet[] fGeneSets;
-    private THashSet[] fFastSets; // much much faster that gset.ismember!!!
     private RankedList fRankedList;
-    // TODO: remove? Seems to be populated but unused 
-    private Map<String, GeneSet> fGeneSetNameGeneSetMap;
 
-    private GeneToGeneSetMap fGeneToGeneSetMap;
+    // for every gene set, the ranks in fRankedList of its members, ascending
+    private int[][] fHitRanks;
 
-    private GeneSetScoringTable[] fGeneSetScoringTables;
+    // for every gene set and every hit, the points added at that hit
+    private float[][] fHitPoints;
+
+    // for every gene set and every hit, the points removed at each miss leading up to that hit
+    private float[][] fMissPoints;
+
+    // for every gene set, the points removed at each miss leading up to (and at) the last rank
+    private float[] fLastMissPoints;
+
+    // for every rank, the gene sets that the gene at that rank is a member of (null if none)
+    // lazilly built as only the full walk needs it
+    private int[][] fGeneSetIndicesAtRank;
 
     private GeneSetScoringTable fOrigTable;
 
-    private GeneSetCohort(final GeneSetScoringTable scoringTable, final RankedList rl, final GeneSet[] gsets,
-    		final GeneToGeneSetMap g2gsetmap) {
+    // true if the sets can be scored from their hit ranks alone, see GeneSetScoringTables.isSparseScorable
+    private boolean fSparse;
+
+    // Static structure, sparse cohorts only: every feature of the first ranked list gets an id (its row in
+    // the scored dataset if there is one, else its rank) and the gene sets are kept as member ids, in member order
+    private int[][] fMemberIds;
+    private String[] fIdNames;
+    private Dataset fIdDataset_opt;
+
+    // reused on every rebind (unless still shared with the cohort this was cloned from)
+    private int[] fRankOfId;
+    private float[] fScoresByRank;
+    private boolean fSharedByRankArrays;
+
+    private GeneSetCohort(final GeneSetScoringTable scoringTable, final RankedList rl, final GeneSet[] gsets) {
         if (rl == null) {
 		    throw new IllegalArgumentException("Parameter rl cannot be null");
 		}
@@ -44,77 +74,261 @@ public class GeneSetCohort {
 		if (gsets.length == 0) {
 		    log.warn("zero length gsets array: " + gsets.length);
 		}
-		
+
         this.fOrigTable = scoringTable;
-		this.fRankedList = rl;
 		this.fGeneSets = new GeneSet[gsets.length];
-		this.fFastSets = new THashSet[gsets.length];
-		this.fGeneSetNameGeneSetMap = new HashMap<String, GeneSet>();
-		
+		this.fHitRanks = new int[gsets.length][];
+		this.fHitPoints = new float[gsets.length][];
+		this.fMissPoints = new float[gsets.length][];
+		this.fLastMissPoints = new float[gsets.length];
+		this.fSparse = GeneSetScoringTables.isSparseScorable(scoringTable);
+
+		System.arraycopy(gsets, 0, fGeneSets, 0, gsets.length); // trust that already qualified
+
 		boolean atleastonewithits = false; // for a sanity check
-		for (int g1 = 0; g1 < gsets.length; g1++) {
-		
-			this.fGeneSets[g1] = gsets[g1]; // trust that already qualified
-		
-		    this.fFastSets[g1] = new THashSet(fGeneSets[g1].getMembers());
-		    this.fGeneSetNameGeneSetMap.put(fGeneSets[g1].getName(), fGeneSets[g1]);
-		    if (!atleastonewithits && fGeneSets[g1].getNumMembers() > 0) {
-		        atleastonewithits = true;
-		    }
-		
-			// TODO: eval for performance.
-			// Could use out.print() instead, to avoid String concat.  Could also try to avoid the modulo call:
-			//   int nextLogPoint = 500; // outside loop
-			//   if (g == nextLogPoint) { // inside loop
-			//      // print message
-			//      nextLogPoint += 500
-			//   }
-		    if (g1 >= 500 && g1 % 500 == 0) {
-		        System.out.println("GeneSetCohorted: " + (g1 + 1) + " / " + fGeneSets.length);
-		    }
+		for (int g = 0; g < gsets.length && !atleastonewithits; g++) {
+		    atleastonewithits = gsets[g].getNumMembers() > 0;
 		}
-		
-		
+
 		if (!atleastonewithits) {
 		    log.info("rl: " + rl.getName() + " \n" + rl.getRankedNames().subList(0, 10));
-		
+
 		    TraceUtils.showTrace();
 		    log.warn("No hits in the ranked list to any of the gene sets!");
 		}
-		
-		if (g2gsetmap == null) {
-		    this.fGeneToGeneSetMap = GeneToGeneSetMap.generateGeneToGenesetMap(fGeneSets);
-		} else {
-		    this.fGeneToGeneSetMap = g2gsetmap;
+
+		if (fSparse) {
+		    initIds(rl);
+		    initMemberIds(rl);
 		}
-        this.fGeneSetScoringTables = new GeneSetScoringTable[fGeneSets.length];
-
-        // populate the table
-        for (int g = 0; g < fGeneSets.length; g++) { // @note IMP to use the fgsets and it might have gotten clones
-            // compute scoring scheme
-            fGeneSetScoringTables[g] = scoringTable.createTable(fGeneSets[g], rl, fOrigTable.getRankedList());
-            
-        	// TODO: eval for performance.
-        	// Could use out.print() instead, to avoid String concat.  Could also try to avoid the modulo call:
-        	//   int nextLogPoint = 500; // outside loop
-        	//   if (g == nextLogPoint) { // inside loop
-        	//      // print message
-        	//      nextLogPoint += 500
-        	//   }
+
+		rebind(rl);
+		log.debug("GeneSetCohorted_scored: " + fGeneSets.length + " gene sets");
+    }
+
+    // For clone(): new gene sets on the same ranked list, sharing the id space and (until rebound) the
+    // by rank arrays of the parent, so that nothing of the size of the ranked list is made again
+    private GeneSetCohort(final GeneSetCohort sparseParent, final GeneSet[] gsets) {
+        this.fOrigTable = sparseParent.fOrigTable;
+        this.fSparse = true;
+        this.fRankedList = sparseParent.fRankedList;
+        this.fIdNames = sparseParent.fIdNames;
+        this.fIdDataset_opt = sparseParent.fIdDataset_opt;
+        this.fRankOfId = sparseParent.fRankOfId;
+        this.fScoresByRank = sparseParent.fScoresByRank;
+        this.fSharedByRankArrays = true;
+
+        this.fGeneSets = gsets.clone();
+        this.fHitRanks = new int[gsets.length][];
+        this.fHitPoints = new float[gsets.length][];
+        this.fMissPoints = new float[gsets.length][];
+        this.fLastMissPoints = new float[gsets.length];
+
+        initMemberIds(fRankedList);
+        final GeneSetScoringTables.RankWeighted table = (GeneSetScoringTables.RankWeighted) fOrigTable;
+        for (int g = 0; g < fGeneSets.length; g++) {
+            compile(g, table);
+        }
+    }
+
+    private void initIds(final RankedList rl) {
+        final int numLabels = rl.getSize();
+        if (rl instanceof ScoredDataset) {
+            this.fIdDataset_opt = ((ScoredDataset) rl).getUnscoredDataset();
+            this.fIdNames = new String[fIdDataset_opt.getNumRow()];
+        } else {
+            this.fIdNames = new String[numLabels];
+        }
+
+        for (int r = 0; r < numLabels; r++) {
+            fIdNames[idOf(rl, r)] = rl.getRankName(r);
+        }
+    }
+
+    private void initMemberIds(final RankedList rl) {
+        this.fMemberIds = new int[fGeneSets.length][];
+        for (int g = 0; g < fGeneSets.length; g++) {
+            final GeneSet gset = fGeneSets[g];
+            final int[] ids = new int[gset.getNumMembers()];
+            int numIds = 0;
+            for (int i = 0; i < ids.length; i++) {
+                final int rank = rl.getRank(gset.getMember(i));
+                if (rank >= 0) { // Members that are not in the ranked list are never hit
+                    ids[numIds++] = idOf(rl, rank);
+                }
+            }
+            fMemberIds[g] = (numIds == ids.length) ? ids : Arrays.copyOf(ids, numIds);
+
             if (g >= 500 && g % 500 == 0) {
-                System.out.println("GeneSetCohorted_scored: " + (g + 1) + " / " + fGeneSets.length);
+                System.out.println("GeneSetCohorted: " + (g + 1) + " / " + fGeneSets.length);
             }
         }
     }
 
-    // @note Justin Guinney's addition
-    public int[] genesetIndicesForGene(final String geneName) {
-        return fGeneToGeneSetMap.getGenesetIndicesForGene(geneName);
+    private int idOf(final RankedList rl, final int rank) {
+        return (fIdDataset_opt == null) ? rank : ((ScoredDataset) rl).getUnscoredRowIndex(rank);
+    }
+
+    /**
+     * Bind this cohort to another ranking of the features, usually a permutation of the list it was made with.
+     * The gene set structure is kept; only the member ranks and the weights are recomputed.
+     * For the sparse scorable tables and a ranked list scored from the same Dataset, no names are looked up.
+     * The other tables (the weighted_as ones) still make a new table per gene set here, as their tables hold state
+     * computed from the ranked list; only the cohort itself is reused for those.
+     */
+    public void rebind(final RankedList rl) {
+        if (rl == null) {
+            throw new IllegalArgumentException("Parameter rl cannot be null");
+        }
+
+        this.fRankedList = rl;
+        this.fGeneSetIndicesAtRank = null; // by rank, so stale once the hit ranks are recomputed below
+
+        if (fSparse) {
+            rebindSparse(rl);
+        } else {
+            final int numLabels = rl.getSize();
+            final String lastName = (numLabels == 0) ? null : rl.getRankName(numLabels - 1);
+            for (int g = 0; g < fGeneSets.length; g++) { // @note IMP to use the fgsets and it might have gotten clones
+                final GeneSetScoringTable table = fOrigTable.createTable(fGeneSets[g], rl, fOrigTable.getRankedList());
+                compile(g, table, lastName);
+            }
+        }
     }
 
-    public boolean isMember(int gsetNum, String name) {
-        //return fGeneSets[gsetNum].isMember(name); // @noyte faster??
-        return fFastSets[gsetNum].contains(name);
+    private void rebindSparse(final RankedList rl) {
+        final int numLabels = rl.getSize();
+        if (fSharedByRankArrays || fScoresByRank == null || fScoresByRank.length != numLabels) {
+            this.fScoresByRank = new float[numLabels];
+        }
+
+        if (fSharedByRankArrays || fRankOfId == null) {
+            this.fRankOfId = new int[fIdNames.length];
+        }
+        this.fSharedByRankArrays = false;
+
+        for (int r = 0; r < numLabels; r++) {
+            fScoresByRank[r] = rl.getScore(r);
+        }
+
+        if (fIdDataset_opt != null && rl instanceof ScoredDataset && ((ScoredDataset) rl).getUnscoredDataset() == fIdDataset_opt) {
+            final ScoredDataset sds = (ScoredDataset) rl;
+            Arrays.fill(fRankOfId, -1);
+            for (int r = 0; r < numLabels; r++) {
+                fRankOfId[sds.getUnscoredRowIndex(r)] = r;
+            }
+        } else {
+            for (int id = 0; id < fIdNames.length; id++) {
+                fRankOfId[id] = (fIdNames[id] == null) ? -1 : rl.getRank(fIdNames[id]);
+            }
+        }
+
+        final GeneSetScoringTables.RankWeighted table = (GeneSetScoringTables.RankWeighted) fOrigTable;
+        for (int g = 0; g < fGeneSets.length; g++) {
+            compile(g, table);
+        }
+    }
+
+    // Members that are not in the ranked list are never hit, exactly as when walking the list by name
+    private void compile(final int g, final GeneSetScoringTable table, final String lastName) {
+        final GeneSet gset = fGeneSets[g];
+        final int[] ranks = new int[gset.getNumMembers()];
+        int numHits = 0;
+        for (int i = 0; i < ranks.length; i++) {
+            final int rank = fRankedList.getRank(gset.getMember(i));
+            if (rank >= 0) {
+                ranks[numHits++] = rank;
+            }
+        }
+
+        final int[] hitRanks = (numHits == ranks.length) ? ranks : Arrays.copyOf(ranks, numHits);
+        Arrays.sort(hitRanks);
+
+        final float[] hitPoints = new float[numHits];
+        final float[] missPoints = new float[numHits];
+        for (int k = 0; k < numHits; k++) {
+            final String name = fRankedList.getRankName(hitRanks[k]);
+            hitPoints[k] = table.getHitScore(name);
+            missPoints[k] = table.getMissScore(name); // scored against the next hit -- matters for the sided tables
+        }
+
+        this.fHitRanks[g] = hitRanks;
+        this.fHitPoints[g] = hitPoints;
+        this.fMissPoints[g] = missPoints;
+        this.fLastMissPoints[g] = (lastName == null) ? 0f : table.getMissScore(lastName);
+    }
+
+    // Same points as the per set tables would give, but weighted from the scores by rank.
+    // The arrays of the previous binding are reused whenever the number of hits is unchanged (always so
+    // for permutations of the same list)
+    private void compile(final int g, final GeneSetScoringTables.RankWeighted table) {
+        final int numMembers = fGeneSets[g].getNumMembers();
+        final int[] memberIds = fMemberIds[g];
+
+        int[] hitRanks = fHitRanks[g];
+        if (hitRanks == null || hitRanks.length != memberIds.length) {
+            hitRanks = new int[memberIds.length];
+        }
+
+        int numHits = 0;
+        float totalWeight = 0;
+        for (int i = 0; i < memberIds.length; i++) {
+            final int rank = fRankOfId[memberIds[i]];
+            if (rank >= 0) {
+                hitRanks[numHits++] = rank;
+                totalWeight = table.addToTotalWeight(totalWeight, fScoresByRank[rank]);
+            }
+        }
+
+        if (numHits != hitRanks.length) {
+            hitRanks = Arrays.copyOf(hitRanks, numHits);
+        }
+        Arrays.sort(hitRanks);
+
+        float[] hitPoints = fHitPoints[g];
+        float[] missPointsAtHits = fMissPoints[g];
+        if (hitPoints == null || hitPoints.length != numHits) {
+            hitPoints = new float[numHits];
+            missPointsAtHits = new float[numHits];
+        }
+
+        final float missPoints = table.getMissPoints(numMembers, fScoresByRank.length);
+        for (int k = 0; k < numHits; k++) {
+            hitPoints[k] = table.getHitPoints(fScoresByRank[hitRanks[k]], totalWeight, numMembers);
+            missPointsAtHits[k] = missPoints;
+        }
+
+        this.fHitRanks[g] = hitRanks;
+        this.fHitPoints[g] = hitPoints;
+        this.fMissPoints[g] = missPointsAtHits;
+        this.fLastMissPoints[g] = missPoints;
+    }
+
+    // As compile(g, table) for a random set of the features at ranks (all hits, in the order drawn) of the
+    // ranked list this is bound to, without a GeneSet: sorts ranks and writes the points of each hit into
+    // hitPoints and missPoints. Returns the last miss points. Sparse cohorts only; safe for concurrent use
+    float compileRandom(final int[] ranks, final float[] hitPoints, final float[] missPoints) {
+        final GeneSetScoringTables.RankWeighted table = (GeneSetScoringTables.RankWeighted) fOrigTable;
+        final int numMembers = ranks.length;
+
+        float totalWeight = 0;
+        for (int i = 0; i < numMembers; i++) {
+            totalWeight = table.addToTotalWeight(totalWeight, fScoresByRank[ranks[i]]);
+        }
+
+        Arrays.sort(ranks);
+
+        final float missPointsAtHits = table.getMissPoints(numMembers, fScoresByRank.length);
+        for (int k = 0; k < numMembers; k++) {
+            hitPoints[k] = table.getHitPoints(fScoresByRank[ranks[k]], totalWeight, numMembers);
+            missPoints[k] = missPointsAtHits;
+        }
+
+        return missPointsAtHits;
+    }
+
+    public boolean isSparse() {
+        return fSparse;
     }
 
     public int getNumGeneSets() {
@@ -134,15 +348,56 @@ public class GeneSetCohort {
     }
 
     public GeneSetCohort clone(final GeneSet[] gsets) {
-        return new GeneSetCohort(fOrigTable, getRankedList(), gsets, GeneToGeneSetMap.generateGeneToGenesetMap(gsets));
+        if (fSparse) {
+            // from now on a rebind of this cohort must not write into the arrays the clone is reading
+            this.fSharedByRankArrays = true;
+            return new GeneSetCohort(this, gsets);
+        }
+
+        return new GeneSetCohort(fOrigTable, getRankedList(), gsets);
+    }
+
+    int[] getHitRanks(final int gsetNum) {
+        return fHitRanks[gsetNum];
+    }
+
+    float[] getHitPoints(final int gsetNum) {
+        return fHitPoints[gsetNum];
     }
 
-    public double getHitPoints(final int gsetNum, final String geneName) {
-        return fGeneSetScoringTables[gsetNum].getHitScore(geneName);
+    float[] getMissPoints(final int gsetNum) {
+        return fMissPoints[gsetNum];
     }
 
-    public double getMissPoints(final int gsetNum, final String geneName) {
-        return fGeneSetScoringTables[gsetNum].getMissScore(geneName);
+    float getLastMissPoints(final int gsetNum) {
+        return fLastMissPoints[gsetNum];
+    }
+
+    // @note Justin Guinney's addition, now by rank rather than by gene name
+    int[] genesetIndicesAtRank(final int rank) {
+        if (fGeneSetIndicesAtRank == null) {
+            final int[] numGeneSetsAtRank = new int[getNumLabels()];
+            for (int g = 0; g < fGeneSets.length; g++) {
+                for (int k = 0; k < fHitRanks[g].length; k++) {
+                    numGeneSetsAtRank[fHitRanks[g][k]]++;
+                }
+            }
+
+            final int[][] indices = new int[numGeneSetsAtRank.length][];
+            for (int g = 0; g < fGeneSets.length; g++) {
+                for (int k = 0; k < fHitRanks[g].length; k++) {
+                    final int r = fHitRanks[g][k];
+                    if (indices[r] == null) {
+                        indices[r] = new int[numGeneSetsAtRank[r]];
+                        numGeneSetsAtRank[r] = 0;
+                    }
+                    indices[r][numGeneSetsAtRank[r]++] = g;
+                }
+            }
+            this.fGeneSetIndicesAtRank = indices;
+        }
+
+        return fGeneSetIndicesAtRank[rank];
     }
 
     public static class Generator {
@@ -155,8 +410,18 @@ public class GeneSetCohort {
             this.fOrigTable = scoringTable;
         }
 
+        public String getScoringTableName() {
+            return fOrigTable.getName();
+        }
+
+        /**
+         * @return true if the cohorts made get the sparse ES engine (see GeneSetScoringTables.isSparseScorable)
+         */
+        public boolean isSparseScorable() {
+            return GeneSetScoringTables.isSparseScorable(fOrigTable);
+        }
+
         public GeneSetCohort createGeneSetCohort(final RankedList rl, final GeneSet[] gsets, final boolean realRl) {
-            GeneToGeneSetMap g2gsetMap = GeneToGeneSetMap.generateGeneToGenesetMap(gsets);
             if (realRl && fOrigTable instanceof GeneSetScoringTables.WeightedDoubleSidedAs) {
                 log.warn("### SETTING REAL RL: " + rl.getName());
                 ((GeneSetScoringTables.WeightedDoubleSidedAs) fOrigTable).setReal(rl);
@@ -167,7 +432,7 @@ public class GeneSetCohort {
                 ((GeneSetScoringTables.WeightedDoubleSidedAs1) fOrigTable).setReal(rl);
             }
 
-            return new GeneSetCohort(fOrigTable, rl, gsets, g2gsetMap);
+            return new GeneSetCohort(fOrigTable, rl, gsets);
         }
     }
-}
\ No newline at end of file
+}
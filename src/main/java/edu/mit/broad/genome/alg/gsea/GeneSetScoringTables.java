@@ -45,6 +45,36 @@ public class GeneSetScoringTables {
         throw new RuntimeException("Cannot lookup GeneSetScoringTable for: " + obj);
     }
 
+    /**
+     * Scoring schemes where the points of a gene set depend only on the ranked list scores of its
+     * members (and not on their names or on where the real list put them). Gene sets under these are
+     * weighted straight from the scores by rank and their null ES is computed sparsely, from the hit
+     * ranks alone (see KSCore.calculateES)
+     */
+    public interface RankWeighted extends GeneSetScoringTable {
+
+        // accumulated one member at a time, in member order, exactly as the table itself does
+        public float addToTotalWeight(final float totalWeight, final float score);
+
+        public float getHitPoints(final float score, final float totalWeight, final int numMembers);
+
+        public float getMissPoints(final int numMembers, final int numLabels);
+    }
+
+    /**
+     * @return true if gene sets scored with this table get the sparse (hit ranks only) ES engine
+     * rather than a walk down the whole ranked list
+     */
+    public static boolean isSparseScorable(final GeneSetScoringTable table) {
+        return table instanceof RankWeighted;
+    }
+
+    private static void checkNonEmpty(final int numMembers) {
+        if (numMembers == 0) {
+            throw new IllegalArgumentException("Number of members in gene set cannot be 0");
+        }
+    }
+
 
     static abstract class AbstractScoringTable implements GeneSetScoringTable {
 
@@ -71,7 +101,7 @@ public class GeneSetScoringTables {
     }
 
     // classic classic scheme (classic)
-    public static class Classic extends AbstractScoringTable {
+    public static class Classic extends AbstractScoringTable implements RankWeighted {
 
         private static final String NAME = "classic";
         // compute penalties
@@ -117,6 +147,18 @@ public class GeneSetScoringTables {
             return misspoints;
         }
 
+        public float addToTotalWeight(final float totalWeight, final float score) {
+            return totalWeight;
+        }
+
+        public float getHitPoints(final float score, final float totalWeight, final int numMembers) {
+            return 1.0f / (float) numMembers;
+        }
+
+        public float getMissPoints(final int numMembers, final int numLabels) {
+            return 1.0f / ((float) numLabels - (float) numMembers);
+        }
+
     }
 
     // Needed as cdna give some nans for the class metric
@@ -129,7 +171,7 @@ public class GeneSetScoringTables {
     }
 
 
-    public static class Weighted extends AbstractScoringTable {
+    public static class Weighted extends AbstractScoringTable implements RankWeighted {
 
         private static final String NAME = "weighted";
 
@@ -187,10 +229,23 @@ public class GeneSetScoringTables {
         public float getMissScore(String name) {
             return miss_score;
         }
+
+        public float addToTotalWeight(final float totalWeight, final float score) {
+            return totalWeight + _abs(score);
+        }
+
+        public float getHitPoints(final float score, final float totalWeight, final int numMembers) {
+            return _abs(score) / totalWeight;
+        }
+
+        public float getMissPoints(final int numMembers, final int numLabels) {
+            checkNonEmpty(numMembers);
+            return 1.0f / ((float) numLabels - (float) numMembers);
+        }
     } // End class Weighted
 
 
-    public static class WeightedSquared extends AbstractScoringTable {
+    public static class WeightedSquared extends AbstractScoringTable implements RankWeighted {
 
         private static final String NAME = "weighted_p2";
 
@@ -245,9 +300,22 @@ public class GeneSetScoringTables {
         public float getMissScore(String name) {
             return miss_score;
         }
+
+        public float addToTotalWeight(final float totalWeight, final float score) {
+            return totalWeight + score * score;
+        }
+
+        public float getHitPoints(final float score, final float totalWeight, final int numMembers) {
+            return (score * score) / totalWeight;
+        }
+
+        public float getMissPoints(final int numMembers, final int numLabels) {
+            checkNonEmpty(numMembers);
+            return 1.0f / ((float) numLabels - (float) numMembers);
+        }
     } // End class WeightedSquared
 
-    public static class WeightedOnePointFive extends AbstractScoringTable {
+    public static class WeightedOnePointFive extends AbstractScoringTable implements RankWeighted {
 
         private static final String NAME = "weighted_p1.5";
 
@@ -305,6 +373,20 @@ public class GeneSetScoringTables {
         public float getMissScore(String name) {
             return miss_score;
         }
+
+        public float addToTotalWeight(final float totalWeight, final float score) {
+            return (float) (totalWeight + Math.pow(score, 1.5));
+        }
+
+        public float getHitPoints(final float score, final float totalWeight, final int numMembers) {
+            float ss = (float) Math.pow(score, 0.5);
+            return ss / totalWeight;
+        }
+
+        public float getMissPoints(final int numMembers, final int numLabels) {
+            checkNonEmpty(numMembers);
+            return 1.5f / ((float) numLabels - (float) numMembers);
+        }
     } // End class WeightedHalf
 
     public static class WeightedDoubleSidedAs extends AbstractScoringTable {
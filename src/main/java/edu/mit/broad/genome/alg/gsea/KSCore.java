@@ -5,11 +5,10 @@ package edu.mit.broad.genome.alg.gsea;
 
 import java.util.Arrays;
 
+import edu.mit.broad.genome.math.NullScoreStore;
 import edu.mit.broad.genome.math.Vector;
-import edu.mit.broad.genome.math.XMath;
 import edu.mit.broad.genome.objects.RankedList;
 import edu.mit.broad.genome.objects.esmatrix.db.EnrichmentScore;
-import gnu.trove.TFloatArrayList;
 
 /**
  * This is the core class that implements the Kolmogorov-Smirnov algorithm
@@ -20,7 +19,7 @@ public class KSCore {
 
     /**
      * Class Constructor.
-     * Stateless
+     * Stateless (apart from per thread scratch space for the null mode)
      */
     public KSCore() {
     }
@@ -38,91 +37,263 @@ public class KSCore {
         return ess;
     }
 
+    /**
+     * Null mode: only the ES of each gene set (same values as calculateKSScore) and nothing else.
+     * The result is the only allocation.
+     */
+    public float[] calculateES(final GeneSetCohort gcoh) {
+        final float[] scratch = calculateES_into_scratch(gcoh);
+        final float[] ess = new float[gcoh.getNumGeneSets()];
+        System.arraycopy(scratch, 0, ess, 0, ess.length);
+        return ess;
+    }
+
+    /**
+     * Null mode: only the ES of each gene set, written into column col of rndEss
+     * (row g of rndEss holds the null distribution of gene set g). Allocates nothing once
+     * the calling thread has warmed up.
+     */
+    public void calculateES(final GeneSetCohort gcoh, final NullScoreStore rndEss, final int col) {
+        rndEss.setColumn(col, calculateES_into_scratch(gcoh));
+    }
+
+    /**
+     * Null mode for gene set permutations: the ES of a random gene set whose members are the features at ranks
+     * (none repeated, in the order drawn) of the ranked list of gcoh. The same value as calculateES of
+     * gcoh.clone of a GeneSet of their names (in that order), but with no GeneSet or name lookups.
+     * Sorts ranks. Sparse cohorts only (see GeneSetCohort.isSparse)
+     */
+    public float calculateES(final GeneSetCohort gcoh, final int[] ranks) {
+        if (!gcoh.isSparse()) {
+            throw new IllegalArgumentException("Only sparse cohorts can score sets of ranks");
+        }
+
+        final Scratch scratch = fScratch.get();
+        scratch.ensureHitCapacity(ranks.length);
+        final float lastMissPoints = gcoh.compileRandom(ranks, scratch.hitPoints, scratch.missPoints);
+        return calculateES_sparse(ranks, scratch.hitPoints, scratch.missPoints, lastMissPoints, gcoh.getNumLabels());
+    }
+
+    // @note the returned array is the callers threads scratch and is only good until its next call
+    private float[] calculateES_into_scratch(final GeneSetCohort gcoh) {
+        if (gcoh == null) {
+            throw new IllegalArgumentException("Param gcoh cannot be null");
+        }
+
+        final int numGeneSets = gcoh.getNumGeneSets();
+        final int numLabels = gcoh.getNumLabels();
+
+        final Scratch scratch = fScratch.get();
+        scratch.ensureCapacity(numGeneSets);
+
+        if (gcoh.isSparse()) {
+            for (int g = 0; g < numGeneSets; g++) {
+                scratch.ess[g] = calculateES_sparse(gcoh.getHitRanks(g), gcoh.getHitPoints(g), gcoh.getMissPoints(g),
+                        gcoh.getLastMissPoints(g), numLabels);
+            }
+            return scratch.ess;
+        }
+
+        final float[] ess_maxdev = scratch.ess;
+        final double[] runningScores = scratch.runningScores;
+        final int[] hitCnt = scratch.hitCnt;
+        final int[] genesetJumps = scratch.genesetJumps;
+        Arrays.fill(ess_maxdev, 0, numGeneSets, 0f);
+        Arrays.fill(runningScores, 0, numGeneSets, 0d);
+        Arrays.fill(hitCnt, 0, numGeneSets, 0);
+        Arrays.fill(genesetJumps, 0, numGeneSets, -1);
+
+        // The walk is the same as in calculateKSScore_all_modes (so as to give the very same floats),
+        // less everything that only feeds the deep info and the rank / score at the ES
+        for (int r = 0; r < numLabels; r++) {
+
+            final boolean isLastRun = r == (numLabels - 1);
+            final int[] genesetIndices = isLastRun ? null : gcoh.genesetIndicesAtRank(r);
+
+            if (!isLastRun && genesetIndices == null) {
+                continue;
+            }
+
+            final int numIndices = isLastRun ? numGeneSets : genesetIndices.length;
+            for (int i = 0; i < numIndices; i++) {
+                final int g = isLastRun ? i : genesetIndices[i];
+                final int[] hitRanks = gcoh.getHitRanks(g);
+                final int k = hitCnt[g];
+                final boolean isHit = k < hitRanks.length && hitRanks[k] == r;
+
+                int gap = r - genesetJumps[g] - 1;
+                if (gap > 0) {
+                    final double missPoints = isHit ? gcoh.getMissPoints(g)[k] : gcoh.getLastMissPoints(g);
+                    runningScores[g] -= gap * missPoints;
+
+                    if (Math.abs(ess_maxdev[g]) < Math.abs(runningScores[g])) {
+                        ess_maxdev[g] = (float) runningScores[g];
+                    }
+                }
+
+                if (!isHit) {
+                    runningScores[g] -= gcoh.getLastMissPoints(g);
+                } else {
+                    genesetJumps[g] = r;
+                    double sr = gcoh.getHitPoints(g)[k];
+                    if (Double.isNaN(sr) || Double.isInfinite(sr)) {
+                        sr = 0.000001d;
+                    }
+
+                    runningScores[g] += sr;
+                    hitCnt[g]++;
+                }
+
+                if (Math.abs(ess_maxdev[g]) < Math.abs(runningScores[g])) {
+                    ess_maxdev[g] = (float) runningScores[g];
+                }
+            }
+        }
+
+        return ess_maxdev;
+    }
+
+    /**
+     * Sparse engine: the ES of one gene set from its hit ranks alone -- O(# hits) instead of O(# labels).
+     * Between two hits the running sum only goes down, and in steps of the same size, so the max deviation
+     * is always at a hit or at the rank just before one (or at / just before the last rank).
+     * Does the same arithmetic, in the same order, as the full walk so the ES is the same float.
+     */
+    static float calculateES_sparse(final int[] hitRanks, final float[] hitPoints, final float[] missPoints,
+                                    final float lastMissPoints, final int numLabels) {
+        double runningScore = 0;
+        float es = 0;
+        int prevHit = -1;
+        for (int k = 0; k < hitRanks.length; k++) {
+            final int r = hitRanks[k];
+            final int gap = r - prevHit - 1;
+            if (gap > 0) {
+                runningScore -= gap * (double) missPoints[k];
+                if (Math.abs(es) < Math.abs(runningScore)) {
+                    es = (float) runningScore;
+                }
+            }
+
+            double sr = hitPoints[k];
+            if (Double.isNaN(sr) || Double.isInfinite(sr)) {
+                sr = 0.000001d;
+            }
+
+            runningScore += sr;
+            if (Math.abs(es) < Math.abs(runningScore)) {
+                es = (float) runningScore;
+            }
+            prevHit = r;
+        }
+
+        final int lastRank = numLabels - 1;
+        if (prevHit < lastRank) {
+            final int gap = lastRank - prevHit - 1;
+            if (gap > 0) {
+                runningScore -= gap * (double) lastMissPoints;
+                if (Math.abs(es) < Math.abs(runningScore)) {
+                    es = (float) runningScore;
+                }
+            }
+
+            runningScore -= lastMissPoints;
+            if (Math.abs(es) < Math.abs(runningScore)) {
+                es = (float) runningScore;
+            }
+        }
+
+        return es;
+    }
+
+    private final ThreadLocal<Scratch> fScratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Per thread working arrays for the null mode kernel, grown as needed and never shrunk
+     */
+    private static class Scratch {
+        private float[] ess = new float[0];
+        private double[] runningScores = new double[0];
+        private int[] hitCnt = new int[0];
+        private int[] genesetJumps = new int[0];
+        private float[] hitPoints = new float[0];
+        private float[] missPoints = new float[0];
+
+        private void ensureCapacity(final int numGeneSets) {
+            if (ess.length < numGeneSets) {
+                ess = new float[numGeneSets];
+                runningScores = new double[numGeneSets];
+                hitCnt = new int[numGeneSets];
+                genesetJumps = new int[numGeneSets];
+            }
+        }
+
+        private void ensureHitCapacity(final int numHits) {
+            if (hitPoints.length < numHits) {
+                hitPoints = new float[numHits];
+                missPoints = new float[numHits];
+            }
+        }
+    }
+
     // Justin Guinneys implementation
+    // The gene sets come precompiled (GeneSetCohort) into their hit ranks and hit / miss points, so the
+    // walk down the ranked list is on primitives only.
     private EnrichmentScoreCohort[] calculateKSScore_all_modes(final GeneSetCohort gcoh,
                                                                final boolean storeDeep) {
         if (gcoh == null) {
             throw new IllegalArgumentException("Param gcoh cannot be null");
         }
 
-        TFloatArrayList[] scoresAtEachHitIndex = null;
         final int numGeneSets = gcoh.getNumGeneSets();
-        
+        final int numLabels = gcoh.getNumLabels();
+
         final int[] rankAtMaxEs = new int[numGeneSets];
         final float[] scoresAtMaxEs = new float[numGeneSets];
+
+        // Also store every point for nicer es plots when run from memory
+        float[][] scoresAtEachHitIndex = null;
+        float[][] scoresAtEachPoint = null;
+        int[][] hitIndices = null;
         if (storeDeep) {
-            scoresAtEachHitIndex = new TFloatArrayList[numGeneSets];
-            // init
+            scoresAtEachHitIndex = new float[numGeneSets][];
+            scoresAtEachPoint = new float[numGeneSets][];
+            hitIndices = new int[numGeneSets][];
             for (int g = 0; g < numGeneSets; g++) {
-                scoresAtEachHitIndex[g] = new TFloatArrayList();
+                scoresAtEachHitIndex[g] = new float[gcoh.getHitRanks(g).length];
+                scoresAtEachPoint[g] = new float[numLabels];
+                hitIndices[g] = new int[gcoh.getNumTrue(g)]; // @note members not in the rl stay as trailing 0s
             }
         }
 
-        // Also store every point for nicer es plots when run from memory
-        Vector[] scoresAtEachPoint = new Vector[numGeneSets];
-        // init
-        int numLabels = gcoh.getNumLabels();
-        for (int g = 0; g < numGeneSets; g++) {
-            scoresAtEachPoint[g] = new Vector(numLabels);
-        }
-
-        // always filled as needed by mann whitney (even if it isnt saved after here)
-        final HitIndices[] hitIndices = new HitIndices[numGeneSets];
-        for (int g = 0; g < numGeneSets; g++) {
-            //log.debug("gene set: " + gcoh.getGeneSet(g).getName() + " numTrue: " + gcoh.getNumTrue(g) + " numMembers: " + gcoh.getGeneSet(g).getNumMembers());
-            hitIndices[g] = new HitIndices(gcoh.getNumTrue(g));
-        }
-
         final float[] ess_maxdev = new float[numGeneSets];
         final double[] runningScores = new double[numGeneSets];
         final int[] hitCnt = new int[numGeneSets];
 
-        final float[] ess_pos_list = new float[numGeneSets];
-        
-        final int[] rankAtMaxEs_pos_list = new int[numGeneSets];
-        final float[] scoresAtMaxEs_pos_list = new float[numGeneSets];
-
-        final float[] ess_pos_list_maxdev = new float[numGeneSets];
-        final int[] rankAtMaxEs_pos_list_maxdev = new int[numGeneSets];
-        final float[] scoresAtMaxEs_pos_list_maxdev = new float[numGeneSets];
-
-        final float[] ess_neg_list = new float[numGeneSets];
-        final int[] rankAtMaxEs_neg_list = new int[numGeneSets];
-        final float[] scoresAtMaxEs_neg_list = new float[numGeneSets];
-
-        final float[] ess_neg_list_maxdev = new float[numGeneSets];
-        final int[] rankAtMaxEs_neg_list_maxdev = new int[numGeneSets];
-        final float[] scoresAtMaxEs_neg_list_maxdev = new float[numGeneSets];
-
         final int[] genesetJumps = new int[numGeneSets];
         Arrays.fill(genesetJumps, -1);
 
+        final int[] allGeneSetIndices = new int[numGeneSets];
+        for (int g = 0; g < numGeneSets; g++) {
+            allGeneSetIndices[g] = g;
+        }
+
         final RankedList rl = gcoh.getRankedList();
 
         // START JG CHANGES //
         // Note that this following loop has been found to be very important to overall
         // performance, so be very careful about changes here.
-        
-        final int rlSize = rl.getSize();
-        for (int r = 0; r < rlSize; r++) {
-
-            final boolean isLastRun = r == (rlSize - 1);
-
-            String rowName = rl.getRankName(r);
-            final float corr = rl.getScore(r);
-            boolean posList = XMath.isPositive(corr);
-
-            int[] genesetIndices = null;
-            if (isLastRun) {
-                // for the last run, we want to iterate over all genesets
-                genesetIndices = new int[numGeneSets];
-                for (int i = 0; i < genesetIndices.length; ++i) {
-                    genesetIndices[i] = i;
-                }
-            } else {
-                // otherwise, we only care about those genesets associated with this gene
-                genesetIndices = gcoh.genesetIndicesForGene(rowName);
-            }
+
+        for (int r = 0; r < numLabels; r++) {
+
+            final boolean isLastRun = r == (numLabels - 1);
+
+            // for the last run, we want to iterate over all genesets
+            // otherwise, we only care about those genesets associated with this gene
+            final int[] genesetIndices = isLastRun ? allGeneSetIndices : gcoh.genesetIndicesAtRank(r);
 
             // gene not in any geneset
             if (genesetIndices == null) {
@@ -130,16 +301,22 @@ public class KSCore {
             }
 
             for (int i = 0; i < genesetIndices.length; i++) {
-                int g = genesetIndices[i];
+                final int g = genesetIndices[i];
+                final int[] hitRanks = gcoh.getHitRanks(g);
+                final int k = hitCnt[g];
+                final boolean isHit = k < hitRanks.length && hitRanks[k] == r;
+
                 int gap = r - genesetJumps[g] - 1;
                 if (gap > 0) {
-                    double missPoints = gcoh.getMissPoints(g, rowName);
+                    final double missPoints = isHit ? gcoh.getMissPoints(g)[k] : gcoh.getLastMissPoints(g);
 
                     // backfill - this typically only happens on 'real', not permutations
-                    double trun = runningScores[g];
-                    for (int j = genesetJumps[g] + 1; j < r; j++) {
-                        trun -= missPoints;
-                        scoresAtEachPoint[g].setElement(j, trun);
+                    if (storeDeep) {
+                        double trun = runningScores[g];
+                        for (int j = genesetJumps[g] + 1; j < r; j++) {
+                            trun -= missPoints;
+                            scoresAtEachPoint[g][j] = (float) trun;
+                        }
                     }
 
                     runningScores[g] -= gap * missPoints;
@@ -151,21 +328,21 @@ public class KSCore {
                     }
                 }
 
-                if (isLastRun && !gcoh.isMember(i, rowName)) {
-                    runningScores[g] -= gcoh.getMissPoints(g, rowName);
+                if (!isHit) { // only ever on the last run
+                    runningScores[g] -= gcoh.getLastMissPoints(g);
                 } else {
                     genesetJumps[g] = r;
-                    double sr = gcoh.getHitPoints(g, rowName);
+                    double sr = gcoh.getHitPoints(g)[k];
                     if (Double.isNaN(sr) || Double.isInfinite(sr)) { // does this if the total weight is also 0
                         sr = 0.000001d;
                     }
 
                     runningScores[g] += sr;
-
-                    hitIndices[g].hitsIndices[hitCnt[g]++] = r;
+                    hitCnt[g]++;
 
                     if (storeDeep) {// Only store for hits
-                        scoresAtEachHitIndex[g].add((float) runningScores[g]);
+                        hitIndices[g][k] = r;
+                        scoresAtEachHitIndex[g][k] = (float) runningScores[g];
                     }
 
                 } // End last run loop
@@ -173,95 +350,39 @@ public class KSCore {
                 // END JG CHANGES //
 
                 // @note OUTside the loop
-                scoresAtEachPoint[g].setElement(r, (float) runningScores[g]);
+                if (storeDeep) {
+                    scoresAtEachPoint[g][r] = (float) runningScores[g];
+                }
 
                 if (Math.abs(ess_maxdev[g]) < Math.abs(runningScores[g])) { // @note abs here
                     ess_maxdev[g] = (float) runningScores[g]; // @note no abs here!
                     rankAtMaxEs[g] = r;
-                    scoresAtMaxEs[g] = corr;
-                }
-
-                // Then the by pos/neg list stuff
-                // @note NO abs in some cases - we want max POS (or NEG) deviations from zero
-                if (posList) {
-                    if (ess_pos_list[g] < runningScores[g]) { // @note NO abs
-                        ess_pos_list[g] = (float) runningScores[g];
-                        rankAtMaxEs_pos_list[g] = r;
-                        scoresAtMaxEs_pos_list[g] = corr;
-                    }
-
-                    if (Math.abs(ess_pos_list_maxdev[g]) < Math.abs(runningScores[g])) { // @note YES abs
-                        ess_pos_list_maxdev[g] = (float) runningScores[g];
-                        rankAtMaxEs_pos_list_maxdev[g] = r;
-                        scoresAtMaxEs_pos_list_maxdev[g] = corr;
-                    }
-
-                } else {
-                    if (ess_neg_list[g] > runningScores[g]) { // Note NO abs
-                        ess_neg_list[g] = (float) runningScores[g];
-                        rankAtMaxEs_neg_list[g] = r;
-                        scoresAtMaxEs_neg_list[g] = corr;
-                    }
-
-                    if (Math.abs(ess_neg_list_maxdev[g]) < Math.abs(runningScores[g])) { // @note abs
-                        ess_neg_list_maxdev[g] = (float) runningScores[g];
-                        rankAtMaxEs_neg_list_maxdev[g] = r;
-                        scoresAtMaxEs_neg_list_maxdev[g] = corr;
-                    }
+                    scoresAtMaxEs[g] = rl.getScore(r);
                 }
             }
         }
 
-
         final EnrichmentScoreCohort[] cohorts = new EnrichmentScoreCohort[numGeneSets];
 
         for (int g = 0; g < numGeneSets; g++) {
-            final float mw = (float) XMath.mannWhitney(hitIndices[g].hitsIndices, rlSize);
-
             cohorts[g] = new EnrichmentScoreCohort();
             cohorts[g].es_maxdev_style = new EnrichmentScoreImplSlim(ess_maxdev[g], rankAtMaxEs[g], scoresAtMaxEs[g], cohorts[g]);
-            cohorts[g].es_on_pos_list = new EnrichmentScoreImplSlim(ess_pos_list[g], rankAtMaxEs_pos_list[g], scoresAtMaxEs_pos_list[g], cohorts[g]);
-            cohorts[g].es_on_pos_list_maxdev = new EnrichmentScoreImplSlim(ess_pos_list_maxdev[g], rankAtMaxEs_pos_list_maxdev[g], scoresAtMaxEs_pos_list_maxdev[g], cohorts[g]);
-            cohorts[g].es_on_neg_list = new EnrichmentScoreImplSlim(ess_neg_list[g], rankAtMaxEs_neg_list[g], scoresAtMaxEs_neg_list[g], cohorts[g]);
-            cohorts[g].es_on_neg_list_maxdev = new EnrichmentScoreImplSlim(ess_neg_list_maxdev[g], rankAtMaxEs_neg_list_maxdev[g], scoresAtMaxEs_neg_list_maxdev[g], cohorts[g]);
-
-            cohorts[g].mw = mw;
             cohorts[g].numHits = gcoh.getNumTrue(g);
 
             if (storeDeep) {
-                cohorts[g].fHitIndices_opt = hitIndices[g].hitsIndices;
-                cohorts[g].scoresAtEachHitIndex_opt = new Vector(scoresAtEachHitIndex[g]);
+                cohorts[g].fHitIndices_opt = hitIndices[g];
+                cohorts[g].scoresAtEachHitIndex_opt = new Vector(scoresAtEachHitIndex[g], true);
+                cohorts[g].scoresAtEachPoint_opt = new Vector(scoresAtEachPoint[g], true);
             }
-
-            cohorts[g].scoresAtEachPoint_opt = scoresAtEachPoint[g]; //new Vector(scoresAtEachPoint[g]);
-
         }
 
         return cohorts;
     }
 
-
-    protected static class HitIndices {
-        int[] hitsIndices;
-
-        HitIndices(int len) {
-            this.hitsIndices = new int[len];
-        }
-
-    }
-
     private static class EnrichmentScoreCohort {
 
         private EnrichmentScore es_maxdev_style;
 
-        private EnrichmentScore es_on_pos_list_maxdev;
-        private EnrichmentScore es_on_pos_list;
-
-        private EnrichmentScore es_on_neg_list;
-        private EnrichmentScore es_on_neg_list_maxdev;
-
-        private float mw;
-
         private int numHits;
 
         // @note deep only
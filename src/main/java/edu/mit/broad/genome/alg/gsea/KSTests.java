@@ -12,13 +12,29 @@ import edu.mit.broad.genome.objects.*;
 import edu.mit.broad.genome.objects.esmatrix.db.*;
 import edu.mit.broad.genome.objects.strucs.DatasetTemplate;
 import edu.mit.broad.genome.objects.strucs.TemplateRandomizerType;
+import edu.mit.broad.genome.utils.ParallelLoops;
 import edu.mit.broad.vdb.chip.Chip;
 import org.apache.log4j.Logger;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
  * Kolmogorov-Smirnov Enrichment Test related methods
@@ -36,18 +52,123 @@ public class KSTests {
 
     private static final int LOG_FREQ = 5;
 
+    // Number of permutations handed to each worker per batch; bounds the number of rnd ranked lists held at once.
+    // For the batchable metrics this is also the block of templates scored together (see BatchedMetric)
+    private static final int PERMS_PER_WORKER_BATCH = 4;
+
+    // The first batch of gene set permutations when they are stopped early; later batches double the number drawn
+    private static final int ADAPTIVE_FIRST_BATCH = 100;
+
     private PrintStream sout;
 
+    private final int fNumThreads;
+
+    private final String fNullStoreType;
+
+    private final int fStopAfterExceedances;
+
+    private final PermutationCheckpoint fCheckpoint_opt;
+
+    private final int fNullSizeBin;
+
     /**
      * Class Constructor.
      * Almost Stateless
      * os -> for quick stdout NOT for logging
      */
     public KSTests(final PrintStream os) {
+        this(os, 1);
+    }
+
+    /**
+     * Class Constructor.
+     * numThreads -> number of workers used for the permutations. 1 runs everything on the calling thread
+     */
+    public KSTests(final PrintStream os, final int numThreads) {
+        this(os, numThreads, NullScoreStores.HEAP);
+    }
+
+    /**
+     * Class Constructor.
+     * nullStoreType -> where the rnd ess are held, one of NullScoreStores.createStoreTypeNames()
+     */
+    public KSTests(final PrintStream os, final int numThreads, final String nullStoreType) {
+        this(os, numThreads, nullStoreType, 0);
+    }
+
+    /**
+     * Class Constructor.
+     * stopAfterExceedances -> if more than 0, the gene set permutations of each set are stopped (at the end of a
+     * batch) once this many of its random scores are more extreme than its real score, as in the sequential
+     * Monte Carlo p-values of Besag and Clifford. nperm is then the most permutations any one set gets.
+     * 0 always does all nperm permutations. Has no effect on template permutations
+     */
+    public KSTests(final PrintStream os, final int numThreads, final String nullStoreType,
+                   final int stopAfterExceedances) {
+        this(os, numThreads, nullStoreType, stopAfterExceedances, null);
+    }
+
+    /**
+     * Class Constructor.
+     * checkpoint_opt -> where the completed permutations are saved as the run goes, and picked up from when
+     * resuming a run that was cut short. Null for none. If it is the checkpoint of a shard, only the permutations
+     * of the shard are done (and saved) and executeGsea returns null
+     */
+    public KSTests(final PrintStream os, final int numThreads, final String nullStoreType,
+                   final int stopAfterExceedances, final PermutationCheckpoint checkpoint_opt) {
+        this(os, numThreads, nullStoreType, stopAfterExceedances, checkpoint_opt, 0);
+    }
+
+    /**
+     * Class Constructor.
+     * nullSizeBin -> if more than 0, gene set permutations make one null distribution per bin of (qualified) gene
+     * set sizes, shared by all the gene sets in the bin, rather than one per gene set. Sizes s with the same
+     * s / nullSizeBin are in a bin, so 1 is a null per size. The null of a bin is that of the smallest size in it,
+     * which is the more spread out, so sets larger than that get (slightly) conservative p-values. Each set that
+     * shares a null reads its permutations from its own random offset into it, so that the permutation columns
+     * (which FWER and FDR are worked out across) are not the same draw for every set in the bin. 0 for a null per
+     * gene set. Cannot be used with stopAfterExceedances, which stops each set on its own real score. Has no effect
+     * on template permutations
+     */
+    public KSTests(final PrintStream os, final int numThreads, final String nullStoreType,
+                   final int stopAfterExceedances, final PermutationCheckpoint checkpoint_opt,
+                   final int nullSizeBin) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Param numThreads must be at least 1, got: " + numThreads);
+        }
+
+        if (!Arrays.asList(NullScoreStores.createStoreTypeNames()).contains(nullStoreType)) {
+            throw new IllegalArgumentException("Unknown null score store type: " + nullStoreType);
+        }
+
+        if (stopAfterExceedances < 0) {
+            throw new IllegalArgumentException("Param stopAfterExceedances cannot be negative: " + stopAfterExceedances);
+        }
+
+        if (nullSizeBin < 0) {
+            throw new IllegalArgumentException("Param nullSizeBin cannot be negative: " + nullSizeBin);
+        }
+
+        if (nullSizeBin > 0 && stopAfterExceedances > 0) {
+            throw new IllegalArgumentException("Null distributions shared by size cannot be stopped early");
+        }
+
         this.sout = os;
         this.core = new KSCore();
+        this.fNumThreads = numThreads;
+        this.fNullStoreType = nullStoreType;
+        this.fStopAfterExceedances = stopAfterExceedances;
+        this.fCheckpoint_opt = checkpoint_opt;
+        this.fNullSizeBin = nullSizeBin;
     }
 
+    public int getNumThreads() {
+        return fNumThreads;
+    }
+
+    /**
+     * @return null if only a shard of the permutations was run (see PermutationCheckpoint)
+     */
     public EnrichmentDb executeGsea(final DatasetTemplate dt, final GeneSet[] gsets, final int nperm, final Metric metric,
     		final SortMode sort, final Order order, final RandomSeedGenerator rst, final TemplateRandomizerType rt, 
     		final Map<String, Boolean> mps, final GeneSetCohort.Generator gcohgen, final boolean permuteTemplate, 
@@ -69,11 +190,18 @@ public class KSTests {
 		}
     }
 
+    /**
+     * @return null if only a shard of the permutations was run (see PermutationCheckpoint)
+     */
     public EnrichmentDb executeGsea(final RankedList rl_real, final GeneSet[] gsets, final int nperm, 
     		final RandomSeedGenerator rst, final Chip chip,final GeneSetCohort.Generator gcohgen) throws Exception {
         log.debug("!!!! Executing for: " + rl_real.getName() + " # features: " + rl_real.getSize());
 
         EnrichmentResult[] results = shuffleGeneSet_precannedRankedList(nperm, rl_real, null, gsets, chip, gcohgen, rst);
+        if (isShard()) {
+            return null;
+        }
+
         return new EnrichmentDb(rl_real.getName(),
                 rl_real, null, null, results, new Metrics.None(), new HashMap<String, Boolean>(), 
                 SortMode.REAL, Order.DESCENDING, nperm, null, null);
@@ -86,19 +214,42 @@ public class KSTests {
     		final Map<String, Boolean> metricParams, final Dataset ds, final Template template, final GeneSet[] gsets, 
     		final GeneSetCohort.Generator gcohgen, final TemplateRandomizerType rt, final RandomSeedGenerator rst, 
     		final int numMarkers, final List<RankedList> store_rnd_ranked_lists_here_opt) {
-        final Template[] rndTemplates = TemplateFactoryRandomizer.createRandomTemplates(nperm, template, rt, rst);
-        log.debug("Done generating rnd templates: " + rndTemplates.length);
+        RandomSeedGenerator rstUse = rst;
+        if (fCheckpoint_opt != null) {
+            final PermutationCheckpoint.Fingerprint fp = new PermutationCheckpoint.Fingerprint().add("template");
+            addToFingerprint(fp, ds);
+            fp.add(template.getAsString(false)).add(nperm).add(metric.getName()).add(sort.toString())
+                    .add(order.toString()).add(new TreeMap<String, Boolean>(metricParams).toString())
+                    .add(rt.toString()).add(numMarkers).add(gcohgen.getScoringTableName());
+            addToFingerprint(fp, gsets);
+            rstUse = beginCheckpoint(fp, rst);
+
+            if (store_rnd_ranked_lists_here_opt != null && fCheckpoint_opt.getNumDone() > 0) {
+                throw new IllegalArgumentException("The rnd ranked lists cannot be kept when resuming from a checkpoint");
+            }
+        }
+
+        // The rnd templates are drawn as the batches need them (serially, from rst) and let go of once scored
+        final TemplatePermutations perms = new TemplatePermutations(template, rt, rstUse);
 
-        log.debug("shuffleTemplate with -- nperm: " + rndTemplates.length + " Order: " + order + " Sort: " + sort + " gsets: " + gsets.length);
+        log.debug("shuffleTemplate with -- nperm: " + nperm + " Order: " + order + " Sort: " + sort + " gsets: " + gsets.length);
         final String dstName = NamingConventions.generateName(ds, template, true);
         final Chip chip = ds.getAnnot().getChip();
 
         final DatasetMetrics dm = new DatasetMetrics();
-        final RankedList rlReal;
-        PermutationTest ptest = new PermutationTest(dstName, numMarkers, rndTemplates.length, 
-                metric, sort, order, metricParams, ds, template, null, template.isCategorical());
 
-        rlReal = dm.scoreDataset(metric, sort, order, metricParams, ds, template);
+        // The class mean and the correlation metrics score a whole batch of templates in one pass over the
+        // data; the others are scored per permutation by the workers.
+        // @note the first permutation is drawn up front, as the batched metrics are set up from its template
+        final int[] perm0 = (nperm > 0) ? perms.next() : null;
+        final BatchedMetric batchedMetric = (nperm > 0) ?
+                dm.createBatchedMetric(metric, metricParams, ds, perms.createTemplate(perm0)) : null;
+
+        // @note the real template is always scored with the metric itself, so that the observed ranked list (and so
+        // its ES and leading edge) does not depend on nperm or on the permutation type; only the nulls are batched
+        final ScoredDataset rlReal = dm.scoreDataset(metric, sort, order, metricParams, ds, template);
+        PermutationTest ptest = new PermutationTest(dstName, numMarkers, nperm, 
+                metric, sort, order, metricParams, ds, template, null, template.isCategorical(), rlReal);
 
         // calc real scores
         if (rlReal.getSize() != ds.getNumRow()) {// sanity check
@@ -107,59 +258,178 @@ public class KSTests {
 
         final GeneSetCohort gcoh = gcohgen.createGeneSetCohort(rlReal, gsets, true); // @note ASSUME already qualified
         final EnrichmentScore[] realScores = core.calculateKSScore(gcoh, true); // need to store details as we need the hit indices
-        final Vector[] rndEss = new Vector[gsets.length];
-        for (int g = 0; g < gsets.length; g++) {
-            rndEss[g] = new Vector(rndTemplates.length);
-        }
-
-        // Each row is a "geneset", and each column a randomization
-        for (int c = 0; c < rndTemplates.length; c++) {
-            final RankedList rndRl = dm.scoreDataset(metric, sort, order, metricParams, ds, rndTemplates[c]);
+        final NullScoreStore rndEss = NullScoreStores.createStore(fNullStoreType, gsets.length, nperm, null);
+
+        // Each row is a "geneset", and each column a randomization.
+        // Every permutation is scored independently (the rnd templates of a batch are drawn before it is handed
+        // out) and only writes its own column of rndEss, so the workers need no coordination. The PermutationTest, the
+        // store list and the progress messages are however fed on this thread, in permutation order.
+        final Queue<GeneSetCohort> idleCohorts = new ConcurrentLinkedQueue<GeneSetCohort>();
+        // A shard draws (and drops) the rnd templates before its own, so that it gets the same ones a single run would
+        final int firstPerm = isShard() ? fCheckpoint_opt.getFirstIndex(nperm) : 0;
+        final int endPerm = isShard() ? fCheckpoint_opt.getEndIndex(nperm) : nperm;
+        perms.skip(Math.max(firstPerm - 1, 0));
+        final ExecutorService exec = createExecutor("perm-" + dstName);
+        try {
+            final int batchSize = fNumThreads * PERMS_PER_WORKER_BATCH;
+            final List<Future<RankedList>> batch = new ArrayList<Future<RankedList>>(batchSize);
+            for (int start = firstPerm; start < endPerm; start += batchSize) {
+                final int end = Math.min(start + batchSize, endPerm);
+                final RankedList[] rndRls = new RankedList[end - start];
+                final int[][] batchPerms = new int[end - start][];
+                for (int c = start; c < end; c++) {
+                    batchPerms[c - start] = (c == 0) ? perm0 : perms.next();
+                }
 
-            if (store_rnd_ranked_lists_here_opt != null) {
-                store_rnd_ranked_lists_here_opt.add(rndRl);
-            }
+                // Picked up from the checkpoint instead if done already
+                final float[][] saved = new float[end - start][];
+                boolean allSaved = true;
+                for (int c = start; c < end; c++) {
+                    saved[c - start] = (fCheckpoint_opt == null) ? null : fCheckpoint_opt.takeSaved(c);
+                    allSaved &= saved[c - start] != null;
+                }
 
-        	// TODO: eval for performance.
-        	// Could use sout.print() instead, to avoid String concat.  Could also try to avoid the modulo call:
-        	//   int nextLogPoint = LOG_FREQ; // outside loop
-        	//   if (c == nextLogPoint) { // inside loop
-        	//      // print message
-        	//      nextLogPoint += LOG_FREQ
-        	//   }
-            if (c % LOG_FREQ == 0) {
-                StringBuffer ib = new StringBuffer("Iteration: ").append(c + 1).append('/').append(rndTemplates.length);
-                ib.append(" for ").append(dstName);
-                //sout.println(ib.toString());    // dont use log!
-                System.out.println(ib.toString());
-            }
+                final Template[] rndTemplates = new Template[end - start];
+                for (int c = start; c < end && !allSaved; c++) {
+                    rndTemplates[c - start] = perms.createTemplate(batchPerms[c - start]);
+                }
 
-            // DO THE RND CALC
-            // @note better to just clone the existing real gcoh rather than generate a whole new one
-            // as only the ranked list has changed and not the feature or gene set content
-            final GeneSetCohort gcohRnd = gcohgen.createGeneSetCohort(rndRl, gsets, false);
-            //System.out.println("starting calc: " + gcoh.getNumGeneSets());
-            final EnrichmentScore[] rndScores = core.calculateKSScore(gcohRnd, false);
-            //System.out.println("done calc");
+                final double[][] rndScores = (allSaved || batchedMetric == null) ? null :
+                        batchedMetric.score(rndTemplates, 0, rndTemplates.length, exec, fNumThreads);
+                if (allSaved) {
+                    // nothing to score
+                } else if (exec == null) {
+                    for (int c = start; c < end; c++) {
+                        rndRls[c - start] = scoreTemplatePermutation(c, dm, metric, sort, order, metricParams, ds, 
+                                rndTemplates[c - start], (rndScores == null) ? null : rndScores[c - start], gsets, gcohgen, 
+                                idleCohorts, rndEss);
+                    }
+                } else {
+                    batch.clear();
+                    for (int c = start; c < end; c++) {
+                        final int perm = c;
+                        final Template rndTemplate = rndTemplates[c - start];
+                        final double[] scores_opt = (rndScores == null) ? null : rndScores[c - start];
+                        batch.add(exec.submit(new Callable<RankedList>() {
+                            public RankedList call() {
+                                return scoreTemplatePermutation(perm, dm, metric, sort, order, metricParams, ds, 
+                                        rndTemplate, scores_opt, gsets, gcohgen, idleCohorts, rndEss);
+                            }
+                        }));
+                    }
+                    for (int i = 0; i < rndRls.length; i++) {
+                        rndRls[i] = waitFor(batch.get(i));
+                    }
+                }
 
-            for (int g = 0; g < gsets.length; g++) {
-                rndEss[g].setElement(c, rndScores[g].getES());
+                for (int c = start; c < end; c++) {
+                    final RankedList rndRl = rndRls[c - start];
+                    if (store_rnd_ranked_lists_here_opt != null) {
+                        store_rnd_ranked_lists_here_opt.add(rndRl);
+                    }
+
+                    if (c % LOG_FREQ == 0) {
+                        StringBuffer ib = new StringBuffer("Iteration: ").append(c + 1).append('/').append(nperm);
+                        ib.append(" for ").append(dstName);
+                        //sout.println(ib.toString());    // dont use log!
+                        System.out.println(ib.toString());
+                    }
+
+                    if (saved[c - start] != null) {
+                        // the ES of every set, then the marker scores (see checkpointTemplatePermutation)
+                        final float[] record = saved[c - start];
+                        rndEss.setColumn(c, record);
+                        ptest.addRnd(Arrays.copyOfRange(record, gsets.length, record.length));
+                    } else if (fCheckpoint_opt != null) {
+                        checkpointTemplatePermutation(c, rndRl, ptest, rndEss);
+                    } else {
+                        ptest.addRnd(rndRl);
+                    }
+                }
+            }
+        } finally {
+            if (exec != null) {
+                exec.shutdownNow();
             }
 
-            ptest.addRnd(rndTemplates[c], rndRl);
-
+            if (fCheckpoint_opt != null) {
+                fCheckpoint_opt.finish();
+            }
         } // End computation loop
 
+        if (isShard()) {
+            log.info("Done permutations " + firstPerm + " to " + endPerm + " of " + nperm + " for shard: "
+                    + fCheckpoint_opt.getShardIndex());
+            return null;
+        }
+
         // 1 result for every gene set
         final EnrichmentResult[] results = new EnrichmentResult[gsets.length];
         for (int g = 0; g < gsets.length; g++) {
-            results[g] = new EnrichmentResult(rlReal, template, gsets[g], chip, realScores[g], rndEss[g], null);
+            results[g] = new EnrichmentResult(rlReal, template, gsets[g], chip, realScores[g], rndEss, g, null);
         }
 
         ptest.doCalc();
 
         return new EnrichmentDb(dstName, rlReal, ds, template,
-                results, metric, metricParams, sort, order, rndTemplates.length, null, ptest);
+                results, metric, metricParams, sort, order, nperm, null, ptest);
+    }
+
+    private boolean isShard() {
+        return fCheckpoint_opt != null && fCheckpoint_opt.isShard();
+    }
+
+    // Feeds the permutation to the ptest and saves what a resumed run needs of it: the ES of every set and the
+    // marker scores of the rnd ranked list
+    private void checkpointTemplatePermutation(final int c, final RankedList rndRl, final PermutationTest ptest,
+                                               final NullScoreStore rndEss) {
+        final float[] markerScores = ptest.createMarkerScores(rndRl);
+        ptest.addRnd(markerScores);
+
+        final int numSets = rndEss.getNumRow();
+        final float[] record = new float[numSets + markerScores.length];
+        rndEss.getColumn(c, record);
+        System.arraycopy(markerScores, 0, record, numSets, markerScores.length);
+        fCheckpoint_opt.add(c, record, record.length);
+    }
+
+    // The random source to draw the permutations from: rst, or that of the checkpointed run when resuming one
+    private RandomSeedGenerator beginCheckpoint(final PermutationCheckpoint.Fingerprint fp,
+                                                final RandomSeedGenerator rst) {
+        final Random rnd = fCheckpoint_opt.begin(fp.getHex(), rst.getRandom());
+        return (rnd == rst.getRandom()) ? rst : new RandomSeedGenerators.Restored(rnd);
+    }
+
+    private static void addToFingerprint(final PermutationCheckpoint.Fingerprint fp, final Dataset ds) {
+        fp.add(ds.getNumRow()).add(ds.getNumCol());
+        for (int c = 0; c < ds.getNumCol(); c++) {
+            fp.add(ds.getColumnName(c));
+        }
+
+        for (int r = 0; r < ds.getNumRow(); r++) {
+            fp.add(ds.getRowName(r));
+            final Vector row = ds.getRow(r);
+            for (int c = 0; c < row.getSize(); c++) {
+                fp.add(row.getElement(c));
+            }
+        }
+    }
+
+    private static void addToFingerprint(final PermutationCheckpoint.Fingerprint fp, final RankedList rl) {
+        fp.add(rl.getSize());
+        for (int r = 0; r < rl.getSize(); r++) {
+            fp.add(rl.getRankName(r)).add(rl.getScore(r));
+        }
+    }
+
+    private static void addToFingerprint(final PermutationCheckpoint.Fingerprint fp, final GeneSet[] gsets) {
+        fp.add(gsets.length);
+        for (int g = 0; g < gsets.length; g++) {
+            fp.add(gsets[g].getName()).add(gsets[g].getNumMembers());
+            for (int m = 0; m < gsets[g].getNumMembers(); m++) {
+                fp.add(gsets[g].getMember(m));
+            }
+        }
     }
 
     // ------------------------------------------------------------------------ //
@@ -176,39 +446,204 @@ public class KSTests {
 
         final EnrichmentScore[] real_scores = core.calculateKSScore(gcohReal, true); // @note usually always store deep for the real one
 
-        // The make rnd gene sets for every real one
-        for (int g = 0; g < gsetsReal.length; g++) {
-        	// TODO: eval for performance.
-        	// Could use sout.print() instead, to avoid String concat.  Could also try to avoid the modulo call:
-        	//   int nextLogPoint = LOG_FREQ; // outside loop
-        	//   if (g == nextLogPoint) { // inside loop
-        	//      // print message
-        	//      nextLogPoint += LOG_FREQ
-        	//   }
-            if (g % LOG_FREQ == 0) {
-                sout.println("shuffleGeneSet for GeneSet " + (g + 1) + "/" + gsetsReal.length + " nperm: " + nperm);
-            }
-
-            // now create random GeneSets and calc the ksscore for every rnd GeneSet
-            Vector rndEss;
-            if (nperm > 0) {
-                final GeneSet[] rndgsets = GeneSetGenerators.createRandomGeneSetsFixedSize(nperm, rlReal, gsetsReal[g], rst);
-                final GeneSetCohort gcohRnd = gcohReal.clone(rndgsets);
-                rndEss = new Vector(rndgsets.length);
-                final EnrichmentScore[] rnds = core.calculateKSScore(gcohRnd, false); // never store deep for rnds
-                for (int r = 0; r < rndgsets.length; r++) {
-                    rndEss.setElement(r, rnds[r].getES());
+        // The null distributions to make: one per gene set, or one per bin of sizes (see the class constructor),
+        // each scored with random sets the size of its representative (a smallest real set of the bin)
+        final int[] nullOfSet = new int[gsetsReal.length];
+        final int[] nullReps = createNullRepresentatives(rlReal, gsetsReal, nullOfSet);
+        if (fNullSizeBin > 0) {
+            sout.println("Sharing " + nullReps.length + " null distributions among " + gsetsReal.length + " gene sets");
+        }
+
+        RandomSeedGenerator rstUse = rst;
+        if (fCheckpoint_opt != null) {
+            final PermutationCheckpoint.Fingerprint fp = new PermutationCheckpoint.Fingerprint().add("gene_set");
+            addToFingerprint(fp, rlReal);
+            fp.add(nperm).add(fStopAfterExceedances).add(gcohgen.getScoringTableName());
+            addToFingerprint(fp, gsetsReal);
+            if (fNullSizeBin > 0) {
+                fp.add("null_size_bin").add(fNullSizeBin);
+            }
+            rstUse = beginCheckpoint(fp, rst);
+        }
+
+        // One seed per null, drawn serially, so that the random sets made for any given
+        // null do not depend on the order in which (or on which thread) the nulls are made
+        final long[] seeds = new long[nullReps.length];
+        for (int k = 0; k < nullReps.length; k++) {
+            seeds[k] = rstUse.getRandom().nextLong();
+        }
+
+        // And, when sharing, one column offset per gene set (see the class constructor)
+        final int[] colOffsets = new int[gsetsReal.length];
+        if (fNullSizeBin > 0 && nperm > 0) {
+            for (int g = 0; g < gsetsReal.length; g++) {
+                colOffsets[g] = rstUse.getRandom().nextInt(nperm);
+            }
+        }
+
+        // Filled a row (null) at a time, and rows may be short when the permutations are stopped early
+        final NullScoreStore rndEss = NullScoreStores.createRowStore(fNullStoreType, nullReps.length, Math.max(nperm, 0), null);
+
+        final AtomicInteger numStarted = new AtomicInteger(0);
+        final IntConsumer makeNull = new IntConsumer() {
+            public void accept(final int k) {
+                final int g = nullReps[k];
+                final int cnt = numStarted.getAndIncrement();
+                if (cnt % LOG_FREQ == 0) {
+                    if (fNullSizeBin > 0) {
+                        sout.println("shuffleGeneSet for size " + gsetsReal[g].getNumMembers(rlReal) + " ("
+                                + (cnt + 1) + "/" + nullReps.length + ") nperm: " + nperm);
+                    } else {
+                        sout.println("shuffleGeneSet for GeneSet " + (cnt + 1) + "/" + gsetsReal.length + " nperm: " + nperm);
+                    }
                 }
-            } else {
-                rndEss = new Vector(0);
+
+                final float[] saved = (fCheckpoint_opt == null) ? null : fCheckpoint_opt.takeSaved(k);
+                if (saved != null) {
+                    rndEss.setRow(k, saved, saved.length);
+                } else if (nperm > 0) {
+                    final float[] ess = (fStopAfterExceedances > 0)
+                            ? shuffleGeneSetAdaptive(nperm, rlReal, gsetsReal[g], gcohReal, real_scores[g].getES(),
+                                    new RandomSeedGenerators.Custom(seeds[k]))
+                            : shuffleGeneSet(nperm, rlReal, gsetsReal[g], gcohReal, new RandomSeedGenerators.Custom(seeds[k]));
+                    rndEss.setRow(k, ess, ess.length);
+                    if (fCheckpoint_opt != null) {
+                        fCheckpoint_opt.add(k, ess, ess.length);
+                    }
+                }
+            }
+        };
+
+        final ForkJoinPool pool = ParallelLoops.createPool(fNumThreads);
+        if (pool != null) {
+            primeForConcurrentReads(rlReal);
+        }
+
+        // A shard does only its own block of the nulls (all the seeds are drawn above, so it gets the same ones
+        // a single run would)
+        final int firstNull = isShard() ? fCheckpoint_opt.getFirstIndex(nullReps.length) : 0;
+        final int endNull = isShard() ? fCheckpoint_opt.getEndIndex(nullReps.length) : nullReps.length;
+        try {
+            ParallelLoops.forEach(pool, firstNull, endNull, 1, makeNull);
+        } finally {
+            ParallelLoops.shutdown(pool);
+            if (fCheckpoint_opt != null) {
+                fCheckpoint_opt.finish();
             }
+        }
 
-            results[g] = new EnrichmentResult(rlReal, t_opt, gsetsReal[g], chip_opt, real_scores[g], rndEss, null);
+        // @note the sets that share a null share its row of the store, not copies of it
+        final NullScoreStore rndEssOfSets = (fNullSizeBin > 0)
+                ? new NullScoreStores.RowMapped(rndEss, nullOfSet, colOffsets) : rndEss;
+        for (int g = 0; g < gsetsReal.length; g++) {
+            results[g] = new EnrichmentResult(rlReal, t_opt, gsetsReal[g], chip_opt, real_scores[g], rndEssOfSets,
+                    (fNullSizeBin > 0) ? g : nullOfSet[g], null);
         }
 
         return results;
     }
 
+    // The index of the gene set each null is made for (its representative), and into nullOfSet the null of each
+    // gene set. Without bins every gene set is its own null; with them, the bins are in order of size
+    private int[] createNullRepresentatives(final RankedList rlReal, final GeneSet[] gsetsReal, final int[] nullOfSet) {
+        if (fNullSizeBin == 0) {
+            final int[] reps = new int[gsetsReal.length];
+            for (int g = 0; g < gsetsReal.length; g++) {
+                reps[g] = g;
+                nullOfSet[g] = g;
+            }
+            return reps;
+        }
+
+        // bin -> the gene set of the smallest size in it (the first such, for the same reps whatever the order)
+        final TreeMap<Integer, Integer> repOfBin = new TreeMap<Integer, Integer>();
+        final int[] sizes = new int[gsetsReal.length];
+        for (int g = 0; g < gsetsReal.length; g++) {
+            sizes[g] = gsetsReal[g].getNumMembers(rlReal); // Qualify as all members may not be in the rl
+            final Integer bin = sizes[g] / fNullSizeBin;
+            final Integer rep = repOfBin.get(bin);
+            if (rep == null || sizes[g] < sizes[rep]) {
+                repOfBin.put(bin, g);
+            }
+        }
+
+        final int[] reps = new int[repOfBin.size()];
+        final Map<Integer, Integer> nullOfBin = new HashMap<Integer, Integer>();
+        int k = 0;
+        for (final Map.Entry<Integer, Integer> entry : repOfBin.entrySet()) {
+            reps[k] = entry.getValue();
+            nullOfBin.put(entry.getKey(), k++);
+        }
+
+        for (int g = 0; g < gsetsReal.length; g++) {
+            nullOfSet[g] = nullOfBin.get(sizes[g] / fNullSizeBin);
+        }
+
+        return reps;
+    }
+
+    // now create random GeneSets and calc the ksscore for every rnd GeneSet
+    // For the sparse tables the random sets are only ever ranks, drawn into one reused buffer and scored as is
+    // Safe to call concurrently as long as each call has its own rst
+    private float[] shuffleGeneSet(final int nperm, final RankedList rlReal, final GeneSet gsetReal,
+                                   final GeneSetCohort gcohReal, final RandomSeedGenerator rst) {
+        if (gcohReal.isSparse()) {
+            final int numLabels = rlReal.getSize();
+            final int[] ranks = new int[gsetReal.getNumMembers(rlReal)]; // Qualify as all members may not be in the rl
+            final boolean[] seen = new boolean[numLabels];
+            final float[] ess = new float[nperm];
+            for (int p = 0; p < nperm; p++) {
+                GeneSetGenerators.sampleRandomRanks(ranks.length, numLabels, rst.getRandom(), ranks, seen);
+                ess[p] = core.calculateES(gcohReal, ranks);
+            }
+            return ess;
+        }
+
+        final GeneSet[] rndgsets = GeneSetGenerators.createRandomGeneSetsFixedSize(nperm, rlReal, gsetReal, rst);
+        final GeneSetCohort gcohRnd = gcohReal.clone(rndgsets);
+        return core.calculateES(gcohRnd); // never store deep for rnds
+    }
+
+    // As shuffleGeneSet, but in batches (drawn one after the other from rst, so the first n scores are the same as
+    // those of shuffleGeneSet(n)) until fStopAfterExceedances of them are more extreme than realEs (as counted by
+    // XMath.getPValueTwoTailed) or maxNumPerm are done
+    // Safe to call concurrently as long as each call has its own rst
+    private float[] shuffleGeneSetAdaptive(final int maxNumPerm, final RankedList rlReal, final GeneSet gsetReal,
+                                           final GeneSetCohort gcohReal, final float realEs,
+                                           final RandomSeedGenerator rst) {
+        float[] ess = new float[Math.min(ADAPTIVE_FIRST_BATCH, maxNumPerm)];
+        int numDone = 0;
+        int numExceeding = 0;
+        while (numDone < maxNumPerm && numExceeding < fStopAfterExceedances) {
+            final int batch = (numDone == 0) ? ess.length
+                    : Math.min(Math.max(ADAPTIVE_FIRST_BATCH, numDone), maxNumPerm - numDone);
+            final float[] batchEss = shuffleGeneSet(batch, rlReal, gsetReal, gcohReal, rst);
+            if (numDone + batch > ess.length) {
+                ess = Arrays.copyOf(ess, numDone + batch);
+            }
+
+            for (int i = 0; i < batch; i++) {
+                final float es = batchEss[i];
+                if ((realEs >= 0) ? es > realEs : es < realEs) {
+                    numExceeding++;
+                }
+                ess[numDone + i] = es;
+            }
+            numDone += batch;
+        }
+
+        return (ess.length == numDone) ? ess : Arrays.copyOf(ess, numDone);
+    }
+
+    // The lazily built lookups of a ranked list are not safe to build from several threads at once,
+    // so force them before the rl is shared with the workers
+    private static void primeForConcurrentReads(final RankedList rl) {
+        if (rl.getSize() > 0) {
+            rl.getRank(rl.getRankName(0));
+        }
+        rl.getMetricWeightStruc();
+    }
+
     private EnrichmentDb shuffleGeneSet(final int nperm, final Metric metric, final SortMode sort, final Order order,
     		final Map<String, Boolean> metricParams, final Dataset ds, final Template template, final GeneSet[] gsets, 
     		final GeneSetCohort.Generator gen, final RandomSeedGenerator rst) {
@@ -223,9 +658,73 @@ public class KSTests {
 
         final EnrichmentResult[] results = shuffleGeneSet_precannedRankedList(nperm,
                 rlReal, template, gsets, chip, gen, rst);
+        if (isShard()) {
+            return null;
+        }
 
         final String name = NamingConventions.generateName(ds, template, true);
         return new EnrichmentDb(name, rlReal, ds, template,
                 results, metric, metricParams, sort, order, nperm, null, null);
     }
+
+    // Scores one template permutation and writes its ES into column c of rndEss
+    // Safe to call concurrently for distinct values of c
+    private RankedList scoreTemplatePermutation(final int c, final DatasetMetrics dm, final Metric metric, 
+            final SortMode sort, final Order order, final Map<String, Boolean> metricParams, final Dataset ds, 
+            final Template rndTemplate, final double[] scores_opt, final GeneSet[] gsets, 
+            final GeneSetCohort.Generator gcohgen, final Queue<GeneSetCohort> idleCohorts, final NullScoreStore rndEss) {
+        final RankedList rndRl = (scores_opt == null) ? dm.scoreDataset(metric, sort, order, metricParams, ds, rndTemplate)
+                : dm.scoreDataset(scores_opt, sort, order, ds);
+
+        // DO THE RND CALC
+        // @note only the ranked list has changed and not the feature or gene set content, so rebind an
+        // idle cohort (one per worker at most) rather than generate a whole new one
+        GeneSetCohort gcohRnd = idleCohorts.poll();
+        if (gcohRnd == null) {
+            gcohRnd = gcohgen.createGeneSetCohort(rndRl, gsets, false);
+        } else {
+            gcohRnd.rebind(rndRl);
+        }
+
+        core.calculateES(gcohRnd, rndEss, c);
+        idleCohorts.offer(gcohRnd);
+
+        return rndRl;
+    }
+
+    /**
+     * @return null if running single threaded
+     */
+    private ExecutorService createExecutor(final String name) {
+        if (fNumThreads == 1) {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(fNumThreads, new ThreadFactory() {
+            private int cnt = 0;
+
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "KSTests-" + name + "-" + (cnt++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static <T> T waitFor(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for permutations", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Permutation failed", cause);
+        }
+    }
 }
\ No newline at end of file
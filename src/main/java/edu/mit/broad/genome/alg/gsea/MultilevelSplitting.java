@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg.gsea;
+
+import edu.mit.broad.genome.objects.GeneSet;
+import edu.mit.broad.genome.objects.RankedList;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The tail probability of the ES of a random gene set (of a given size, on the ranked list of a cohort) by
+ * adaptive multilevel splitting, so that p-values far below 1/nperm can be had without as many permutations.
+ * <p/>
+ * A sample of random sets (drawn as the gene set permutations draw them) is scored and then, level by level,
+ * the sets that score no higher than the sample median are replaced by copies of those that score higher. Every
+ * set is then moved about by a Markov chain (swap a member for a non member, kept only if the set still scores
+ * above the median) so that the sample is again one of random sets, now conditioned on scoring above the level.
+ * Each level multiplies the estimate by the fraction of the sample above it (about a half), so a p of 1e-6
+ * takes about 20 levels. Once the median is past the score of interest, the estimate is the product of the
+ * fractions times the fraction of the sample past that score.
+ * <p/>
+ * See Korotkevich et al, Fast gene set enrichment analysis (the fgsea multilevel method), for the scheme.
+ * <p/>
+ * Not safe for concurrent use: each thread needs its own.
+ */
+public class MultilevelSplitting {
+
+    // 2^-120 is about as small as a float p can usefully be
+    private static final int MAX_LEVELS = 120;
+
+    // Markov chain steps per level; more for larger sets, as it takes more swaps to move a set about
+    private static final int MIN_STEPS_PER_LEVEL = 10;
+
+    private final GeneSetCohort fCohort;
+
+    private final RankedList fRankedList;
+
+    private final KSCore fCore;
+
+    private final int fSampleSize;
+
+    /**
+     * @param cohort     a cohort on the ranked list and with the scoring table of the real gene set; its sets are
+     *                   not used, only cloned for the random ones
+     * @param sampleSize the number of random sets carried from level to level
+     */
+    public MultilevelSplitting(final GeneSetCohort cohort, final int sampleSize) {
+        if (cohort == null) {
+            throw new IllegalArgumentException("Param cohort cannot be null");
+        }
+
+        if (sampleSize < 2) {
+            throw new IllegalArgumentException("Sample size must be at least 2, got: " + sampleSize);
+        }
+
+        this.fCohort = cohort;
+        this.fRankedList = cohort.getRankedList();
+        this.fCore = new KSCore();
+        this.fSampleSize = sampleSize;
+    }
+
+    /**
+     * @param es      the score of interest
+     * @param setSize the number of members of the random sets
+     * @return the probability that a random set of setSize members scores more than es (or, for a negative es,
+     * less), as XMath.getPValueTwoTailed counts them. NaN if the sample collapsed (to equal scores) before the
+     * median got past es, in which case there is no estimate
+     */
+    public double estimateTail(final float es, final int setSize, final Random rnd) {
+        final int numLabels = fRankedList.getSize();
+        if (setSize < 1 || setSize >= numLabels) {
+            throw new IllegalArgumentException("Set size: " + setSize + " not in [1, " + numLabels + ")");
+        }
+
+        // Work on the side of es, so that more extreme is always larger
+        final float sign = (es >= 0) ? 1f : -1f;
+        final float target = sign * es;
+        final int n = fSampleSize;
+        final int stepsPerLevel = Math.max(MIN_STEPS_PER_LEVEL, setSize / 2);
+
+        final int[][] sets = new int[n][];
+        final boolean[][] isMember = new boolean[n][];
+        for (int i = 0; i < n; i++) {
+            sets[i] = randomSet(setSize, numLabels, rnd);
+            isMember[i] = new boolean[numLabels];
+            for (int k = 0; k < setSize; k++) {
+                isMember[i][sets[i][k]] = true;
+            }
+        }
+
+        final float[] scores = score(sets, sign);
+        final float[] sorted = new float[n];
+        final int[] above = new int[n];
+        final int[][] proposed = new int[n][];
+        final int[] swappedOut = new int[n];
+        final int[] swappedIn = new int[n];
+
+        double logP = 0;
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            System.arraycopy(scores, 0, sorted, 0, n);
+            Arrays.sort(sorted);
+            final float median = sorted[n / 2];
+
+            if (median >= target) {
+                return Math.exp(logP) * countAbove(scores, target) / n;
+            }
+
+            int numAbove = 0;
+            for (int i = 0; i < n; i++) {
+                if (scores[i] > median) {
+                    above[numAbove++] = i;
+                }
+            }
+
+            if (numAbove == 0) {
+                return Double.NaN;
+            }
+
+            logP += Math.log((double) numAbove / n);
+
+            // The sets at or below the level are replaced by copies of (randomly picked) ones above it
+            for (int i = 0; i < n; i++) {
+                if (!(scores[i] > median)) {
+                    final int from = above[rnd.nextInt(numAbove)];
+                    sets[i] = sets[from].clone();
+                    isMember[i] = isMember[from].clone();
+                    scores[i] = scores[from];
+                }
+            }
+
+            // ... and all of them moved about, above the level
+            for (int step = 0; step < stepsPerLevel; step++) {
+                for (int i = 0; i < n; i++) {
+                    final int pos = rnd.nextInt(setSize);
+                    int in = rnd.nextInt(numLabels);
+                    while (isMember[i][in]) {
+                        in = rnd.nextInt(numLabels);
+                    }
+
+                    proposed[i] = sets[i].clone();
+                    swappedOut[i] = proposed[i][pos];
+                    swappedIn[i] = in;
+                    proposed[i][pos] = in;
+                }
+
+                final float[] proposedScores = score(proposed, sign);
+                for (int i = 0; i < n; i++) {
+                    if (proposedScores[i] > median) {
+                        sets[i] = proposed[i];
+                        scores[i] = proposedScores[i];
+                        isMember[i][swappedOut[i]] = false;
+                        isMember[i][swappedIn[i]] = true;
+                    }
+                }
+            }
+        }
+
+        return Math.exp(logP) * countAbove(scores, target) / n;
+    }
+
+    // As GeneSetGenerators.createRandomGeneSetsFixedSize draws them: ranks, uniformly without replacement
+    private static int[] randomSet(final int setSize, final int numLabels, final Random rnd) {
+        final boolean[] seen = new boolean[numLabels];
+        final int[] set = new int[setSize];
+        for (int k = 0; k < setSize; ) {
+            final int r = rnd.nextInt(numLabels);
+            if (!seen[r]) {
+                seen[r] = true;
+                set[k++] = r;
+            }
+        }
+
+        return set;
+    }
+
+    private static int countAbove(final float[] scores, final float target) {
+        int cnt = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > target) {
+                cnt++;
+            }
+        }
+
+        return cnt;
+    }
+
+    // The (signed) ES of sets of ranks
+    private float[] score(final int[][] sets, final float sign) {
+        if (fCohort.isSparse()) {
+            final float[] ess = new float[sets.length];
+            for (int i = 0; i < sets.length; i++) {
+                ess[i] = sign * fCore.calculateES(fCohort, sets[i].clone()); // @note scoring sorts the ranks
+            }
+            return ess;
+        }
+
+        final GeneSet[] gsets = new GeneSet[sets.length];
+        for (int i = 0; i < sets.length; i++) {
+            final String[] members = new String[sets[i].length];
+            for (int k = 0; k < members.length; k++) {
+                members[k] = fRankedList.getRankName(sets[i][k]);
+            }
+            gsets[i] = new GeneSet("multilevel_" + i, null, Arrays.asList(members), false);
+        }
+
+        final float[] ess = fCore.calculateES(fCohort.clone(gsets));
+        for (int i = 0; i < ess.length; i++) {
+            ess[i] *= sign;
+        }
+
+        return ess;
+    }
+
+}
@@ -4,15 +4,21 @@
 package edu.mit.broad.genome.alg.gsea;
 
 import edu.mit.broad.genome.math.Matrix;
+import edu.mit.broad.genome.math.NullScoreStore;
+import edu.mit.broad.genome.math.NullScoreStores;
 import edu.mit.broad.genome.math.ScoreMode;
 import edu.mit.broad.genome.math.Vector;
 import edu.mit.broad.genome.math.XMath;
 import edu.mit.broad.genome.objects.Dataset;
 import edu.mit.broad.genome.objects.DefaultDataset;
 import edu.mit.broad.genome.objects.LabelledVector;
+import edu.mit.broad.genome.objects.NullScoreDataset;
+import edu.mit.broad.genome.utils.ParallelLoops;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 
 /**
  * @author Aravind Subramanian
@@ -23,6 +29,9 @@ public class Norms {
 
     public static final String MEANDIV_POS_NEG_SEPERATE = MeanDivPosNegSeperate.NAME;
 
+    // Rows normalized per task when on a pool
+    private static final int ROWS_PER_TASK = 16;
+
     // @maint need to keep in synch with above and below
     public static String[] createNormModeNames() {
         return new String[]{
@@ -53,26 +62,49 @@ public class Norms {
 
     // This is the key API
     public static Struc normalize(final String normName, final LabelledVector realScores, final Dataset rndScores_full) {
+        return normalize(normName, realScores, rndScores_full, null);
+    }
 
-        final Vector normRealScores = new Vector(realScores.getSize());
-        final String[] labels = new String[realScores.getSize()];
-        final List<String> labels_list = new ArrayList<String>();
+    /**
+     * As above, with the rows (each independent of the others) normalized on pool_opt
+     */
+    public static Struc normalize(final String normName, final LabelledVector realScores, final Dataset rndScores_full,
+                                  final ForkJoinPool pool_opt) {
 
-        // @note end ds may have more rows that in the real scores
-        // we pick only those that we want
+        if (rndScores_full instanceof NullScoreDataset && rndScores_full.getRowNames().equals(realScores.getLabels())) {
+            return normalizeInPlace(normName, realScores, (NullScoreDataset) rndScores_full, pool_opt);
+        }
+
+        final int numRow = realScores.getSize();
+        final Vector normRealScores = new Vector(numRow);
+        final String[] labels = new String[numRow];
+        final List<String> labels_list = new ArrayList<String>();
 
-        final Matrix normRndScoresMatrix = new Matrix(realScores.getSize(), rndScores_full.getNumCol());
+        if (pool_opt != null && numRow > 0) {
+            // build the lazy name lookups before the concurrent reads
+            realScores.getScore(realScores.getLabel(0));
+            rndScores_full.getRow(realScores.getLabel(0));
+        }
 
-        for (int r = 0; r < realScores.getSize(); r++) {
+        final Norm[] norms = new Norm[numRow];
+        ParallelLoops.forEach(pool_opt, 0, numRow, ROWS_PER_TASK, new IntConsumer() {
+            public void accept(final int r) {
+                final String rowName = realScores.getLabel(r);
+                final float real = realScores.getScore(rowName);
+                norms[r] = Norms.createNorm(normName, real, rndScores_full.getRow(rowName));
+            }
+        });
 
+        // @note end ds may have more rows that in the real scores
+        // we pick only those that we want
+        final Matrix normRndScoresMatrix = new Matrix(numRow, rndScores_full.getNumCol());
+        for (int r = 0; r < numRow; r++) {
             final String rowName = realScores.getLabel(r);
-            final float real = realScores.getScore(rowName);
-            final Norm norm = Norms.createNorm(normName, real, rndScores_full.getRow(rowName));
+            final Norm norm = norms[r];
 
             // Note from Pablo:
             // I think the NES with NaN (because of the skewness) should ... 
             // be excluded from the computation of p-values or FDRs.
-            
             normRndScoresMatrix.setRow(r, norm.getRandomNorm());
             normRealScores.setElement(r, norm.getRealNorm());
             labels[r] = rowName;
@@ -82,10 +114,108 @@ public class Norms {
         Struc struc = new Struc();
         struc.normReal = new LabelledVector(realScores.getName() + "_norm", labels, normRealScores);
         struc.normRnd = new DefaultDataset("norm", normRndScoresMatrix, labels_list, rndScores_full.getColumnNames(), rndScores_full.getAnnot());
+        return struc;
+    }
+
+    /**
+     * The rnd scores are in a store (with a row for each real score, in the same order), so rather than copy
+     * them into a normalized matrix only the per row means are worked out and the normalized rnd scores are
+     * a view of the store (see NormedStore) that normalizes the scores as they are read.
+     */
+    private static Struc normalizeInPlace(final String normName, final LabelledVector realScores,
+                                          final NullScoreDataset rndScores, final ForkJoinPool pool_opt) {
 
+        if (normName == null) {
+            throw new IllegalArgumentException("Param normName cannot be null");
+        }
+
+        final boolean meanDiv = normName.equals(MEANDIV_POS_NEG_SEPERATE);
+        if (!meanDiv && !normName.equals(NONE)) {
+            throw new IllegalArgumentException("Unknown norm mode: " + normName);
+        }
+
+        final int numRow = realScores.getSize();
+        final NullScoreStore rnd = rndScores.getStore();
+        final float[] realNorms = new float[numRow];
+        final float[] meansPos = new float[numRow];
+        final float[] meansNegAbs = new float[numRow];
+
+        ParallelLoops.forEach(pool_opt, 0, numRow, ROWS_PER_TASK, new IntConsumer() {
+            public void accept(final int r) {
+                final float real = realScores.getScore(r);
+                if (meanDiv) {
+                    final MeanDivPosNegSeperate norm = new MeanDivPosNegSeperate(real, rnd.getRow(r), false);
+                    realNorms[r] = norm.getRealNorm();
+                    meansPos[r] = norm.meanPos_orig;
+                    meansNegAbs[r] = Math.abs(norm.meanNeg_orig); // @note abs
+                } else {
+                    realNorms[r] = real;
+                }
+            }
+        });
+
+        final List<String> labels_list = rndScores.getRowNames();
+        Struc struc = new Struc();
+        struc.normReal = new LabelledVector(realScores.getName() + "_norm", labels_list.toArray(new String[numRow]),
+                new Vector(realNorms, true));
+        struc.normRnd = new NullScoreDataset("norm", meanDiv ? new NormedStore(rnd, meansPos, meansNegAbs) : rnd,
+                labels_list, rndScores.getColumnNames());
         return struc;
     }
 
+    /**
+     * A read only view of a store with each score divided by the mean of the positive (or the abs of the mean of
+     * the negative) scores of its row, as MeanDivPosNegSeperate normalizes the rnd scores
+     */
+    private static class NormedStore extends NullScoreStores.AbstractStore {
+
+        private final NullScoreStore fStore;
+        private final float[] fMeansPos;
+        private final float[] fMeansNegAbs;
+
+        private NormedStore(final NullScoreStore store, final float[] meansPos, final float[] meansNegAbs) {
+            super(store.getNumRow(), store.getNumCol());
+            this.fStore = store;
+            this.fMeansPos = meansPos;
+            this.fMeansNegAbs = meansNegAbs;
+        }
+
+        private float norm(final int row, final float orig) {
+            return XMath.isPositive(orig) ? orig / fMeansPos[row] : orig / fMeansNegAbs[row];
+        }
+
+        public float getElement(final int row, final int col) {
+            return norm(row, fStore.getElement(row, col));
+        }
+
+        public void getRow(final int row, final float[] into) {
+            fStore.getRow(row, into);
+            final int length = fStore.getRowLength(row);
+            for (int c = 0; c < length; c++) {
+                into[c] = norm(row, into[c]);
+            }
+        }
+
+        public void getColumn(final int col, final float[] into) {
+            fStore.getColumn(col, into);
+            for (int r = 0; r < fNumRow; r++) {
+                into[r] = norm(r, into[r]);
+            }
+        }
+
+        public void setColumn(final int col, final float[] values) {
+            throw new IllegalStateException("Normalized scores are read only");
+        }
+
+        public int getRowLength(final int row) {
+            return fStore.getRowLength(row);
+        }
+
+        public void setRow(final int row, final float[] values, final int length) {
+            throw new IllegalStateException("Normalized scores are read only");
+        }
+    }
+
     private abstract static class AbstractNormOne implements Norm {
         float real_orig;
         float realNorm;
@@ -134,6 +264,13 @@ public class Norms {
         float varNeg_orig;
 
         public MeanDivPosNegSeperate(final float real, final Vector rnd) {
+            this(real, rnd, true);
+        }
+
+        /**
+         * normRnds -> false to only work out the means and the real norm, and not the normalized rnd scores
+         */
+        MeanDivPosNegSeperate(final float real, final Vector rnd, final boolean normRnds) {
             super(NAME);
             this.real_orig = real;
             this.rnd_orig = rnd;
@@ -162,6 +299,19 @@ public class Norms {
             this.varNeg_orig = (float) Math.sqrt(onlyNeg.var(false, false));
 
             // first norm the rnds
+            if (normRnds) {
+                normRnds();
+            }
+
+            // then norm the real
+            if (XMath.isPositive(real_orig)) {
+                this.realNorm = real_orig / meanPos_orig;
+            } else {
+                this.realNorm = real_orig / Math.abs(meanNeg_orig); // @note abs
+            }
+        }
+
+        private void normRnds() {
             int rnd_origSize = rnd_orig.getSize();
 			this.rndNorm = new Vector(rnd_origSize);
             for (int i = 0; i < rnd_origSize; i++) {
@@ -176,13 +326,6 @@ public class Norms {
                     numRndNeg++;
                 }
             }
-
-            // then norm the real
-            if (XMath.isPositive(real_orig)) {
-                this.realNorm = real_orig / meanPos_orig;
-            } else {
-                this.realNorm = real_orig / Math.abs(meanNeg_orig); // @note abs
-            }
         }
     } // End class MeanDivPosNegSeperate
 }
@@ -7,13 +7,27 @@ import edu.mit.broad.genome.alg.DatasetGenerators;
 import edu.mit.broad.genome.alg.fdr.FdrAlgs;
 import edu.mit.broad.genome.math.*;
 import edu.mit.broad.genome.objects.Dataset;
+import edu.mit.broad.genome.objects.GeneSet;
 import edu.mit.broad.genome.objects.LabelledVector;
+import edu.mit.broad.genome.objects.RankedList;
 import edu.mit.broad.genome.objects.esmatrix.db.EnrichmentResult;
 import edu.mit.broad.genome.objects.esmatrix.db.EnrichmentScore;
 import edu.mit.broad.genome.objects.esmatrix.db.EnrichmentScoreImpl;
 import edu.mit.broad.genome.objects.strucs.FdrStruc;
+import edu.mit.broad.genome.utils.ParallelLoops;
+import gnu.trove.TFloatArrayList;
+import gnu.trove.TIntArrayList;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
 /**
  * @author Aravind Subramanian
  */
@@ -21,6 +35,54 @@ public class PValueCalculatorImpls {
 
     private static final Logger klog = Logger.getLogger(PValueCalculatorImpls.class);
 
+    // Gene sets per task for the per set stats
+    private static final int SETS_PER_TASK = 16;
+
+    public static final String PERMUTATION = "permutation";
+
+    public static final String MULTILEVEL = "multilevel";
+
+    public static final String ANALYTIC = "analytic";
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private PValueCalculatorImpls() {
+    }
+
+    // @maint need to keep in synch with above and below
+    public static String[] createPValueMethodNames() {
+        return new String[]{
+                PERMUTATION,
+                MULTILEVEL,
+                ANALYTIC
+        };
+    }
+
+    /**
+     * @param gcohgen the generator the gene sets were scored with (only used by the methods that score random
+     *                sets of their own or that need to know the scoring table)
+     * @param rst     the random source of the methods that draw random sets of their own
+     */
+    public static PValueCalculator createPValueCalculator(final String methodName, final String normName,
+                                                          final int numThreads,
+                                                          final GeneSetCohort.Generator gcohgen,
+                                                          final RandomSeedGenerator rst) {
+        if (methodName == null) {
+            throw new IllegalArgumentException("Param methodName cannot be null");
+        }
+
+        if (methodName.equals(PERMUTATION)) {
+            return new GseaImpl(normName, numThreads);
+        } else if (methodName.equals(MULTILEVEL)) {
+            return new MultilevelImpl(normName, numThreads, gcohgen, rst);
+        } else if (methodName.equals(ANALYTIC)) {
+            return new AnalyticImpl(normName, numThreads, gcohgen);
+        } else {
+            throw new IllegalArgumentException("Unknown p-value method: " + methodName);
+        }
+    }
+
     /**
      * The GSEA style implementation of pvalues and FDRs and FWERs
      */
@@ -28,27 +90,433 @@ public class PValueCalculatorImpls {
 
         private String fNormName;
 
+        private int fNumThreads;
+
         public GseaImpl(final String normName) {
+            this(normName, 1);
+        }
+
+        /**
+         * @param numThreads the number of threads for the (per gene set) normalization, FDR, nominal p and FWER
+         */
+        public GseaImpl(final String normName, final int numThreads) {
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+            }
+
             this.fNormName = normName;
+            this.fNumThreads = numThreads;
         }
 
         // dont do with edb as there are different kinds of edbs and we loose the identity of the one used here
         public EnrichmentResult[] calcNPValuesAndFDR(final EnrichmentResult[] results) {
-            return _calcGseaMethod(fNormName, results);
+            final ForkJoinPool pool = ParallelLoops.createPool(fNumThreads);
+            try {
+                return _calcGseaMethod(fNormName, results, pool);
+            } finally {
+                ParallelLoops.shutdown(pool);
+            }
+        }
+    }
+
+    /**
+     * As GseaImpl, but the nominal p-values that the permutations cannot resolve (fewer than MIN_EXCEEDANCES
+     * random scores were more extreme than the real one) are estimated by multilevel splitting over random gene
+     * sets (see MultilevelSplitting) instead. Only for gene set permutations (including preranked), as that is
+     * the null the splitting samples from.
+     * <p/>
+     * The permutation nominal p is over the random scores of the same sign, so the splitting tail estimate is
+     * divided by the fraction of the random scores that are of that sign. The NES, FDR and FWER are those of the
+     * permutations.
+     */
+    public static class MultilevelImpl implements PValueCalculator {
+
+        // Nominal p-values resting on at least this many more extreme random scores are left as they are
+        private static final int MIN_EXCEEDANCES = 10;
+
+        private static final int DEFAULT_SAMPLE_SIZE = 101;
+
+        private final GseaImpl fGseaImpl;
+
+        private final int fNumThreads;
+
+        private final GeneSetCohort.Generator fGcohGen;
+
+        private final RandomSeedGenerator fRst;
+
+        private final int fSampleSize;
+
+        public MultilevelImpl(final String normName, final int numThreads, final GeneSetCohort.Generator gcohgen,
+                              final RandomSeedGenerator rst) {
+            this(normName, numThreads, gcohgen, rst, DEFAULT_SAMPLE_SIZE);
+        }
+
+        /**
+         * @param sampleSize the number of random sets carried from level to level of the splitting
+         */
+        public MultilevelImpl(final String normName, final int numThreads, final GeneSetCohort.Generator gcohgen,
+                              final RandomSeedGenerator rst, final int sampleSize) {
+            if (gcohgen == null) {
+                throw new IllegalArgumentException("Param gcohgen cannot be null");
+            }
+
+            if (rst == null) {
+                throw new IllegalArgumentException("Param rst cannot be null");
+            }
+
+            if (sampleSize < 2) {
+                throw new IllegalArgumentException("Sample size must be at least 2, got: " + sampleSize);
+            }
+
+            this.fGseaImpl = new GseaImpl(normName, numThreads);
+            this.fNumThreads = numThreads;
+            this.fGcohGen = gcohgen;
+            this.fRst = rst;
+            this.fSampleSize = sampleSize;
+        }
+
+        public EnrichmentResult[] calcNPValuesAndFDR(final EnrichmentResult[] results) {
+            final EnrichmentResult[] calculated = fGseaImpl.calcNPValuesAndFDR(results);
+            final long start = System.currentTimeMillis();
+
+            // The sets to refine, and a cohort per ranked list to clone the random sets from (made here, serially,
+            // as making one for the real ranked list is not safe to do concurrently for all scoring tables)
+            final List<Integer> toRefine = new ArrayList<Integer>();
+            final Map<RankedList, GeneSetCohort> cohorts = new IdentityHashMap<RankedList, GeneSetCohort>();
+            for (int r = 0; r < calculated.length; r++) {
+                if (isUnresolved(calculated[r])) {
+                    toRefine.add(r);
+                    final RankedList rl = calculated[r].getRankedList();
+                    if (!cohorts.containsKey(rl)) {
+                        final GeneSetCohort gcoh = fGcohGen.createGeneSetCohort(rl,
+                                new GeneSet[]{calculated[r].getGeneSet()}, true);
+                        primeForConcurrentReads(rl);
+                        cohorts.put(rl, gcoh);
+                    }
+                }
+            }
+
+            // One seed per set, drawn serially, so that the estimates do not depend on the threading
+            final long[] seeds = new long[toRefine.size()];
+            for (int i = 0; i < seeds.length; i++) {
+                seeds[i] = fRst.getRandom().nextLong();
+            }
+
+            final ForkJoinPool pool = ParallelLoops.createPool(fNumThreads);
+            try {
+                ParallelLoops.forEach(pool, 0, seeds.length, 1, new IntConsumer() {
+                    public void accept(final int i) {
+                        final int r = toRefine.get(i);
+                        final EnrichmentResult result = calculated[r];
+                        calculated[r] = refine(result, cohorts.get(result.getRankedList()),
+                                new RandomSeedGenerators.Custom(seeds[i]));
+                    }
+                });
+            } finally {
+                ParallelLoops.shutdown(pool);
+            }
+
+            klog.info("Multilevel nominal p-values for " + seeds.length + " of " + calculated.length
+                    + " gene sets took " + (System.currentTimeMillis() - start) + " ms");
+
+            return calculated;
+        }
+
+        private static boolean isUnresolved(final EnrichmentResult result) {
+            final float es = result.getScore().getES();
+            final Vector side = result.getRndESS().extract(es, ScoreMode.POS_AND_NEG_SEPERATELY);
+            return side.getSize() > 0 && !Float.isNaN(es)
+                    && countMoreExtreme(es, side) < MIN_EXCEEDANCES;
+        }
+
+        private static int countMoreExtreme(final float es, final Vector rnd) {
+            int cnt = 0;
+            for (int i = 0; i < rnd.getSize(); i++) {
+                final float val = rnd.getElement(i);
+                if ((es >= 0) ? val > es : val < es) {
+                    cnt++;
+                }
+            }
+
+            return cnt;
+        }
+
+        private EnrichmentResult refine(final EnrichmentResult result, final GeneSetCohort gcoh,
+                                        final RandomSeedGenerator rst) {
+            final EnrichmentScore score = result.getScore();
+            final RankedList rl = result.getRankedList();
+            final int setSize = result.getGeneSet().getNumMembers(rl);
+            if (setSize < 1 || setSize >= rl.getSize()) {
+                return result;
+            }
+
+            final double tail = new MultilevelSplitting(gcoh, fSampleSize).estimateTail(score.getES(), setSize,
+                    rst.getRandom());
+            if (Double.isNaN(tail)) {
+                return result;
+            }
+
+            // Conditioned on the sign, as the permutation nominal p is
+            final Vector rnd = result.getRndESS();
+            final double sideFraction = (double) rnd.extract(score.getES(), ScoreMode.POS_AND_NEG_SEPERATELY).getSize()
+                    / rnd.getSize();
+            final float np = (float) Math.min(1.0, tail / sideFraction);
+
+            final EnrichmentScore es_new = new EnrichmentScoreImpl(score, score.getNES(), np, score.getFDR(),
+                    score.getFWER());
+            return new EnrichmentResult(result, es_new, result.getFDR());
+        }
+
+        // The lazily built lookups of a ranked list are not safe to build from several threads at once
+        static void primeForConcurrentReads(final RankedList rl) {
+            if (rl.getSize() > 0) {
+                rl.getRank(rl.getRankName(0));
+            }
+            rl.getMetricWeightStruc();
+        }
+    }
+
+    /**
+     * Nominal p-values for the classic scoring table under gene set permutation (including preranked), worked
+     * out from the null distribution of the classic ES (see ClassicKSNull) rather than counted from the
+     * permutations, so that they are exact (or, for large sets, asymptotic) however small they are.
+     * <p/>
+     * If there were permutations the NES, FDR and FWER are theirs, as with GseaImpl. Without any (nperm 0) they
+     * are worked out from the asymptotic null instead: the NES is the ES over the mean null D of its size, the
+     * FDR is that of GseaImpl with the expected fraction of random NESs (of the same sign, over the sets of
+     * every size in the run) in place of the counted one, and the FWER is the chance that the most extreme
+     * random NES of that sign over all the sets, each drawn independently as gene set permutations draw them,
+     * is at least as extreme.
+     */
+    public static class AnalyticImpl implements PValueCalculator {
+
+        private final GseaImpl fGseaImpl;
+
+        private final int fNumThreads;
+
+        public AnalyticImpl(final String normName, final int numThreads, final GeneSetCohort.Generator gcohgen) {
+            if (gcohgen == null) {
+                throw new IllegalArgumentException("Param gcohgen cannot be null");
+            }
+
+            if (!gcohgen.getScoringTableName().equals(new GeneSetScoringTables.Classic().getName())) {
+                throw new IllegalArgumentException("The analytic null is only for the classic scoring table, not: "
+                        + gcohgen.getScoringTableName());
+            }
+
+            this.fGseaImpl = new GseaImpl(normName, numThreads);
+            this.fNumThreads = numThreads;
+        }
+
+        public EnrichmentResult[] calcNPValuesAndFDR(final EnrichmentResult[] results) {
+            final long start = System.currentTimeMillis();
+
+            boolean permuted = results.length > 0;
+            for (int r = 0; r < results.length; r++) {
+                permuted &= results[r].getNumPerms() > 0;
+            }
+
+            final EnrichmentResult[] calculated = permuted ? fGseaImpl.calcNPValuesAndFDR(results) : results.clone();
+            for (int r = 0; r < calculated.length; r++) {
+                MultilevelImpl.primeForConcurrentReads(calculated[r].getRankedList());
+            }
+
+            final int[] numHits = new int[calculated.length];
+            final int[] numLabels = new int[calculated.length];
+            final float[] nps = new float[calculated.length];
+            final ForkJoinPool pool = ParallelLoops.createPool(fNumThreads);
+            try {
+                ParallelLoops.forEach(pool, 0, calculated.length, SETS_PER_TASK, new IntConsumer() {
+                    public void accept(final int r) {
+                        final RankedList rl = calculated[r].getRankedList();
+                        final int[] hitRanks = hitRanks(calculated[r].getGeneSet(), rl);
+                        final float es = calculated[r].getScore().getES();
+                        numHits[r] = hitRanks.length;
+                        numLabels[r] = rl.getSize();
+                        if (hitRanks.length < 1 || hitRanks.length >= rl.getSize() || Float.isNaN(es)) {
+                            nps[r] = Float.NaN;
+                        } else {
+                            final long latticeES = ClassicKSNull.latticeES(hitRanks, rl.getSize(), es >= 0);
+                            nps[r] = (float) ClassicKSNull.tail(latticeES, hitRanks.length, rl.getSize());
+                        }
+                    }
+                });
+
+                if (permuted) {
+                    for (int r = 0; r < calculated.length; r++) {
+                        final EnrichmentScore score = calculated[r].getScore();
+                        final EnrichmentScore es_new = new EnrichmentScoreImpl(score, score.getNES(), nps[r],
+                                score.getFDR(), score.getFWER());
+                        calculated[r] = new EnrichmentResult(calculated[r], es_new, calculated[r].getFDR());
+                    }
+                } else {
+                    setAsymptoticSignificance(calculated, numHits, numLabels, nps, pool);
+                }
+            } finally {
+                ParallelLoops.shutdown(pool);
+            }
+
+            klog.info("Analytic nominal p-values for " + calculated.length + " gene sets" + (permuted ? "" : " (and NES, FDR and FWER)")
+                    + " took " + (System.currentTimeMillis() - start) + " ms");
+
+            return calculated;
+        }
+
+        // The ranks of the members of gset that are in rl, sorted
+        private static int[] hitRanks(final GeneSet gset, final RankedList rl) {
+            final int[] ranks = new int[gset.getNumMembers()];
+            int numHits = 0;
+            for (int i = 0; i < ranks.length; i++) {
+                final int rank = rl.getRank(gset.getMember(i));
+                if (rank >= 0) { // Members that are not in the ranked list are never hit
+                    ranks[numHits++] = rank;
+                }
+            }
+
+            final int[] hitRanks = (numHits == ranks.length) ? ranks : Arrays.copyOf(ranks, numHits);
+            Arrays.sort(hitRanks);
+            return hitRanks;
+        }
+
+        private static void setAsymptoticSignificance(final EnrichmentResult[] calculated, final int[] numHits,
+                                                      final int[] numLabels, final float[] nps,
+                                                      final ForkJoinPool pool_opt) {
+            final int n = calculated.length;
+
+            // The null of every set is that of its (numHits, numLabels), so the sums over the sets of the run
+            // are over the distinct sizes, each counted as many times as there are sets of it
+            final Map<Long, Integer> sizeIndex = new HashMap<Long, Integer>();
+            final TIntArrayList sizeHits = new TIntArrayList();
+            final TIntArrayList sizeLabels = new TIntArrayList();
+            final TIntArrayList sizeCounts = new TIntArrayList();
+            final float[] nes = new float[n];
+            final TFloatArrayList posNes = new TFloatArrayList();
+            final TFloatArrayList negNes = new TFloatArrayList();
+            int numSets = 0;
+            for (int r = 0; r < n; r++) {
+                if (Float.isNaN(nps[r])) {
+                    nes[r] = Float.NaN;
+                    continue;
+                }
+
+                final Long key = ((long) numHits[r] << 32) | numLabels[r];
+                Integer s = sizeIndex.get(key);
+                if (s == null) {
+                    s = sizeHits.size();
+                    sizeIndex.put(key, s);
+                    sizeHits.add(numHits[r]);
+                    sizeLabels.add(numLabels[r]);
+                    sizeCounts.add(0);
+                }
+                sizeCounts.set(s, sizeCounts.get(s) + 1);
+                numSets++;
+
+                final float es = calculated[r].getScore().getES();
+                nes[r] = (float) (es / ClassicKSNull.meanES(numHits[r], numLabels[r]));
+                if (es >= 0) {
+                    posNes.add(nes[r]);
+                } else {
+                    negNes.add(-nes[r]);
+                }
+            }
+
+            final double[] sizeMeans = new double[sizeHits.size()];
+            for (int s = 0; s < sizeMeans.length; s++) {
+                sizeMeans[s] = ClassicKSNull.meanES(sizeHits.get(s), sizeLabels.get(s));
+            }
+
+            posNes.sort();
+            negNes.sort();
+            final int numAllSets = numSets;
+            ParallelLoops.forEach(pool_opt, 0, n, SETS_PER_TASK, new IntConsumer() {
+                public void accept(final int r) {
+                    final EnrichmentScore score = calculated[r].getScore();
+                    if (Float.isNaN(nps[r])) {
+                        final EnrichmentScore es_new = new EnrichmentScoreImpl(score, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+                        calculated[r] = new EnrichmentResult(calculated[r], es_new, null);
+                        return;
+                    }
+
+                    final float absNes = Math.abs(nes[r]);
+                    double nullFrac = 0;
+                    double logNoneAsExtreme = 0;
+                    for (int s = 0; s < sizeMeans.length; s++) {
+                        final double tail = ClassicKSNull.asymptoticTail(absNes * sizeMeans[s], sizeHits.get(s),
+                                sizeLabels.get(s));
+                        nullFrac += sizeCounts.get(s) * tail;
+                        logNoneAsExtreme += sizeCounts.get(s) * Math.log1p(-tail / 2); // half the rnd sets are of this sign
+                    }
+                    nullFrac /= numAllSets;
+
+                    final TFloatArrayList side = (score.getES() >= 0) ? posNes : negNes;
+                    final double realFrac = (double) countAtLeast(side, absNes) / side.size();
+                    final float fdr = (float) Math.min(1.0, nullFrac / realFrac);
+                    final float fwer = (float) -Math.expm1(logNoneAsExtreme);
+
+                    final EnrichmentScore es_new = new EnrichmentScoreImpl(score, nes[r], nps[r], fdr, fwer);
+                    calculated[r] = new EnrichmentResult(calculated[r], es_new, new AnalyticFdrStruc(score.getES(), fdr));
+                }
+            });
+        }
+
+        // How many of the (sorted) values are at least value
+        private static int countAtLeast(final TFloatArrayList sorted, final float value) {
+            int lo = 0;
+            int hi = sorted.size();
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (sorted.get(mid) < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            return sorted.size() - lo;
+        }
+    }
+
+    private static class AnalyticFdrStruc implements FdrStruc {
+
+        private final float fRealScore;
+
+        private final float fFdr;
+
+        private AnalyticFdrStruc(final float realScore, final float fdr) {
+            this.fRealScore = realScore;
+            this.fFdr = fdr;
+        }
+
+        public float getRealScore() {
+            return fRealScore;
+        }
+
+        public float getFdr() {
+            return fFdr;
         }
     }
 
     private static EnrichmentResult[] _calcGseaMethod(final String normName,
-                                                      final EnrichmentResult[] results) {
+                                                      final EnrichmentResult[] results,
+                                                      final ForkJoinPool pool_opt) {
 
+        final long start = System.currentTimeMillis();
         final LabelledVector realESS = EdbAlgs.createRealES(results);
         final Dataset rndESS = EdbAlgs.createRndESDataset(results);
 
         klog.debug("Norm mode: " + normName);
 
-        final Norms.Struc struc = Norms.normalize(normName, realESS, rndESS);
+        final Norms.Struc struc = Norms.normalize(normName, realESS, rndESS, pool_opt);
+        final long normalized = System.currentTimeMillis();
+
+        final EnrichmentResult[] calculated = _calcGseaMethod(realESS, struc.normReal, rndESS, struc.normRnd, results,
+                pool_opt, normalized - start);
 
-        return _calcGseaMethod(realESS, struc.normReal, rndESS, struc.normRnd, results);
+        klog.info("Significance stage for " + results.length + " gene sets on "
+                + ((pool_opt == null) ? 1 : pool_opt.getParallelism()) + " thread(s) took "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        return calculated;
     }
 
 
@@ -58,8 +526,11 @@ public class PValueCalculatorImpls {
                                                       final LabelledVector realNESS,
                                                       final Dataset rndESS_full,
                                                       final Dataset rndNESS_full,
-                                                      final EnrichmentResult[] prev_results) {
+                                                      final EnrichmentResult[] prev_results,
+                                                      final ForkJoinPool pool_opt,
+                                                      final long normMillis) {
         klog.debug("Started calcFdrs_skewed");
+        final long start = System.currentTimeMillis();
 
         // the rnd maybe a superset of the null needed for the real ess's
         // so qualify (dont need to do this for the rnd ess as its users are  already
@@ -69,88 +540,124 @@ public class PValueCalculatorImpls {
         // let everything calc to NaN or Infinity as it naturally would, and then just deal with those
         // possible values in the later stages.
         // Or, could store them as Null and detect that elsewhere.
-        final Dataset rndNESS = new DatasetGenerators().extractRows(rndNESS_full, realESS.getLabels());
+        final Dataset rndNESS = rndNESS_full.getRowNames().equals(realESS.getLabels()) ? rndNESS_full
+                : new DatasetGenerators().extractRows(rndNESS_full, realESS.getLabels());
         final DatasetModed all_rnd_scores_norm_moded_pos = new DatasetModed(rndNESS, ScoreMode.POS_ONLY, SortMode.REAL, Order.DESCENDING);
         final DatasetModed all_rnd_scores_norm_moded_neg = new DatasetModed(rndNESS, ScoreMode.NEG_ONLY, SortMode.REAL, Order.ASCENDING);
 
-        // @note this takes a few seconds to compute <++++ culprit for most time
+        // @note used to be the culprit for most time -- the random columns are now swept once for all sets
         // TODO: track down NaNs in the following call (via realNESS & all_rnd_scores_moded_{pos|neg})
         final FdrAlgs.FdrMap fdrMap = FdrAlgs.calcFdrs_skewed(realESS,
                 rndESS_full,
                 realNESS,
                 all_rnd_scores_norm_moded_pos,
                 all_rnd_scores_norm_moded_neg,
-                SortMode.REAL);
+                SortMode.REAL,
+                pool_opt);
 
 
         klog.debug("done fdrMap");
 
-        final EnrichmentResult[] results = new EnrichmentResult[prev_results.length];
+        final long fdrDone = System.currentTimeMillis();
 
-        klog.debug("Started core calcFdrs in _calcGseaMethod for results: " + prev_results.length);
+        // The per permutation extremes for the FWER, shared by all sets
+        // @note only over the permutations that every set got (all of them, unless the permutations of some
+        // sets were stopped early) as the max of a column is only the max over all sets if all sets are in it
+        int numSharedPerms = rndNESS_full.getNumCol();
         for (int r = 0; r < prev_results.length; r++) {
+            numSharedPerms = Math.min(numSharedPerms, prev_results[r].getNumPerms());
+        }
+        final Vector best_of_each_perm = new Vector(numSharedPerms);
+        final Vector lowest_of_each_perm = new Vector(numSharedPerms);
+        setExtremesOfEachPerm(rndNESS_full, best_of_each_perm, lowest_of_each_perm, pool_opt);
+
+        if (pool_opt != null && prev_results.length > 0) {
+            // build the lazy name lookups before the concurrent reads
+            final String gsetName = prev_results[0].getGeneSetName();
+            realESS.getScore(gsetName);
+            realNESS.getScore(gsetName);
+            rndESS_full.getRow(gsetName);
+        }
 
+        final EnrichmentResult[] results = new EnrichmentResult[prev_results.length];
 
-            final String gsetName = prev_results[r].getGeneSetName();
-            final FdrStruc fdrStruc = fdrMap.getFdr(gsetName);
-            
-            // If we store NES NaN / Infinity as Null, then some of these names will have no fdrStruc object 
-            // in the Map.  Or detect them when building and keep them out of the Map.
-            // Then we would skip certain things below...
-            
-            final float es = realESS.getScore(gsetName);
-            final float nes = realNESS.getScore(gsetName);
-            final Vector es_rnd_for_this_set = rndESS_full.getRow(gsetName); // @note fetching by name, not index
-            // Skip this for null fdrStruc per PT's instructions
-            final float np = XMath.getPValueTwoTailed_pos_neg_seperate(es, es_rnd_for_this_set); // NP
-
-            // TODO: track down NaNs in the following call (via nes, rndNESS_full)
-            // Or skip as per above
-            final float fwer = XMath.getFWERTwoTailed(nes, rndNESS_full.getMatrix()); // FWER
-
-            float fdr_value = fdrStruc.getFdr();
-
-            if (Float.isNaN(fdr_value)) {
-                //System.out.println("EANNANANA NAN: " + fdr_value + " " + gsetName);
-            }
-
-            // TODO: track down NaNs in the following call (via nes)
-            // Or, skip this adjustment in those cases
-            if (! XMath.isSameSign(nes, es)) { // @note
-                fdr_value = 1.0f;
-            }
-
-            if (fdr_value > 1.0f) { // @note
-                fdr_value = 1.0f;
-            }
-
-            // @note this accessses the rl
-
-            // TODO: track down NaNs in the following call (via nes, fdr_value, fwer)
-            // Or skip as per above.  Either represent this as es_new = null, or with null fields as appropriate
-            // (prob better).  Then the report generation would detect those
-            EnrichmentScore es_new = new EnrichmentScoreImpl(prev_results[r].getScore(), nes, np, fdr_value, fwer);
-
-            // TODO: track down NaNs in the following call (via es_new)
-            results[r] = new EnrichmentResult(prev_results[r].getRankedList(), prev_results[r].getTemplate(),
-                    prev_results[r].getGeneSet(), prev_results[r].getChip(), es_new, prev_results[r].getRndESS(), fdrStruc);
-
-            /*
-            // @note retrievung the rl takes a long time (esp if its in the jit)
-            // @todo make NamedRL a wrapper in jit
-            results[r] = new EnrichmentResultImpl(null, prev_results[r].getTemplate(),
-                   prev_results[r].getGeneSet(), prev_results[r].getChip(), es_new, prev_results[r].getRndESS(), fdrStruc);
-            */
-
-            if (r % 25 == 0) {
-                klog.debug("Done loop: " + r + " / " + prev_results.length);
+        klog.debug("Started core calcFdrs in _calcGseaMethod for results: " + prev_results.length);
+        ParallelLoops.forEach(pool_opt, 0, prev_results.length, SETS_PER_TASK, new IntConsumer() {
+            public void accept(final int r) {
+                final String gsetName = prev_results[r].getGeneSetName();
+                final FdrStruc fdrStruc = fdrMap.getFdr(gsetName);
+
+                // If we store NES NaN / Infinity as Null, then some of these names will have no fdrStruc object 
+                // in the Map.  Or detect them when building and keep them out of the Map.
+                // Then we would skip certain things below...
+
+                final float es = realESS.getScore(gsetName);
+                final float nes = realNESS.getScore(gsetName);
+                final Vector es_rnd_for_this_set = rndESS_full.getRow(gsetName); // @note fetching by name, not index
+                // Skip this for null fdrStruc per PT's instructions
+                final float np = XMath.getPValueTwoTailed_pos_neg_seperate(es, es_rnd_for_this_set); // NP
+
+                // TODO: track down NaNs in the following call (via nes, rndNESS_full)
+                // Or skip as per above
+                final float fwer = XMath.getFWERTwoTailed(nes, best_of_each_perm, lowest_of_each_perm); // FWER
+
+                float fdr_value = fdrStruc.getFdr();
+
+                // TODO: track down NaNs in the following call (via nes)
+                // Or, skip this adjustment in those cases
+                if (! XMath.isSameSign(nes, es)) { // @note
+                    fdr_value = 1.0f;
+                }
+
+                if (fdr_value > 1.0f) { // @note
+                    fdr_value = 1.0f;
+                }
+
+                // @note this accessses the rl
+
+                // TODO: track down NaNs in the following call (via nes, fdr_value, fwer)
+                // Or skip as per above.  Either represent this as es_new = null, or with null fields as appropriate
+                // (prob better).  Then the report generation would detect those
+                EnrichmentScore es_new = new EnrichmentScoreImpl(prev_results[r].getScore(), nes, np, fdr_value, fwer);
+
+                // TODO: track down NaNs in the following call (via es_new)
+                results[r] = new EnrichmentResult(prev_results[r], es_new, fdrStruc);
             }
-
-        }
+        });
 
         klog.debug("Done core calcFdrs in _calcGseaMethod for results: " + prev_results.length);
+        klog.info("Significance stage timing: normalization " + normMillis + " ms, fdr " + (fdrDone - start)
+                + " ms, nominal p / fwer " + (System.currentTimeMillis() - fdrDone) + " ms");
 
         return results;
     }
 
+    /**
+     * The max (as Matrix.getColumnMaxes: NaN if there is none) and the min (as Vector.min) of every column,
+     * read a column at a time so that rndScores need not be held in a Matrix. Only the first best.getSize()
+     * columns are read
+     */
+    private static void setExtremesOfEachPerm(final Dataset rndScores, final Vector best, final Vector lowest,
+                                              final ForkJoinPool pool_opt) {
+        ParallelLoops.forEach(pool_opt, 0, best.getSize(), 1, new IntConsumer() {
+            public void accept(final int c) {
+                final Vector col = rndScores.getColumn(c);
+                float max = Float.NEGATIVE_INFINITY;
+                float min = Float.POSITIVE_INFINITY;
+                for (int r = 0; r < col.getSize(); r++) {
+                    final float val = col.getElement(r);
+                    if (val > max) {
+                        max = val;
+                    }
+                    if (val < min) {
+                        min = val;
+                    }
+                }
+
+                best.setElement(c, (max == Float.NEGATIVE_INFINITY) ? Float.NaN : max);
+                lowest.setElement(c, min);
+            }
+        });
+    }
+
 } // End class PValueCalculatorImpls
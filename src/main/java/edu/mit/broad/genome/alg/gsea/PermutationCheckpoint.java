@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg.gsea;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A file that the permutations of a KSTests run are saved to as they complete, so that a run that is killed
+ * can be picked up again (by a run of the same data and params) without redoing them.
+ * <p/>
+ * The file starts with a fingerprint of the run (see Fingerprint) and the state of its random source before
+ * any permutation was drawn, followed by one record (index, number of values, values) per completed
+ * permutation (or, for gene set permutations, per completed gene set). Records are only appended, and
+ * written out to disk at most every so often, so a killed run loses at most the last interval of work.
+ * A record cut short by the kill is dropped on resume.
+ * <p/>
+ * Resuming restores the random source of the checkpointed run, so the permutations still to do are the same
+ * ones that run would have done, whatever the seed of the resuming run.
+ * <p/>
+ * A run can also be split across processes (or machines) into shards: each shard does only its own block of the
+ * indices (see getFirstIndex and getEndIndex) and saves them to its own checkpoint, and merge then puts the shard
+ * checkpoints together into one that the full run picks up from. As every shard starts from the same random
+ * source, and skips to its block, the merged run is the same as one done in a single process.
+ * <p/>
+ * Safe to add to from several threads.
+ */
+public class PermutationCheckpoint {
+
+    private static final Logger klog = Logger.getLogger(PermutationCheckpoint.class);
+
+    private static final String MAGIC = "GSEA_PERMUTATION_CHECKPOINT";
+
+    private static final int VERSION = 1;
+
+    // Completed permutations are written out to disk at most this often
+    private static final long DEFAULT_INTERVAL_MILLIS = 60 * 1000L;
+
+    private final File fFile;
+
+    private final boolean fResume;
+
+    private final long fIntervalMillis;
+
+    private final int fShardIndex;
+
+    private final int fNumShards;
+
+    private TIntHashSet fDone;
+
+    // The saved values, until taken
+    private TIntObjectHashMap fSaved;
+
+    private FileOutputStream fFileOut;
+
+    private DataOutputStream fOut;
+
+    private long fLastSync;
+
+    /**
+     * @param resume true to pick up from file if it exists, false to always start afresh (overwriting it)
+     */
+    public PermutationCheckpoint(final File file, final boolean resume) {
+        this(file, resume, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public PermutationCheckpoint(final File file, final boolean resume, final long intervalMillis) {
+        this(file, resume, intervalMillis, 0, 1);
+    }
+
+    /**
+     * @param shardIndex which of the numShards blocks of the indices this checkpoint is to do (from 0)
+     */
+    public PermutationCheckpoint(final File file, final boolean resume, final int shardIndex, final int numShards) {
+        this(file, resume, DEFAULT_INTERVAL_MILLIS, shardIndex, numShards);
+    }
+
+    public PermutationCheckpoint(final File file, final boolean resume, final long intervalMillis,
+                                 final int shardIndex, final int numShards) {
+        if (file == null) {
+            throw new IllegalArgumentException("Param file cannot be null");
+        }
+
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Param intervalMillis cannot be negative: " + intervalMillis);
+        }
+
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Param numShards must be at least 1, got: " + numShards);
+        }
+
+        if (shardIndex < 0 || shardIndex >= numShards) {
+            throw new IllegalArgumentException("Param shardIndex: " + shardIndex + " not in [0, " + numShards + ")");
+        }
+
+        this.fFile = file;
+        this.fResume = resume;
+        this.fIntervalMillis = intervalMillis;
+        this.fShardIndex = shardIndex;
+        this.fNumShards = numShards;
+    }
+
+    public File getFile() {
+        return fFile;
+    }
+
+    /**
+     * @return true if this checkpoint does only a shard of the run, whose results are then partial
+     */
+    public boolean isShard() {
+        return fNumShards > 1;
+    }
+
+    public int getShardIndex() {
+        return fShardIndex;
+    }
+
+    public int getNumShards() {
+        return fNumShards;
+    }
+
+    /**
+     * @return the first of the numIndices indices of the run that this checkpoint does
+     */
+    public int getFirstIndex(final int numIndices) {
+        return (int) ((long) numIndices * fShardIndex / fNumShards);
+    }
+
+    /**
+     * @return one past the last of the numIndices indices of the run that this checkpoint does
+     */
+    public int getEndIndex(final int numIndices) {
+        return (int) ((long) numIndices * (fShardIndex + 1) / fNumShards);
+    }
+
+    /**
+     * Starts (or, when resuming, picks up) the checkpoint of a run.
+     *
+     * @param fingerprint identifies the run; the checkpoint of a different run cannot be resumed
+     * @param rnd         the random source of the run, before any permutation was drawn from it
+     * @return the random source to use: rnd, or when resuming a copy of the one saved at the start of the
+     * checkpointed run
+     */
+    public synchronized Random begin(final String fingerprint, final Random rnd) {
+        if (fOut != null) {
+            throw new IllegalStateException("Checkpoint already begun: " + fFile);
+        }
+
+        this.fDone = new TIntHashSet();
+        this.fSaved = new TIntObjectHashMap();
+
+        try {
+            final Random use;
+            if (fResume && fFile.isFile()) {
+                use = load(fingerprint);
+                this.fFileOut = new FileOutputStream(fFile, true);
+                this.fOut = new DataOutputStream(new BufferedOutputStream(fFileOut));
+                klog.info("Resuming from checkpoint: " + fFile + " with " + fDone.size() + " permutations done");
+            } else {
+                use = rnd;
+                this.fFileOut = new FileOutputStream(fFile, false);
+                this.fOut = new DataOutputStream(new BufferedOutputStream(fFileOut));
+                new Header(fingerprint, toBytes(rnd)).write(fOut);
+                sync();
+                klog.info("Checkpointing permutations to: " + fFile);
+            }
+
+            this.fLastSync = System.currentTimeMillis();
+            return use;
+        } catch (IOException ie) {
+            throw new IllegalStateException("Could not begin checkpoint: " + fFile, ie);
+        }
+    }
+
+    public synchronized int getNumDone() {
+        return fDone.size();
+    }
+
+    public synchronized boolean isDone(final int index) {
+        return fDone.contains(index);
+    }
+
+    /**
+     * @return the values saved for index (which are then let go of, so that a resumed run does not hold them
+     * twice), null if it is not done or already taken
+     */
+    public synchronized float[] takeSaved(final int index) {
+        return (float[]) fSaved.remove(index);
+    }
+
+    /**
+     * Saves the values of a completed index (the first length of values)
+     */
+    public synchronized void add(final int index, final float[] values, final int length) {
+        if (fOut == null) {
+            throw new IllegalStateException("Checkpoint not begun: " + fFile);
+        }
+
+        try {
+            fDone.add(index);
+            new Record(index, (values.length == length) ? values : Arrays.copyOf(values, length)).write(fOut);
+
+            if (System.currentTimeMillis() - fLastSync >= fIntervalMillis) {
+                sync();
+                this.fLastSync = System.currentTimeMillis();
+            }
+        } catch (IOException ie) {
+            throw new IllegalStateException("Could not write checkpoint: " + fFile, ie);
+        }
+    }
+
+    /**
+     * Writes out what is left and closes the file (which is kept, so that the run can be done again from it)
+     */
+    public synchronized void finish() {
+        if (fOut == null) {
+            return;
+        }
+
+        try {
+            sync();
+            fOut.close();
+        } catch (IOException ie) {
+            throw new IllegalStateException("Could not close checkpoint: " + fFile, ie);
+        } finally {
+            this.fOut = null;
+            this.fFileOut = null;
+        }
+    }
+
+    private void sync() throws IOException {
+        fOut.flush();
+        fFileOut.getFD().sync();
+    }
+
+    // Reads the saved records and cuts off a last one that is incomplete, so that new ones follow on cleanly
+    private Random load(final String fingerprint) throws IOException {
+        final long validLength;
+        final Random rnd;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fFile)));
+        try {
+            final Header header = Header.read(in, fFile);
+            if (!header.fingerprint.equals(fingerprint)) {
+                throw new IllegalArgumentException("Checkpoint: " + fFile + " is of a run with different data or params; "
+                        + "delete it or start afresh");
+            }
+
+            rnd = fromBytes(header.state);
+
+            long length = header.length;
+            Record record;
+            while ((record = Record.read(in)) != null) {
+                fDone.add(record.index);
+                fSaved.put(record.index, record.values);
+                length += record.length();
+            }
+            validLength = length;
+        } finally {
+            in.close();
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(fFile, "rw");
+        try {
+            if (raf.length() != validLength) {
+                klog.warn("Dropping an incomplete record at the end of checkpoint: " + fFile);
+                raf.setLength(validLength);
+            }
+        } finally {
+            raf.close();
+        }
+
+        return rnd;
+    }
+
+    /**
+     * Puts the checkpoints of the shards of a run together into one, that the full run can be resumed from.
+     * The shards need not all be complete (or even all be there): the run does whatever they lack.
+     * <p/>
+     * Written to a temporary file next to into and then moved over it, so that into may be one of the shards
+     * and is left as it was if the merge fails.
+     *
+     * @return the number of records merged
+     */
+    public static int merge(final File[] shardFiles, final File into) {
+        if (shardFiles == null || shardFiles.length == 0) {
+            throw new IllegalArgumentException("Param shardFiles cannot be null or empty");
+        }
+
+        if (into == null) {
+            throw new IllegalArgumentException("Param into cannot be null");
+        }
+
+        final TIntHashSet merged = new TIntHashSet();
+        Header first = null;
+        File tmp = null;
+        boolean moved = false;
+        try {
+            tmp = File.createTempFile("tmp_" + into.getName(), ".tmp", into.getAbsoluteFile().getParentFile());
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                for (int f = 0; f < shardFiles.length; f++) {
+                    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(shardFiles[f])));
+                    try {
+                        final Header header = Header.read(in, shardFiles[f]);
+                        if (first == null) {
+                            first = header;
+                            header.write(out);
+                        } else if (!first.fingerprint.equals(header.fingerprint)) {
+                            throw new IllegalArgumentException("Shard: " + shardFiles[f] + " is of a run with different data or params than: "
+                                    + shardFiles[0]);
+                        } else if (!Arrays.equals(first.state, header.state)) {
+                            throw new IllegalArgumentException("Shard: " + shardFiles[f] + " was run with a different random seed than: "
+                                    + shardFiles[0] + "; all shards must be run with the same (fixed) seed");
+                        }
+
+                        Record record;
+                        while ((record = Record.read(in)) != null) {
+                            if (!merged.add(record.index)) {
+                                throw new IllegalArgumentException("Index: " + record.index + " is in more than one shard (again in: "
+                                        + shardFiles[f] + "); were the shards run with the same num_shards?");
+                            }
+                            record.write(out);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            try {
+                Files.move(tmp.toPath(), into.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), into.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+        } catch (IOException ie) {
+            throw new IllegalStateException("Could not merge shards into: " + into, ie);
+        } finally {
+            if (tmp != null && !moved && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+
+        klog.info("Merged " + merged.size() + " permutations from " + shardFiles.length + " shards into: " + into);
+        return merged.size();
+    }
+
+    private static byte[] toBytes(final Random rnd) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(rnd);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    private static Random fromBytes(final byte[] state) throws IOException {
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(state));
+        try {
+            return (Random) ois.readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalStateException("Could not restore the random state of the checkpoint", cnfe);
+        } finally {
+            ois.close();
+        }
+    }
+
+    // The start of a checkpoint file: what run it is of and the random state that run started from
+    private static class Header {
+
+        private final String fingerprint;
+
+        private final byte[] state;
+
+        // in bytes, as written
+        private final long length;
+
+        private Header(final String fingerprint, final byte[] state) {
+            this.fingerprint = fingerprint;
+            this.state = state;
+            this.length = 2 + MAGIC.getBytes(StandardCharsets.UTF_8).length + 4
+                    + 2 + fingerprint.getBytes(StandardCharsets.UTF_8).length + 4 + state.length;
+        }
+
+        private static Header read(final DataInputStream in, final File file) throws IOException {
+            if (!MAGIC.equals(in.readUTF())) {
+                throw new IllegalArgumentException("Not a permutation checkpoint: " + file);
+            }
+
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported checkpoint version: " + version + " in: " + file);
+            }
+
+            final String fingerprint = in.readUTF();
+            final byte[] state = new byte[in.readInt()];
+            in.readFully(state);
+            return new Header(fingerprint, state);
+        }
+
+        private void write(final DataOutputStream out) throws IOException {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(state.length);
+            out.write(state);
+        }
+    }
+
+    // The values saved for one index
+    private static class Record {
+
+        private final int index;
+
+        private final float[] values;
+
+        private Record(final int index, final float[] values) {
+            this.index = index;
+            this.values = values;
+        }
+
+        /**
+         * @return null at the end of the file, or at a last record that is incomplete
+         */
+        private static Record read(final DataInputStream in) throws IOException {
+            try {
+                final int index = in.readInt();
+                final float[] values = new float[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readFloat();
+                }
+                return new Record(index, values);
+            } catch (EOFException eof) {
+                return null;
+            }
+        }
+
+        private void write(final DataOutputStream out) throws IOException {
+            out.writeInt(index);
+            out.writeInt(values.length);
+            for (int i = 0; i < values.length; i++) {
+                out.writeFloat(values[i]);
+            }
+        }
+
+        // in bytes, as written
+        private long length() {
+            return 8 + 4L * values.length;
+        }
+    }
+
+    /**
+     * A digest of everything that determines the permutations of a run (its data and params)
+     */
+    public static class Fingerprint {
+
+        private final MessageDigest fDigest;
+
+        public Fingerprint() {
+            try {
+                this.fDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException("No SHA-256 digest", nsae);
+            }
+        }
+
+        public Fingerprint add(final String s) {
+            final byte[] bytes = String.valueOf(s).getBytes(StandardCharsets.UTF_8);
+            add(bytes.length);
+            fDigest.update(bytes);
+            return this;
+        }
+
+        public Fingerprint add(final int i) {
+            fDigest.update((byte) (i >>> 24));
+            fDigest.update((byte) (i >>> 16));
+            fDigest.update((byte) (i >>> 8));
+            fDigest.update((byte) i);
+            return this;
+        }
+
+        public Fingerprint add(final float f) {
+            return add(Float.floatToIntBits(f));
+        }
+
+        public String getHex() {
+            final byte[] digest = fDigest.digest();
+            final StringBuilder buf = new StringBuilder(digest.length * 2);
+            for (int i = 0; i < digest.length; i++) {
+                buf.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+                buf.append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return buf.toString();
+        }
+    }
+
+}
@@ -51,8 +51,7 @@ public class PermutationTest {
 
     private Matrix fUpSignificanceLevelsMatrix;
     private Matrix fDnSignificanceLevelsMatrix;
-    
-    private Template[] fRndTemplates;
+
 
     private ScoredDataset fRealScoredDataset;
 
@@ -68,6 +67,17 @@ public class PermutationTest {
     public PermutationTest(final String name, final int numMarkers, final int nperm, 
     		final Metric metric, final SortMode sort, final Order order, final Map<String, Boolean> metricParams, 
     		final Dataset ds, final Template template, final float[] siglevels, final boolean categorical) {
+        this(name, numMarkers, nperm, metric, sort, order, metricParams, ds, template, siglevels, categorical, null);
+    }
+
+    /**
+     * realScoredDataset_opt -> the real scores, if they have already been worked out (with the metric, on ds
+     * and template). Scored here if null
+     */
+    public PermutationTest(final String name, final int numMarkers, final int nperm, 
+    		final Metric metric, final SortMode sort, final Order order, final Map<String, Boolean> metricParams, 
+    		final Dataset ds, final Template template, final float[] siglevels, final boolean categorical,
+    		final ScoredDataset realScoredDataset_opt) {
         if (numMarkers > ds.getNumRow()) {
 		    throw new IllegalArgumentException("numMarkers: " + numMarkers + " cannot be larger than dataset size: " + ds.getNumRow());
 		}
@@ -110,9 +120,12 @@ public class PermutationTest {
 		    this.fSigLevels.add(siglevels);
 		}
 
-        final DatasetMetrics dm = new DatasetMetrics();
         // calc real metric levels
-        this.fRealScoredDataset = dm.scoreDataset(fMetric, fSort, fOrder, fMetricParams, fDataset, fTemplate);
+        if (realScoredDataset_opt != null) {
+            this.fRealScoredDataset = realScoredDataset_opt;
+        } else {
+            this.fRealScoredDataset = new DatasetMetrics().scoreDataset(fMetric, fSort, fOrder, fMetricParams, fDataset, fTemplate);
+        }
 
         // calc mean/median and stdev for each class for each marker
         if (categorical) {
@@ -127,7 +140,6 @@ public class PermutationTest {
         this.nMarkersUpMatrix = new Matrix(fNumMarkers, fNumPerms);
         this.nMarkersDnMatrix = new Matrix(fNumMarkers, fNumPerms);
         // Init arrays
-        this.fRndTemplates = new Template[fNumPerms];
         this.fMetricCrossOverRanks = new TIntArrayList(fNumPerms);
         this.fRndMetricWeightStrucs = new MetricWeightStruc[fNumPerms];
     }
@@ -232,30 +244,63 @@ public class PermutationTest {
 		}
     }
 
-    public void addRnd(final Template rndTemplate, final RankedList rndRl) {
-        if (fNumSetCalls == fNumPerms) {
-            throw new IllegalStateException("Already done fNumSetCalls: " + fNumSetCalls + " getNumPerms: " + fNumPerms);
-        }
-
-        this.fRndTemplates[fNumSetCalls] = rndTemplate;
+    /**
+     * Adds the next rnd ranked list. Only its marker scores (and its metric weights) are kept
+     */
+    public void addRnd(final RankedList rndRl) {
+        addRnd(createMarkerScores(rndRl));
+        this.fRndMetricWeightStrucs[fNumSetCalls - 1] = rndRl.getMetricWeightStruc();
+    }
 
+    /**
+     * @return all that is kept of a rnd ranked list: the top and then the bottom getNumMarkers() scores, and the
+     * first rank with a negative score (-1 if none)
+     */
+    public float[] createMarkerScores(final RankedList rndRl) {
+        final float[] markerScores = new float[2 * fNumMarkers + 1];
         for (int r = 0; r < fNumMarkers; r++) {
-            nMarkersUpMatrix.setElement(r, fNumSetCalls, rndRl.getScore(r)); // Pth ranked random score
+            markerScores[r] = rndRl.getScore(r); // Pth ranked random score
         }
 
         int p = fDataset.getNumRow() - 1;
         for (int cnt = 0; cnt < fNumMarkers; cnt++, p--) {
-            nMarkersDnMatrix.setElement(cnt, fNumSetCalls, rndRl.getScore(p));
+            markerScores[fNumMarkers + cnt] = rndRl.getScore(p);
         }
 
+        markerScores[2 * fNumMarkers] = -1;
         for (int r = 0; r < rndRl.getSize(); r++) {
             if (XMath.isNegative(rndRl.getScore(r))) {
-                fMetricCrossOverRanks.add(r + 1);
+                markerScores[2 * fNumMarkers] = r + 1;
                 break;
             }
         }
 
-        this.fRndMetricWeightStrucs[fNumSetCalls] = rndRl.getMetricWeightStruc();
+        return markerScores;
+    }
+
+    /**
+     * As addRnd(RankedList), from the marker scores of the rnd ranked list (e.g. as saved in a checkpoint)
+     *
+     * @see #createMarkerScores
+     */
+    public void addRnd(final float[] markerScores) {
+        if (fNumSetCalls == fNumPerms) {
+            throw new IllegalStateException("Already done fNumSetCalls: " + fNumSetCalls + " getNumPerms: " + fNumPerms);
+        }
+
+        if (markerScores.length != 2 * fNumMarkers + 1) {
+            throw new IllegalArgumentException("Expected: " + (2 * fNumMarkers + 1) + " marker scores, got: " + markerScores.length);
+        }
+
+        for (int r = 0; r < fNumMarkers; r++) {
+            nMarkersUpMatrix.setElement(r, fNumSetCalls, markerScores[r]);
+            nMarkersDnMatrix.setElement(r, fNumSetCalls, markerScores[fNumMarkers + r]);
+        }
+
+        if (markerScores[2 * fNumMarkers] != -1) {
+            fMetricCrossOverRanks.add((int) markerScores[2 * fNumMarkers]);
+        }
+
         this.fNumSetCalls++;
     }
 
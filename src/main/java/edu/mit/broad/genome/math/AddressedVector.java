@@ -125,6 +125,22 @@ public class AddressedVector {
         init(v, addr);
     }
 
+    /**
+     * Class Constructor.
+     * Data is shared, NOT copied -- neither array must be changed afterwards.
+     * Typically the scores and order from an ArgSort.
+     *
+     * @param scores    the scores, in order
+     * @param addresses the address of each score
+     */
+    public AddressedVector(final float[] scores, final int[] addresses) {
+        if (scores == null) {
+            throw new IllegalArgumentException("Param scores cannot be null");
+        }
+
+        init(new Vector(scores, true), addresses);
+    }
+
     // things must already be duplicated (if necessary) before calling here
     private void init(final Vector v, final int[] addresses) {
 
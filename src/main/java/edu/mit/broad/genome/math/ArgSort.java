@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.math;
+
+import java.util.Arrays;
+
+/**
+ * Sorted order (the indices of the values, in sorted order) of a primitive array, without boxing the values
+ * into DoubleElements.
+ * <p/>
+ * The order is exactly that of sorting DoubleElements with DoubleElement.DoubleElementComparator with a stable
+ * sort (as Collections.sort and Arrays.parallelSort do): NaN is the least value (first in ascending order,
+ * last in descending), absolute values are compared for SortMode.ABSOLUTE, -0.0 and 0.0 are equal, and values
+ * that compare equal stay in index order whatever the Order.
+ * <p/>
+ * Each value is mapped to a 64 bit key that orders as unsigned integers the same way as the comparator
+ * (negated for descending order) and the keys are radix sorted, least significant digit first, along with
+ * the indices. Radix sorting is stable, so ties keep their index order.
+ *
+ * @see DoubleElement.DoubleElementComparator
+ */
+public class ArgSort {
+
+    private static final int DIGIT_BITS = 11;
+    private static final int RADIX = 1 << DIGIT_BITS;
+    private static final int DIGIT_MASK = RADIX - 1;
+
+    // Fewer values than this are simply insertion sorted
+    private static final int INSERTION_SORT_THRESHOLD = 48;
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private ArgSort() {
+    }
+
+    /**
+     * @return the indices into values, in sorted order
+     */
+    public static int[] argsort(final double[] values, final SortMode sort, final Order order) {
+        if (values == null) {
+            throw new IllegalArgumentException("Param values cannot be null");
+        }
+
+        final boolean absolute = sort.isAbsolute();
+        final boolean ascending = order.isAscending();
+        final long[] keys = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = toKey(values[i], absolute, ascending);
+        }
+
+        return sortByKeys(keys);
+    }
+
+    /**
+     * @return the indices into values, in sorted order
+     */
+    public static int[] argsort(final float[] values, final SortMode sort, final Order order) {
+        if (values == null) {
+            throw new IllegalArgumentException("Param values cannot be null");
+        }
+
+        final boolean absolute = sort.isAbsolute();
+        final boolean ascending = order.isAscending();
+        final long[] keys = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = toKey(values[i], absolute, ascending);
+        }
+
+        return sortByKeys(keys);
+    }
+
+    /**
+     * @return values in the specified order, as floats
+     */
+    public static float[] gather(final double[] values, final int[] order) {
+        final float[] sorted = new float[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = (float) values[order[i]];
+        }
+        return sorted;
+    }
+
+    /**
+     * @return values in the specified order
+     */
+    public static float[] gather(final float[] values, final int[] order) {
+        final float[] sorted = new float[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = values[order[i]];
+        }
+        return sorted;
+    }
+
+    private static long toKey(double value, final boolean absolute, final boolean ascending) {
+        long key;
+        if (Double.isNaN(value)) {
+            key = 0L; // NaN is always least
+        } else {
+            if (absolute) {
+                value = Math.abs(value);
+            }
+
+            // @note adding 0.0 turns -0.0 into 0.0, as the comparator sees them as equal
+            final long bits = Double.doubleToRawLongBits(value + 0.0d);
+
+            // Negatives: flip all the bits so that larger magnitudes come first. Positives: set the sign bit
+            // so that they come after the negatives. Never 0, so always after NaN
+            key = (bits < 0) ? ~bits : (bits | Long.MIN_VALUE);
+        }
+
+        return ascending ? key : ~key;
+    }
+
+    // @note keys is trashed
+    private static int[] sortByKeys(long[] keys) {
+        final int n = keys.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        if (n < INSERTION_SORT_THRESHOLD) {
+            insertionSort(keys, order);
+            return order;
+        }
+
+        long[] keysTo = new long[n];
+        int[] orderTo = new int[n];
+        final int[] starts = new int[RADIX];
+
+        for (int shift = 0; shift < Long.SIZE; shift += DIGIT_BITS) {
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < n; i++) {
+                starts[(int) (keys[i] >>> shift) & DIGIT_MASK]++;
+            }
+
+            // Nothing to do if every key has the same digit here (as in the exponent bits of similar scores)
+            if (starts[(int) (keys[0] >>> shift) & DIGIT_MASK] == n) {
+                continue;
+            }
+
+            int pos = 0;
+            for (int d = 0; d < RADIX; d++) {
+                final int count = starts[d];
+                starts[d] = pos;
+                pos += count;
+            }
+
+            for (int i = 0; i < n; i++) {
+                final int to = starts[(int) (keys[i] >>> shift) & DIGIT_MASK]++;
+                keysTo[to] = keys[i];
+                orderTo[to] = order[i];
+            }
+
+            final long[] tmpKeys = keys;
+            keys = keysTo;
+            keysTo = tmpKeys;
+            final int[] tmpOrder = order;
+            order = orderTo;
+            orderTo = tmpOrder;
+        }
+
+        return order;
+    }
+
+    private static void insertionSort(final long[] keys, final int[] order) {
+        for (int i = 1; i < keys.length; i++) {
+            final long key = keys[i];
+            final int index = order[i];
+            int j = i - 1;
+            while (j >= 0 && Long.compareUnsigned(keys[j], key) > 0) {
+                keys[j + 1] = keys[j];
+                order[j + 1] = order[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            order[j + 1] = index;
+        }
+    }
+
+}
@@ -59,9 +59,7 @@ public class DatasetModed {
     public Vector getColumn_sorted(final int col) {
         Object obj = fColIndexExtractedVectorMap.get(col);
         if (obj == null) {
-            Vector v = fOrigDataset.getColumn(col);
-            v = v.extract(fScoreMode);
-            v.sort(fSort, fOrder);
+            Vector v = _sortColumn(col);
             obj = v;
             fColIndexExtractedVectorMap.put(col, v);
         }
@@ -69,5 +67,20 @@ public class DatasetModed {
         return (Vector) obj;
     }
 
+    /**
+     * @return column col, extracted and sorted as in getColumn_sorted, but made afresh and not cached (so that
+     * the columns need not all be held at once). Safe to call from several threads at once.
+     */
+    public Vector sortColumn(final int col) {
+        return _sortColumn(col);
+    }
+
+    private Vector _sortColumn(final int col) {
+        Vector v = fOrigDataset.getColumn(col);
+        v = v.extract(fScoreMode);
+        v.sort(fSort, fOrder);
+        return v;
+    }
+
 }
 
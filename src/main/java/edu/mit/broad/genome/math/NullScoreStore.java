@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.math;
+
+/**
+ * The random (null) scores of a gsea run: one row per gene set and one column per permutation.
+ * <p/>
+ * Filled a column at a time (template permutations, all gene sets at once) or a row at a time
+ * (gene set permutations) as the permutations complete, and then read in place. Writes to different
+ * columns (or rows) can be made from several threads at once, as can reads once the writing is done.
+ * <p/>
+ * A row may hold fewer than getNumCol() scores (a gene set whose permutations were stopped early, see KSTests).
+ * The scores it does not hold read as NaN, which is neither positive nor negative and so drops out of the per
+ * sign counts, means and extremes of the significance stage.
+ * <p/>
+ * Implementations keep the scores on the heap, off heap or in a memory mapped file (see NullScoreStores).
+ *
+ * @see NullScoreStores
+ */
+public interface NullScoreStore {
+
+    public int getNumRow();
+
+    public int getNumCol();
+
+    /**
+     * @return the number of scores held for row (its first getRowLength(row) columns)
+     */
+    public int getRowLength(final int row);
+
+    /**
+     * @return the score, NaN if row does not hold col
+     */
+    public float getElement(final int row, final int col);
+
+    /**
+     * @param values the score of every row for permutation col (only the first getNumRow() are used)
+     */
+    public void setColumn(final int col, final float[] values);
+
+    /**
+     * @param values the score of row for every permutation (only the first getNumCol() are used)
+     */
+    public void setRow(final int row, final float[] values);
+
+    /**
+     * @param values the score of row for its first length permutations (the rest are not held)
+     */
+    public void setRow(final int row, final float[] values, final int length);
+
+    /**
+     * Copies the scores of row into into[0, getRowLength(row))
+     */
+    public void getRow(final int row, final float[] into);
+
+    /**
+     * Copies the scores of column col into into[0, getNumRow()) (NaN for the rows that do not hold it)
+     */
+    public void getColumn(final int col, final float[] into);
+
+    /**
+     * @return a copy of the scores of row, getRowLength(row) of them
+     */
+    public Vector getRow(final int row);
+
+    /**
+     * @return a copy of the scores of column col (NaN for the rows that do not hold it)
+     */
+    public Vector getColumn(final int col);
+
+}
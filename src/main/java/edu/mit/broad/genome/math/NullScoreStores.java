@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.math;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The kinds of NullScoreStore.
+ * <p/>
+ * HEAP keeps the scores in float arrays, as before. OFF_HEAP and MAPPED keep them outside of the java heap, in
+ * direct buffers or in a memory mapped temporary file, so that runs with many gene sets and permutations do not
+ * need a heap that can hold them (a MAPPED store is paged in and out by the OS and so is not bound by the
+ * memory of the machine either).
+ * <p/>
+ * createStore makes a store with every row full (filled a column or a row at a time). createRowStore makes one
+ * that is filled a row at a time, with rows that may be shorter than the number of columns, where only the
+ * scores held take up memory (or, for MAPPED, disk).
+ */
+public class NullScoreStores {
+
+    private static final Logger klog = Logger.getLogger(NullScoreStores.class);
+
+    public static final String HEAP = "heap";
+
+    public static final String OFF_HEAP = "off_heap";
+
+    public static final String MAPPED = "mmap";
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private NullScoreStores() {
+    }
+
+    // @maint need to keep in synch with above and below
+    public static String[] createStoreTypeNames() {
+        return new String[]{
+                HEAP,
+                OFF_HEAP,
+                MAPPED
+        };
+    }
+
+    /**
+     * @param dir_opt where a MAPPED store keeps its (temporary) file. The system temporary directory if null
+     */
+    public static NullScoreStore createStore(final String typeName, final int numRow, final int numCol,
+                                             final File dir_opt) {
+        if (typeName == null) {
+            throw new IllegalArgumentException("Param typeName cannot be null");
+        }
+
+        if (typeName.equals(HEAP)) {
+            return new Heap(numRow, numCol);
+        } else if (typeName.equals(OFF_HEAP)) {
+            return new OffHeap(numRow, numCol);
+        } else if (typeName.equals(MAPPED)) {
+            return new Mapped(numRow, numCol, dir_opt);
+        } else {
+            throw new IllegalArgumentException("Unknown null score store type: " + typeName);
+        }
+    }
+
+    /**
+     * @param maxNumCol the most scores any one row can hold
+     * @param dir_opt   where a MAPPED store keeps its (temporary) file. The system temporary directory if null
+     * @return a store filled with setRow only
+     */
+    public static NullScoreStore createRowStore(final String typeName, final int numRow, final int maxNumCol,
+                                                final File dir_opt) {
+        if (typeName == null) {
+            throw new IllegalArgumentException("Param typeName cannot be null");
+        }
+
+        if (typeName.equals(HEAP)) {
+            return new Heap(numRow, maxNumCol, false);
+        } else if (typeName.equals(OFF_HEAP)) {
+            return new OffHeapRows(numRow, maxNumCol);
+        } else if (typeName.equals(MAPPED)) {
+            // @note the file is sparse, so the pages of scores that are never written take no space
+            return new Mapped(numRow, maxNumCol, dir_opt);
+        } else {
+            throw new IllegalArgumentException("Unknown null score store type: " + typeName);
+        }
+    }
+
+    /**
+     * The Vector forms of the reads, in terms of the array ones
+     */
+    public abstract static class AbstractStore implements NullScoreStore {
+
+        protected final int fNumRow;
+
+        protected final int fNumCol;
+
+        // Rows start out full
+        protected final int[] fRowLengths;
+
+        protected AbstractStore(final int numRow, final int numCol) {
+            if (numRow < 0) {
+                throw new IllegalArgumentException("Number of rows cannot be negative: " + numRow);
+            }
+
+            if (numCol < 0) {
+                throw new IllegalArgumentException("Number of columns cannot be negative: " + numCol);
+            }
+
+            this.fNumRow = numRow;
+            this.fNumCol = numCol;
+            this.fRowLengths = new int[numRow];
+            Arrays.fill(fRowLengths, numCol);
+        }
+
+        public int getNumRow() {
+            return fNumRow;
+        }
+
+        public int getNumCol() {
+            return fNumCol;
+        }
+
+        public int getRowLength(final int row) {
+            return fRowLengths[row];
+        }
+
+        public void setRow(final int row, final float[] values) {
+            setRow(row, values, fNumCol);
+        }
+
+        public Vector getRow(final int row) {
+            final float[] values = new float[getRowLength(row)];
+            getRow(row, values);
+            return new Vector(values, true);
+        }
+
+        public Vector getColumn(final int col) {
+            final float[] values = new float[fNumRow];
+            getColumn(col, values);
+            return new Vector(values, true);
+        }
+
+        protected void checkRow(final int row) {
+            if (row < 0 || row >= fNumRow) {
+                throw new ArrayIndexOutOfBoundsException("row: " + row + " not in [0, " + fNumRow + ")");
+            }
+        }
+
+        protected void checkColumn(final int col) {
+            if (col < 0 || col >= fNumCol) {
+                throw new ArrayIndexOutOfBoundsException("col: " + col + " not in [0, " + fNumCol + ")");
+            }
+        }
+
+        protected void checkRowLength(final int length) {
+            if (length < 0 || length > fNumCol) {
+                throw new IllegalArgumentException("Row length: " + length + " not in [0, " + fNumCol + "]");
+            }
+        }
+    }
+
+    /**
+     * A float array per row
+     */
+    public static class Heap extends AbstractStore {
+
+        private final float[][] fRows;
+
+        public Heap(final int numRow, final int numCol) {
+            this(numRow, numCol, true);
+        }
+
+        /**
+         * @param allocate false to have the rows made as they are set (of their own length), rather than up front
+         */
+        public Heap(final int numRow, final int numCol, final boolean allocate) {
+            super(numRow, numCol);
+            this.fRows = allocate ? new float[numRow][numCol] : new float[numRow][];
+            if (!allocate) {
+                Arrays.fill(fRowLengths, 0);
+            }
+        }
+
+        public float getElement(final int row, final int col) {
+            checkColumn(col);
+            return (col < fRowLengths[row]) ? fRows[row][col] : Float.NaN;
+        }
+
+        public void setColumn(final int col, final float[] values) {
+            checkColumn(col);
+            for (int r = 0; r < fNumRow; r++) {
+                if (fRows[r] == null) {
+                    throw new IllegalStateException("Store is filled a row at a time, row: " + r + " is not set");
+                }
+                fRows[r][col] = values[r];
+            }
+        }
+
+        public void setRow(final int row, final float[] values, final int length) {
+            checkRowLength(length);
+            if (fRows[row] == null) {
+                fRows[row] = Arrays.copyOf(values, length);
+            } else {
+                System.arraycopy(values, 0, fRows[row], 0, length);
+            }
+            fRowLengths[row] = length;
+        }
+
+        public void getRow(final int row, final float[] into) {
+            if (fRows[row] != null) {
+                System.arraycopy(fRows[row], 0, into, 0, fRowLengths[row]);
+            }
+        }
+
+        public void getColumn(final int col, final float[] into) {
+            checkColumn(col);
+            for (int r = 0; r < fNumRow; r++) {
+                into[r] = (col < fRowLengths[r]) ? fRows[r][col] : Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * A direct (off heap) buffer per row, made as the row is set
+     */
+    public static class OffHeapRows extends AbstractStore {
+
+        private final FloatBuffer[] fRows;
+
+        public OffHeapRows(final int numRow, final int maxNumCol) {
+            super(numRow, maxNumCol);
+            this.fRows = new FloatBuffer[numRow];
+            Arrays.fill(fRowLengths, 0);
+        }
+
+        public float getElement(final int row, final int col) {
+            checkColumn(col);
+            return (col < fRowLengths[row]) ? fRows[row].get(col) : Float.NaN;
+        }
+
+        public void setColumn(final int col, final float[] values) {
+            throw new IllegalStateException("Store is filled a row at a time");
+        }
+
+        public void setRow(final int row, final float[] values, final int length) {
+            checkRowLength(length);
+            final FloatBuffer buf = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int c = 0; c < length; c++) {
+                buf.put(c, values[c]);
+            }
+            fRows[row] = buf;
+            fRowLengths[row] = length;
+        }
+
+        public void getRow(final int row, final float[] into) {
+            final FloatBuffer buf = fRows[row];
+            for (int c = 0; c < fRowLengths[row]; c++) {
+                into[c] = buf.get(c);
+            }
+        }
+
+        public void getColumn(final int col, final float[] into) {
+            checkColumn(col);
+            for (int r = 0; r < fNumRow; r++) {
+                into[r] = (col < fRowLengths[r]) ? fRows[r].get(col) : Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * The scores in (one or more) float buffers, laid out in tiles of TILE_COLS permutations: a tile holds every
+     * row for its permutations, one row after the other. So a column is written (and read) within one tile and
+     * a row is read a tile width at a time, which keeps both kinds of access to a few pages at a time when the
+     * buffers are mapped.
+     */
+    abstract static class AbstractBufferStore extends AbstractStore {
+
+        private static final int TILE_COLS = 256;
+
+        // Floats per buffer (a buffer holds at most 2 GB)
+        private static final int SEGMENT_SHIFT = 28;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        private final FloatBuffer[] fSegments;
+
+        // @note absolute gets and puts only (never the position), so the buffers can be shared by threads
+        AbstractBufferStore(final int numRow, final int numCol, final FloatBuffer[] segments) {
+            super(numRow, numCol);
+            this.fSegments = segments;
+        }
+
+        /**
+         * @return the lengths of the buffers needed for a numRow by numCol store
+         */
+        static int[] segmentLengths(final int numRow, final int numCol) {
+            final long size = (long) numRow * numCol;
+            final int numSegments = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            final int[] lengths = new int[numSegments];
+            for (int s = 0; s < numSegments; s++) {
+                lengths[s] = (int) Math.min(SEGMENT_MASK + 1, size - ((long) s << SEGMENT_SHIFT));
+            }
+
+            return lengths;
+        }
+
+        private long index(final int row, final int col) {
+            final int tileStart = col - col % TILE_COLS;
+            final int tileWidth = Math.min(TILE_COLS, fNumCol - tileStart);
+            return (long) tileStart * fNumRow + (long) row * tileWidth + (col - tileStart);
+        }
+
+        private float get(final long index) {
+            return fSegments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+        }
+
+        private void put(final long index, final float value) {
+            fSegments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+        }
+
+        public float getElement(final int row, final int col) {
+            checkRow(row);
+            checkColumn(col);
+            return (col < fRowLengths[row]) ? get(index(row, col)) : Float.NaN;
+        }
+
+        public void setColumn(final int col, final float[] values) {
+            checkColumn(col);
+            for (int r = 0; r < fNumRow; r++) {
+                put(index(r, col), values[r]);
+            }
+        }
+
+        public void setRow(final int row, final float[] values, final int length) {
+            checkRow(row);
+            checkRowLength(length);
+            for (int tileStart = 0; tileStart < length; tileStart += TILE_COLS) {
+                final int tileWidth = Math.min(TILE_COLS, fNumCol - tileStart);
+                final long base = index(row, tileStart);
+                for (int i = 0; i < tileWidth && tileStart + i < length; i++) {
+                    put(base + i, values[tileStart + i]);
+                }
+            }
+            fRowLengths[row] = length;
+        }
+
+        public void getRow(final int row, final float[] into) {
+            checkRow(row);
+            final int length = fRowLengths[row];
+            for (int tileStart = 0; tileStart < length; tileStart += TILE_COLS) {
+                final int tileWidth = Math.min(TILE_COLS, fNumCol - tileStart);
+                final long base = index(row, tileStart);
+                for (int i = 0; i < tileWidth && tileStart + i < length; i++) {
+                    into[tileStart + i] = get(base + i);
+                }
+            }
+        }
+
+        public void getColumn(final int col, final float[] into) {
+            checkColumn(col);
+            for (int r = 0; r < fNumRow; r++) {
+                into[r] = (col < fRowLengths[r]) ? get(index(r, col)) : Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * Direct (off heap) buffers. Bound by the JVM's direct memory limit (-XX:MaxDirectMemorySize) rather
+     * than by the heap size
+     */
+    public static class OffHeap extends AbstractBufferStore {
+
+        public OffHeap(final int numRow, final int numCol) {
+            super(numRow, numCol, allocate(numRow, numCol));
+        }
+
+        private static FloatBuffer[] allocate(final int numRow, final int numCol) {
+            final int[] lengths = segmentLengths(numRow, numCol);
+            final FloatBuffer[] segments = new FloatBuffer[lengths.length];
+            for (int s = 0; s < lengths.length; s++) {
+                segments[s] = ByteBuffer.allocateDirect(lengths[s] * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            }
+
+            return segments;
+        }
+    }
+
+    /**
+     * Buffers mapped onto a temporary file. The file is deleted straight away where the platform allows it (the
+     * mapping stays valid until the store is garbage collected), else when the JVM exits.
+     */
+    public static class Mapped extends AbstractBufferStore {
+
+        public Mapped(final int numRow, final int numCol, final File dir_opt) {
+            super(numRow, numCol, map(numRow, numCol, dir_opt));
+        }
+
+        private static FloatBuffer[] map(final int numRow, final int numCol, final File dir_opt) {
+            final int[] lengths = segmentLengths(numRow, numCol);
+            final FloatBuffer[] segments = new FloatBuffer[lengths.length];
+
+            File file = null;
+            try {
+                file = File.createTempFile("null_scores", ".bin", dir_opt);
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    long position = 0;
+                    for (int s = 0; s < lengths.length; s++) {
+                        final long numBytes = (long) lengths[s] * 4;
+                        segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, position, numBytes)
+                                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                        position += numBytes;
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map a file for the null scores in: "
+                        + ((dir_opt == null) ? System.getProperty("java.io.tmpdir") : dir_opt.getPath()), e);
+            } finally {
+                if (file != null && !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+
+            klog.debug("Mapped " + numRow + " x " + numCol + " null scores onto: " + file);
+            return segments;
+        }
+    }
+
+    /**
+     * A read only view of a store whose row r is row rows[r] of that store, so that several rows can be one and
+     * the same (as when gene sets of the same size share a null distribution, see KSTests).
+     * <p/>
+     * Row r may also be rotated: its column c is column (c + colOffsets[r]) of rows[r], wrapping at the length of
+     * that row. The row then holds the same scores, but rows that share a row of the store need not line up
+     * column for column.
+     */
+    public static class RowMapped extends AbstractStore {
+
+        private final NullScoreStore fStore;
+
+        private final int[] fRows;
+
+        private final int[] fColOffsets;
+
+        public RowMapped(final NullScoreStore store, final int[] rows) {
+            this(store, rows, new int[rows.length]);
+        }
+
+        public RowMapped(final NullScoreStore store, final int[] rows, final int[] colOffsets) {
+            super(rows.length, store.getNumCol());
+
+            if (colOffsets.length != rows.length) {
+                throw new IllegalArgumentException("Need an offset per row, got: " + colOffsets.length + " for rows: " + rows.length);
+            }
+
+            for (int r = 0; r < rows.length; r++) {
+                if (rows[r] < 0 || rows[r] >= store.getNumRow()) {
+                    throw new IllegalArgumentException("Row: " + rows[r] + " not in store of rows: " + store.getNumRow());
+                }
+
+                if (colOffsets[r] < 0) {
+                    throw new IllegalArgumentException("Column offset cannot be negative: " + colOffsets[r]);
+                }
+            }
+
+            this.fStore = store;
+            this.fRows = rows.clone();
+            this.fColOffsets = colOffsets.clone();
+        }
+
+        public int getRowLength(final int row) {
+            return fStore.getRowLength(fRows[row]);
+        }
+
+        // The offset of row, within its length
+        private int offset(final int row) {
+            final int len = fStore.getRowLength(fRows[row]);
+            return (len == 0) ? 0 : fColOffsets[row] % len;
+        }
+
+        public float getElement(final int row, final int col) {
+            final int off = offset(row);
+            if (off == 0 || col >= fStore.getRowLength(fRows[row])) {
+                return fStore.getElement(fRows[row], col);
+            }
+
+            return fStore.getElement(fRows[row], (col + off) % fStore.getRowLength(fRows[row]));
+        }
+
+        public void getRow(final int row, final float[] into) {
+            final int off = offset(row);
+            if (off == 0) {
+                fStore.getRow(fRows[row], into);
+                return;
+            }
+
+            final int len = fStore.getRowLength(fRows[row]);
+            final float[] scores = new float[len];
+            fStore.getRow(fRows[row], scores);
+            System.arraycopy(scores, off, into, 0, len - off);
+            System.arraycopy(scores, 0, into, len - off, off);
+        }
+
+        public void getColumn(final int col, final float[] into) {
+            checkColumn(col);
+            for (int r = 0; r < fNumRow; r++) {
+                into[r] = getElement(r, col);
+            }
+        }
+
+        public void setColumn(final int col, final float[] values) {
+            throw new IllegalStateException("Row mapped scores are read only");
+        }
+
+        public void setRow(final int row, final float[] values, final int length) {
+            throw new IllegalStateException("Row mapped scores are read only");
+        }
+    }
+
+}
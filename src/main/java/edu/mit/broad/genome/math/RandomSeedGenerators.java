@@ -119,4 +119,28 @@ public class RandomSeedGenerators {
         }
     }
 
+    /**
+     * A random source picked up part way, e.g. as saved in a checkpoint
+     */
+    public static class Restored implements RandomSeedGenerator {
+
+        private Random fRandom;
+
+        public Restored(final Random random) {
+            if (random == null) {
+                throw new IllegalArgumentException("Param random cannot be null");
+            }
+
+            this.fRandom = random;
+        }
+
+        public String toString() {
+            return "restored";
+        }
+
+        public Random getRandom() {
+            return fRandom;
+        }
+    }
+
 }
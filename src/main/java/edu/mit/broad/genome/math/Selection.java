@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.math;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics (median, percentiles) by selection rather than by sorting.
+ * <p/>
+ * Works in place on a range of a float array, which the caller would typically reuse across calls; the
+ * range is left partially ordered. Values are ordered as in Arrays.sort (i.e. Float.compare: -0.0 before
+ * 0.0 and NaNs last), so the results are the same as picking from a sorted copy.
+ * <p/>
+ * Introselect: quickselect with a median of three pivot, falling back to sorting the remaining range if
+ * the partitioning makes too little progress, so the worst case stays O(n log n) and the usual case O(n).
+ */
+public class Selection {
+
+    // Ranges this small are simply insertion sorted
+    private static final int INSERTION_SORT_THRESHOLD = 12;
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private Selection() {
+    }
+
+    /**
+     * Rearranges a[from, to) so that a[k] holds the value it would have if the range were sorted,
+     * with nothing greater before it and nothing smaller after it.
+     *
+     * @param k index into a, from <= k < to
+     */
+    public static void select(final float[] a, final int from, final int to, final int k) {
+        if (k < from || k >= to) {
+            throw new IllegalArgumentException("Index k: " + k + " not in range [" + from + ", " + to + ")");
+        }
+
+        int lo = from;
+        int hi = to - 1;
+        int budget = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+
+        while (hi > lo) {
+            if (hi - lo < INSERTION_SORT_THRESHOLD) {
+                insertionSort(a, lo, hi);
+                return;
+            }
+
+            if (budget-- == 0) {
+                Arrays.sort(a, lo, hi + 1);
+                return;
+            }
+
+            // Median of three, which also leaves sentinels at lo and hi
+            final int mid = (lo + hi) >>> 1;
+            if (Float.compare(a[mid], a[lo]) < 0) {
+                swap(a, lo, mid);
+            }
+            if (Float.compare(a[hi], a[lo]) < 0) {
+                swap(a, lo, hi);
+            }
+            if (Float.compare(a[hi], a[mid]) < 0) {
+                swap(a, mid, hi);
+            }
+
+            final float pivot = a[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (Float.compare(a[i], pivot) < 0) {
+                    i++;
+                }
+                while (Float.compare(a[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // [lo, j] <= pivot, [i, hi] >= pivot and anything in between equals the pivot
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Same as Vector.median() of the values in a[from, to): the middle value, or the (float) average
+     * of the middle two for an even number of values. NaN for an empty range.
+     * The range is rearranged.
+     */
+    public static double median(final float[] a, final int from, final int to) {
+        final int n = to - from;
+        if (n == 0) {
+            return Float.NaN;
+        }
+
+        final int ind = from + (n - 1) / 2;
+        select(a, from, to, ind);
+
+        if (n % 2 == 0) {
+            // The upper middle value is the least of those after the lower one
+            float upper = a[ind + 1];
+            for (int i = ind + 2; i < to; i++) {
+                if (Float.compare(a[i], upper) < 0) {
+                    upper = a[i];
+                }
+            }
+            return (a[ind] + upper) / 2;
+        } else {
+            return a[ind];
+        }
+    }
+
+    /**
+     * The percentile of the values in a[from, to), interpolating linearly between the two closest ranks
+     * (i.e. the value at rank (n - 1) * p / 100 of the sorted values). NaN for an empty range.
+     * The range is rearranged.
+     *
+     * @param p between 0 and 100 (inclusive)
+     */
+    public static double percentile(final float[] a, final int from, final int to, final double p) {
+        if (p < 0 || p > 100 || Double.isNaN(p)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, got: " + p);
+        }
+
+        final int n = to - from;
+        if (n == 0) {
+            return Float.NaN;
+        }
+
+        final double h = (n - 1) * p / 100;
+        final int lower = (int) Math.floor(h);
+        select(a, from, to, from + lower);
+        final float lowerValue = a[from + lower];
+
+        if (lower == n - 1 || h == lower) {
+            return lowerValue;
+        }
+
+        float upperValue = a[from + lower + 1];
+        for (int i = from + lower + 2; i < to; i++) {
+            if (Float.compare(a[i], upperValue) < 0) {
+                upperValue = a[i];
+            }
+        }
+
+        return lowerValue + (h - lower) * ((double) upperValue - lowerValue);
+    }
+
+    private static void insertionSort(final float[] a, final int lo, final int hi) {
+        for (int i = lo + 1; i <= hi; i++) {
+            final float val = a[i];
+            int j = i - 1;
+            while (j >= lo && Float.compare(a[j], val) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = val;
+        }
+    }
+
+    private static void swap(final float[] a, final int i, final int j) {
+        final float tmp = a[i];
+        a[i] = a[j];
+        a[j] = tmp;
+    }
+
+}
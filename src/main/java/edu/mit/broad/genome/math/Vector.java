@@ -314,20 +314,8 @@ public class Vector {
             return Float.NaN;
         }
 
-        // mangelos
-        int aLen = elementCount;
-        float[] v1 = new float[aLen];
-
-        System.arraycopy(elementData, 0, v1, 0, aLen);
-        Arrays.sort(v1);
-
-        int ind = (aLen - 1) / 2;
-
-        if (XMath.isEven(aLen)) {
-            return (v1[ind] + v1[aLen / 2]) / 2;
-        } else {
-            return v1[ind];
-        }
+        // Select from a copy rather than sort it
+        return Selection.median(Arrays.copyOf(elementData, elementCount), 0, elementCount);
     }
 
     private Vector fNaNless;
@@ -899,6 +887,13 @@ public class Vector {
         return buf.toString();
     }
 
+    /**
+     * Copies the elements of this Vector into dest, starting at destPos
+     */
+    public void copyInto(final float[] dest, final int destPos) {
+        System.arraycopy(elementData, 0, dest, destPos, elementCount);
+    }
+
     public double[] toArrayDouble() {
 
         double[] dest = new double[elementData.length];
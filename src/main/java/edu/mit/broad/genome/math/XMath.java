@@ -65,13 +65,32 @@ public class XMath {
     }
 
     public static float getFWERLessThan(final float realScore, final Matrix rndScores) {
+        return (float) XMath.getPValueLessThan(realScore, getLowestOfEachPerm(rndScores));
+    }
+
+    /**
+     * Same as getFWERTwoTailed(realScore, rndScores) with the per permutation extremes worked out ahead
+     * (so that they can be shared by all the real scores)
+     *
+     * @param best_of_each_perm   rndScores.getColumnMaxes()
+     * @param lowest_of_each_perm getLowestOfEachPerm(rndScores)
+     */
+    public static float getFWERTwoTailed(final float realScore, final Vector best_of_each_perm,
+                                         final Vector lowest_of_each_perm) {
+        if (isPositive(realScore)) {
+            return (float) XMath.getPValue(realScore, best_of_each_perm);
+        } else {
+            return (float) XMath.getPValueLessThan(realScore, lowest_of_each_perm);
+        }
+    }
 
+    public static Vector getLowestOfEachPerm(final Matrix rndScores) {
         Vector lowest_of_each_perm = new Vector(rndScores.getNumCol());
         for (int c = 0; c < rndScores.getNumCol(); c++) {
             lowest_of_each_perm.setElement(c, rndScores.getColumnV(c).min());
         }
 
-        return (float) XMath.getPValueLessThan(realScore, lowest_of_each_perm);
+        return lowest_of_each_perm;
     }
 
     /**
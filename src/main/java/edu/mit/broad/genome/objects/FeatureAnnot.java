@@ -8,6 +8,7 @@ import edu.mit.broad.genome.TraceUtils;
 import edu.mit.broad.vdb.chip.Chip;
 import edu.mit.broad.vdb.meg.Gene;
 
+import gnu.trove.TObjectIntHashMap;
 import org.apache.log4j.Logger;
 
 import java.util.List;
@@ -140,7 +141,7 @@ public class FeatureAnnot extends AbstractObject {
             return null;
         }
 
-        int index = fFeatureNamesList.indexOf(featureName);
+        int index = _featureIndex(featureName);
         if (index == -1) {
             log.warn("No such such feature: >" + featureName + "< " + getName());
             return null;
@@ -149,6 +150,25 @@ public class FeatureAnnot extends AbstractObject {
         }
     }
 
+    // Lazily filled; the first index of each name, as indexOf (so looking up every row is not quadratic)
+    private volatile TObjectIntHashMap fFeatureIndexMap;
+
+    private int _featureIndex(final String featureName) {
+        if (fFeatureIndexMap == null) {
+            final TObjectIntHashMap map = new TObjectIntHashMap();
+            for (int i = fFeatureNamesList.size() - 1; i >= 0; i--) {
+                map.put(fFeatureNamesList.get(i), i);
+            }
+            fFeatureIndexMap = map;
+        }
+
+        if (featureName == null || !fFeatureIndexMap.containsKey(featureName)) {
+            return -1;
+        }
+
+        return fFeatureIndexMap.get(featureName);
+    }
+
     public String getGeneSymbol(final String featureName) {
         return fHelper.getGeneSymbol(featureName, fChip);
     }
@@ -212,17 +212,16 @@ public class LabelledVector extends AbstractObject {
      * and that causes linkage errors if calling an alg class.
      */
     public RankedList sort(final SortMode sort, final Order order) {
-        DoubleElement[] dels = this.toDoubleElements();
-        dels = DoubleElement.sort(sort, order, dels);
-
-        List<String> labels = new ArrayList<String>(dels.length);
-        Vector v = new Vector(dels.length);
-        for (int i = 0; i < dels.length; i++) {
-            labels.add(this.getLabel(dels[i].fIndex));
-            v.setElement(i, (float) dels[i].fValue);
+        final float[] scores = new float[getSize()];
+        fVector.copyInto(scores, 0);
+        final int[] sorted = ArgSort.argsort(scores, sort, order);
+
+        List<String> labels = new ArrayList<String>(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            labels.add(this.getLabel(sorted[i]));
         }
 
-        return new DefaultRankedList(getName(), labels, v);
+        return new DefaultRankedList(getName(), labels, new Vector(ArgSort.gather(scores, sorted), true));
     }
 
     private int _labelIndex(final String label) {
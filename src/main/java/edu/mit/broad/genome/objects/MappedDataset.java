@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.objects;
+
+import edu.mit.broad.genome.math.Matrix;
+import edu.mit.broad.genome.math.Vector;
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A Dataset whose values are not held on the heap but read in place from a (memory mapped) block of floats in a
+ * file: numRow x numCol little endian floats, row by row, from some offset on (as the binary dataset format lays
+ * them out, see BinaryDatasetParser). So a Dataset larger than the heap can be used, and is there as soon as it
+ * is mapped. The names and annotation are held as for a DefaultDataset.
+ * <p/>
+ * The file is mapped in segments of whole rows (a single mapping is at most 2GB). Rows, columns and elements are
+ * read from the mapping (and the rows and columns copied out as Vectors); getMatrix copies the lot onto the heap,
+ * so is best avoided on big ones.
+ * <p/>
+ * Immutable; safe for concurrent reads. The file must not be changed while the Dataset is in use.
+ */
+public class MappedDataset extends AbstractObject implements Dataset {
+
+    private static final long serialVersionUID = 1L;
+
+    // The most bytes mapped as one segment
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final File fFile;
+
+    private final long fDataOffset;
+
+    private final int fRowsPerSegment;
+
+    private final List<String> fRowNames;
+
+    private final List<String> fColNames;
+
+    private volatile GeneSet rowNamesGeneSet; // lazilly filled
+
+    private final TObjectIntHashMap fRowIndexNameHashMap;
+
+    private final Annot fAnn;
+
+    private final String fQuickInfo;
+
+    // Mapped on construction, and again (lazily) if deserialized
+    private transient volatile FloatBuffer[] fSegments;
+
+    /**
+     * @param file       the file with the floats
+     * @param dataOffset where the floats start in the file
+     */
+    public MappedDataset(final String name,
+                         final File file,
+                         final long dataOffset,
+                         final List<String> rowNames,
+                         final List<String> colNames,
+                         final Annot annOpt) throws IOException {
+
+        if (file == null) {
+            throw new IllegalArgumentException("Param file cant be null");
+        }
+
+        if (rowNames == null) {
+            throw new IllegalArgumentException("Param rowNames cant be null");
+        }
+
+        if (colNames == null) {
+            throw new IllegalArgumentException("Param colNames cant be null");
+        }
+
+        if (dataOffset < 0) {
+            throw new IllegalArgumentException("Param dataOffset cant be negative: " + dataOffset);
+        }
+
+        super.initialize(name);
+        this.fFile = file;
+        this.fDataOffset = dataOffset;
+        this.fRowNames = Collections.unmodifiableList(rowNames);
+        this.fColNames = Collections.unmodifiableList(colNames);
+        ensureAllUniqueValues(fColNames);
+
+        final long bytesPerRow = 4L * colNames.size();
+        if (bytesPerRow > MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Too many columns to map a row: " + colNames.size());
+        }
+        this.fRowsPerSegment = (bytesPerRow == 0) ? Integer.MAX_VALUE : (int) (MAX_SEGMENT_BYTES / bytesPerRow);
+
+        if (annOpt != null && annOpt.getFeatureAnnot().getNumFeatures() < fRowNames.size()) {
+            throw new IllegalArgumentException("Annot features is less than dataset rowNames: "
+                    + annOpt.getFeatureAnnot().getNumFeatures() + " " + fRowNames.size());
+        }
+
+        // @note made here rather than lazily (as DefaultDataset does) so that concurrent reads need no locking
+        if (annOpt == null) {
+            this.fAnn = new Annot(new FeatureAnnot(getName(), fRowNames, null), new SampleAnnot(getName(), fColNames));
+        } else {
+            this.fAnn = annOpt;
+        }
+
+        this.fRowIndexNameHashMap = new TObjectIntHashMap();
+        for (int r = 0; r < fRowNames.size(); r++) {
+            fRowIndexNameHashMap.put(fRowNames.get(r), r);
+        }
+
+        this.fQuickInfo = fRowNames.size() + "x" + fColNames.size() + " (mapped)";
+        this.fSegments = map();
+    }
+
+    private FloatBuffer[] map() throws IOException {
+        final int numRow = fRowNames.size();
+        final int numCol = fColNames.size();
+        final long length = 4L * numRow * numCol;
+
+        final RandomAccessFile raf = new RandomAccessFile(fFile, "r");
+        try {
+            final FileChannel ch = raf.getChannel();
+            if (ch.size() < fDataOffset + length) {
+                throw new IOException("File: " + fFile.getPath() + " is too short for " + numRow + "x" + numCol
+                        + " floats from: " + fDataOffset + " size: " + ch.size());
+            }
+
+            final int numSegments = (numRow == 0 || numCol == 0) ? 0 : (numRow + fRowsPerSegment - 1) / fRowsPerSegment;
+            final FloatBuffer[] segments = new FloatBuffer[numSegments];
+            for (int s = 0; s < numSegments; s++) {
+                final long firstRow = (long) s * fRowsPerSegment;
+                final long numRows = Math.min(fRowsPerSegment, numRow - firstRow);
+                segments[s] = ch.map(FileChannel.MapMode.READ_ONLY, fDataOffset + firstRow * numCol * 4L, numRows * numCol * 4L)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            return segments;
+        } finally {
+            raf.close(); // @note the mappings stay valid
+        }
+    }
+
+    private FloatBuffer[] _segments() {
+        FloatBuffer[] segments = fSegments;
+        if (segments == null) {
+            synchronized (this) {
+                segments = fSegments;
+                if (segments == null) {
+                    try {
+                        segments = map();
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Could not map the values of dataset: " + getName() + " from: " + fFile, e);
+                    }
+                    this.fSegments = segments;
+                }
+            }
+        }
+
+        return segments;
+    }
+
+    private static void ensureAllUniqueValues(List<String> cols) {
+        Set<String> set = new HashSet<String>();
+        for (int i = 0; i < cols.size(); i++) {
+            String item = cols.get(i);
+            if (set.contains(item)) {
+                throw new IllegalArgumentException("Duplicate COL names are NOT allowed in Datasets. The offending entry was: " + item + " at pos: " + i);
+            }
+            set.add(item);
+        }
+    }
+
+    /**
+     * @return the file the values are mapped from
+     */
+    public File getFile() {
+        return fFile;
+    }
+
+    public Annot getAnnot() {
+        return fAnn;
+    }
+
+    public String getRowName(int rown) {
+        return fRowNames.get(rown);
+    }
+
+    public List<String> getRowNames() {
+        return fRowNames;
+    }
+
+    public int getRowIndex(String rowName) {
+
+        if (rowName == null) {
+            throw new IllegalArgumentException("rowName cannot be null: " + rowName);
+        }
+
+        if (!fRowIndexNameHashMap.containsKey(rowName)) {
+            return -1;
+        }
+
+        return fRowIndexNameHashMap.get(rowName);
+    }
+
+    public List<String> getColumnNames() {
+        return fColNames;
+    }
+
+    public GeneSet getRowNamesGeneSet() {
+        GeneSet gset = rowNamesGeneSet;
+        if (gset == null) {
+            synchronized (this) {
+                gset = rowNamesGeneSet;
+                if (gset == null) {
+                    gset = new GeneSet(getName(), new HashSet<String>(fRowNames));
+                    this.rowNamesGeneSet = gset;
+                }
+            }
+        }
+
+        return gset;
+    }
+
+    public int getColumnIndex(String colName) {
+        return fColNames.indexOf(colName);
+    }
+
+    public String getColumnName(int coln) {
+        return fColNames.get(coln);
+    }
+
+    public int getNumRow() {
+        return fRowNames.size();
+    }
+
+    public int getNumCol() {
+        return fColNames.size();
+    }
+
+    public Vector getRow(String rowName) {
+        return getRow(getRowIndex(rowName));
+    }
+
+    public Vector[] getRows(GeneSet gset) {
+        Vector[] vss = new Vector[gset.getNumMembers()];
+        for (int i = 0; i < gset.getNumMembers(); i++) {
+            vss[i] = getRow(gset.getMember(i));
+        }
+
+        return vss;
+    }
+
+    public float getElement(int rown, int coln) {
+        checkRow(rown);
+        if (coln < 0 || coln >= getNumCol()) {
+            throw new ArrayIndexOutOfBoundsException("col:" + coln + " not in [0, " + getNumCol() + ")");
+        }
+
+        return _segments()[rown / fRowsPerSegment].get((rown % fRowsPerSegment) * getNumCol() + coln);
+    }
+
+    public Vector getRow(int rown) {
+        checkRow(rown);
+        final int numCol = getNumCol();
+        final float[] values = new float[numCol];
+        if (numCol > 0) {
+            final FloatBuffer segment = _segments()[rown / fRowsPerSegment];
+            final int from = (rown % fRowsPerSegment) * numCol;
+            for (int c = 0; c < numCol; c++) {
+                values[c] = segment.get(from + c); // @note absolute gets, so safe for concurrent use
+            }
+        }
+
+        return new Vector(values, true);
+    }
+
+    public Vector getColumn(int coln) {
+        final int numRow = getNumRow();
+        final float[] values = new float[numRow];
+        for (int r = 0; r < numRow; r++) {
+            values[r] = getElement(r, coln);
+        }
+
+        return new Vector(values, true);
+    }
+
+    public int getDim() {
+        return getNumRow() * getNumCol();
+    }
+
+    /**
+     * @return A copy (on the heap) of the values, immutable
+     */
+    public Matrix getMatrix() {
+        final Matrix matrix = new Matrix(getNumRow(), getNumCol());
+        for (int r = 0; r < getNumRow(); r++) {
+            matrix.setRow(r, getRow(r));
+        }
+
+        matrix.setImmutable();
+        return matrix;
+    }
+
+    private void checkRow(final int rown) {
+        if (rown < 0 || rown >= getNumRow()) {
+            throw new ArrayIndexOutOfBoundsException("row:" + rown + " not in [0, " + getNumRow() + ")");
+        }
+    }
+
+    public String getQuickInfo() {
+        return fQuickInfo;
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.objects;
+
+import edu.mit.broad.genome.NotImplementedException;
+import edu.mit.broad.genome.math.Matrix;
+import edu.mit.broad.genome.math.NullScoreStore;
+import edu.mit.broad.genome.math.Vector;
+import gnu.trove.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A Dataset that reads its values in place from a NullScoreStore (which may well be off heap or memory mapped)
+ * rather than holding them in a Matrix. Rows and columns are copied out of the store as they are asked for.
+ * <p/>
+ * There is no Matrix, so getMatrix is not implemented. Safe for concurrent reads.
+ * <p/>
+ * Rows are always getNumCol() long: the scores a (shorter) row of the store does not hold read as NaN.
+ */
+public class NullScoreDataset extends AbstractObject implements Dataset {
+
+    private static final long serialVersionUID = 1L;
+
+    private final NullScoreStore fStore;
+
+    private final List<String> fRowNames;
+
+    private final List<String> fColNames;
+
+    // Built up front so that the lookups are safe from several threads
+    private final TObjectIntHashMap fRowIndexNameHashMap;
+
+    private GeneSet fRowNamesGeneSet; // lazilly filled
+
+    private Annot fAnn; // lazilly filled
+
+    public NullScoreDataset(final String name,
+                            final NullScoreStore store,
+                            final List<String> rowNames,
+                            final List<String> colNames) {
+        super(name);
+
+        if (store == null) {
+            throw new IllegalArgumentException("Param store cannot be null");
+        }
+
+        if (rowNames == null) {
+            throw new IllegalArgumentException("Param rowNames cannot be null");
+        }
+
+        if (colNames == null) {
+            throw new IllegalArgumentException("Param colNames cannot be null");
+        }
+
+        if (store.getNumRow() != rowNames.size()) {
+            throw new IllegalArgumentException("Store nrows: " + store.getNumRow() + " and rownames: "
+                    + rowNames.size() + " do not match in size");
+        }
+
+        if (store.getNumCol() != colNames.size()) {
+            throw new IllegalArgumentException("Store ncols: " + store.getNumCol() + " and colnames: "
+                    + colNames.size() + " do not match in size");
+        }
+
+        this.fStore = store;
+        this.fRowNames = Collections.unmodifiableList(new ArrayList<String>(rowNames));
+        this.fColNames = Collections.unmodifiableList(new ArrayList<String>(colNames));
+        this.fRowIndexNameHashMap = new TObjectIntHashMap();
+        for (int r = 0; r < fRowNames.size(); r++) {
+            fRowIndexNameHashMap.put(fRowNames.get(r), r);
+        }
+    }
+
+    public NullScoreStore getStore() {
+        return fStore;
+    }
+
+    public Annot getAnnot() {
+        if (fAnn == null) {
+            final FeatureAnnot fann = new FeatureAnnot(getName(), fRowNames, null);
+            final SampleAnnot sann = new SampleAnnot(getName(), getColumnNames());
+            this.fAnn = new Annot(fann, sann);
+        }
+
+        return fAnn;
+    }
+
+    public Vector getRow(final int rown) {
+        final float[] values = new float[fStore.getNumCol()];
+        fStore.getRow(rown, values);
+        for (int c = fStore.getRowLength(rown); c < values.length; c++) {
+            values[c] = Float.NaN;
+        }
+
+        return new Vector(values, true);
+    }
+
+    public Vector getRow(final String rowName) {
+        final int index = getRowIndex(rowName);
+        if (index == -1) {
+            throw new IllegalArgumentException("No such row: " + rowName);
+        }
+
+        return getRow(index);
+    }
+
+    public Vector[] getRows(final GeneSet gset) {
+        final Vector[] vss = new Vector[gset.getNumMembers()];
+        for (int i = 0; i < gset.getNumMembers(); i++) {
+            vss[i] = getRow(gset.getMember(i));
+        }
+
+        return vss;
+    }
+
+    public Vector getColumn(final int coln) {
+        return fStore.getColumn(coln);
+    }
+
+    public float getElement(final int row, final int column) {
+        return fStore.getElement(row, column);
+    }
+
+    public String getRowName(final int rown) {
+        return fRowNames.get(rown);
+    }
+
+    public List<String> getRowNames() {
+        return fRowNames;
+    }
+
+    public GeneSet getRowNamesGeneSet() {
+        if (fRowNamesGeneSet == null) {
+            fRowNamesGeneSet = new GeneSet(getName(), new HashSet<String>(fRowNames));
+        }
+        return fRowNamesGeneSet;
+    }
+
+    public List<String> getColumnNames() {
+        return fColNames;
+    }
+
+    public String getColumnName(final int coln) {
+        return fColNames.get(coln);
+    }
+
+    public int getRowIndex(final String rowName) {
+        if (rowName == null) {
+            throw new IllegalArgumentException("rowName cannot be null: " + rowName);
+        }
+
+        if (!fRowIndexNameHashMap.containsKey(rowName)) {
+            return -1;
+        }
+
+        return fRowIndexNameHashMap.get(rowName);
+    }
+
+    public int getColumnIndex(final String colName) {
+        return fColNames.indexOf(colName);
+    }
+
+    public int getNumRow() {
+        return fRowNames.size();
+    }
+
+    public int getNumCol() {
+        return fColNames.size();
+    }
+
+    public Matrix getMatrix() {
+        throw new NotImplementedException("A NullScoreDataset has no Matrix; read its rows or columns instead");
+    }
+
+    public int getDim() {
+        return getNumRow() * getNumCol();
+    }
+
+    public String getQuickInfo() {
+        return getNumRow() + "x" + getNumCol();
+    }
+
+}
@@ -6,4 +6,14 @@ package edu.mit.broad.genome.objects;
 /* Could be inlined eventually... */
 public interface ScoredDataset extends RankedList, Dataset {
 
+    /**
+     * @return the Dataset that was scored, with its rows in their original (unsorted) order
+     */
+    public Dataset getUnscoredDataset();
+
+    /**
+     * @return the row in getUnscoredDataset() of the feature at the specified rank
+     */
+    public int getUnscoredRowIndex(final int rank);
+
 }
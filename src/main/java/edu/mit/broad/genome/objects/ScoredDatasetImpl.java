@@ -86,6 +86,18 @@ public class ScoredDatasetImpl extends AbstractObject implements ScoredDataset {
         this.fRowNamesInSdsOrder = Collections.unmodifiableList(fRowNamesInSdsOrder);
     }
 
+    /**
+     * Class Constructor.
+     * As above, but straight from a sorted order (such as from ArgSort) and the scores in that order.
+     * Neither array is copied.
+     *
+     * @param order  the Dataset row index of each position in the ranking
+     * @param scores the score at each position in the ranking
+     */
+    public ScoredDatasetImpl(final int[] order, final float[] scores, final Dataset ds) {
+        this(new AddressedVector(scores, order), ds);
+    }
+
     public RankedList cloneShallowRL(final String newName) {
         super.setName(newName);
         return this;
@@ -239,6 +251,14 @@ public class ScoredDatasetImpl extends AbstractObject implements ScoredDataset {
         return fIndVector.getAddress(index);
     }
 
+    public Dataset getUnscoredDataset() {
+        return fDataset;
+    }
+
+    public int getUnscoredRowIndex(final int sdsrown) {
+        return sdsrown2posinds(sdsrown);
+    }
+
     /**
      * --------------------------------------------------------------
      * <p/>
@@ -10,7 +10,11 @@ import edu.mit.broad.genome.objects.strucs.TemplateRandomizerType;
 import org.apache.log4j.Logger;
 
 /**
+ * Makes random permutations of a Template as Templates. For a long run of them, draw them from a
+ * TemplatePermutations instead and make Templates only as they are needed.
+ *
  * @author Aravind Subramanian
+ * @see TemplatePermutations
  */
 public class TemplateFactoryRandomizer {
 
@@ -31,22 +35,14 @@ public class TemplateFactoryRandomizer {
                                                    final RandomSeedGenerator rst,
                                                    final boolean silent) {
 
-        Template[] tss;
-
         if (silent == false) {
             klog.debug("TemplateRandomizerType: " + rt.toString());
         }
 
-        if (rt == TemplateRandomizerType.NO_BALANCE) {
-            tss = createRandomTemplates(num, origTemplate, rst);
-        } else if (rt == TemplateRandomizerType.BALANCED_CLASS0) {
-            tss = createRandomAuxBalancedTemplates(num, origTemplate, true, rst);
-        } else if (rt == TemplateRandomizerType.BALANCED_CLASS1) {
-            tss = createRandomAuxBalancedTemplates(num, origTemplate, false, rst);
-        } else if (rt == TemplateRandomizerType.EQUALIZE_AND_BALANCE) {
-            tss = createRandomAuxEqualizedAndBalancedTemplates(num, origTemplate, rst);
-        } else {
-            throw new IllegalArgumentException("Unknown RandomizerType: " + rt);
+        final TemplatePermutations perms = new TemplatePermutations(origTemplate, rt, rst);
+        final Template[] tss = new Template[num];
+        for (int i = 0; i < num; i++) {
+            tss[i] = perms.createTemplate(perms.next());
         }
 
         return tss;
@@ -56,13 +52,7 @@ public class TemplateFactoryRandomizer {
                                                    final Template origTemplate,
                                                    final RandomSeedGenerator rsgen) {
 
-        Template[] templates = new Template[num];
-
-        for (int i = 0; i < num; i++) {
-            templates[i] = createRandomTemplate(origTemplate, rsgen);
-        }
-
-        return templates;
+        return createRandomTemplates(num, origTemplate, TemplateRandomizerType.NO_BALANCE, rsgen, true);
     }
 
     /**
@@ -76,61 +66,8 @@ public class TemplateFactoryRandomizer {
     public static Template createRandomTemplate(final Template origTemplate,
                                                 final RandomSeedGenerator rsgen) {
 
-        if (origTemplate.isContinuous()) { // better to call that as the assign items on cont templates can barf (on dupl items)
-            Vector rnd = createRandomTemplateContinuousV(origTemplate, rsgen);
-            return TemplateFactory.createContinuousTemplate(origTemplate.getName(), rnd);
-        } else {
-
-            // @note for now only allow rnd of 2 class templates
-            if (origTemplate.getNumClasses() != 2) {
-                throw new IllegalArgumentException("Only 2 class templates rnd allowed: " + origTemplate.getNumClasses());
-            }
-
-            /**
-             * Need to pick from existing template randomly into a new one
-             * WITHOUT repetition
-             */
-            final int[] inds = XMath.randomizeWithoutReplacement(origTemplate.getNumItems(), rsgen);
-
-            final Template.Item[] items = origTemplate.getItemsOrderedByProfilePos();
-            final Template.Item[] newItems = new Template.Item[items.length];
-            final TemplateImpl newT = new TemplateImpl(origTemplate.getName());
-
-            for (int i = 0; i < items.length; i++) {
-                final Template.Item real_item = items[i];
-                final Template.Item real_rnd_item = items[inds[i]];
-                //String rndLabel = real_rnd_item.getId();
-                final Template.Class cl = origTemplate.getClass(real_rnd_item);
-                // cant use rnd label as item label (e.g t) need not be the same as class label (e.g tumor)
-                //newItems[i] = TemplateImpl.ItemImpl.createItem(rndLabel, real_item.getProfilePosition());//rnd label (class), same position(data);
-                newItems[i] = TemplateImpl.ItemImpl.createItem(cl.getName(), real_item.getProfilePosition());//rnd label (class), same position(data);
-                newT.add(newItems[i]);
-            }
-
-            final TemplateImpl.ClassImpl newClassA = new TemplateImpl.ClassImpl(origTemplate.getClass(0).getName());
-            final TemplateImpl.ClassImpl newClassB = new TemplateImpl.ClassImpl(origTemplate.getClass(1).getName());
-
-            // @note make our custom assignments here
-            for (int i = 0; i < newItems.length; i++) {
-                if (newItems[i].getId().equals(newClassA.getName())) {
-                    newClassA.add(newItems[i]);
-                } else if (newItems[i].getId().equals(newClassB.getName())) {
-                    newClassB.add(newItems[i]);
-                } else {
-                    throw new IllegalStateException("Unknown item class: " + newItems[i].getId());
-                }
-            }
-
-            newT.add(newClassA);
-            newT.add(newClassB);
-            //newt.assignItems();  // DO NOT call - custom addition already done above
-
-            newT.setClassOfInterestIndex(origTemplate.getClassOfInterestIndex());
-            newT.setAux(origTemplate.isAux());
-            newT.setContinuous(false);
-            newT.makeImmutable();
-            return newT;
-        }
+        final TemplatePermutations perms = new TemplatePermutations(origTemplate, TemplateRandomizerType.NO_BALANCE, rsgen);
+        return perms.createTemplate(perms.next());
     }
 
     // ultra fast compared to the other method (i hope)
@@ -141,17 +78,8 @@ public class TemplateFactoryRandomizer {
             throw new IllegalArgumentException("Only valid to call for continuous templates");
         }
 
-        final Vector shufv = new Vector(origContinuousTemplate.getNumItems());
         final int[] inds = XMath.randomizeWithoutReplacement(origContinuousTemplate.getNumItems(), rsgen);
-        final int[] profilePos = origContinuousTemplate.getProfilePositionsOrdered();
-
-        for (int i = 0; i < profilePos.length; i++) {
-            final int rndProfilePos = profilePos[inds[i]];
-            final Template.Item item = origContinuousTemplate.getItemByProfilePos(rndProfilePos);
-            shufv.setElement(i, Float.parseFloat(item.getId()));
-        }
-
-        return shufv;
+        return TemplatePermutations.createContinuousValues(origContinuousTemplate, inds);
     }
 
     /**
@@ -185,24 +113,9 @@ public class TemplateFactoryRandomizer {
                                                            final boolean balanceFirstClass,
                                                            final RandomSeedGenerator rsgen) {
 
-        if (orig.getNumClasses() != 2) {
-            throw new IllegalArgumentException("Balanced rnd only possible for 2 class templates");
-        }
-
-        if (balanceFirstClass) {
-            Template.Class one = orig.getClass(0);
-            int oneNum = one.getSize() / 2; // @note
-            int twoNum = one.getSize() - oneNum; // the rest
-            Template.Class two = orig.getClass(1);
-            return createRandomConstrainedTemplate(orig, one, oneNum, two, twoNum, rsgen);
-        } else {
-            Template.Class one = orig.getClass(0);
-            Template.Class two = orig.getClass(1);
-            int twoNum = two.getSize() / 2; // @note
-            int oneNum = one.getSize() - twoNum;
-            return createRandomConstrainedTemplate(orig, one, oneNum, two, twoNum, rsgen);
-        }
-
+        final TemplatePermutations perms = new TemplatePermutations(orig,
+                balanceFirstClass ? TemplateRandomizerType.BALANCED_CLASS0 : TemplateRandomizerType.BALANCED_CLASS1, rsgen);
+        return perms.createTemplate(perms.next());
     }
 
     public static Template[] createRandomAuxBalancedTemplates(final int numrnd,
@@ -214,13 +127,8 @@ public class TemplateFactoryRandomizer {
             throw new IllegalArgumentException("Only 2 class templates possible");
         }
 
-        final Template[] rndtss = new Template[numrnd];
-
-        for (int i = 0; i < numrnd; i++) {
-            rndtss[i] = createRandomAuxBalancedTemplate(orig, balanceFirstClass, rsgen);
-        }
-
-        return rndtss;
+        return createRandomTemplates(numrnd, orig,
+                balanceFirstClass ? TemplateRandomizerType.BALANCED_CLASS0 : TemplateRandomizerType.BALANCED_CLASS1, rsgen, true);
     }
 
     public static Template[] createRandomAuxEqualizedAndBalancedTemplates(final int numrnd,
@@ -231,25 +139,9 @@ public class TemplateFactoryRandomizer {
             throw new IllegalArgumentException("Only 2 class templates possible");
         }
 
-        final Template[] rndtss = new Template[numrnd];
-
-        for (int i = 0; i < numrnd; i++) {
-            // first equalize (randomly) Must eq within this loop else all rnds will share the same equalization
-            //int num2use = XMath.min(new int[]{orig.getClass(0).getSize(), orig.getClass(1).getSize()});
-            //Template eqt = createAuxConstrainedRealTemplate(orig, num2use, num2use, rsgen);
-            //klog.debug("Equalizing to: " + num2use);
-            // then balance the rnd
-            // @todo restore me perhaps
-            //rndtss[i] = TemplateFactory.createAuxBalancedRndTemplate(eqt, true, rsgen);// doesnt matter which class is balanced
-
-            final Template.Class one = orig.getClass(0);
-            final int twoNum = one.getSize() / 2; // @note
-            final int oneNum = one.getSize() - twoNum; // the rest (bigger if odd number)
-            final Template.Class two = orig.getClass(1);
-            rndtss[i] = createRandomConstrainedTemplate(orig, one, oneNum, two, twoNum, rsgen);
-        }
-
-        return rndtss;
+        // @note equalizing is not done, only balancing (see TemplatePermutations)
+        // @todo restore me perhaps: first equalize (randomly) within each rnd, then balance it
+        return createRandomTemplates(numrnd, orig, TemplateRandomizerType.EQUALIZE_AND_BALANCE, rsgen, true);
     }
 
     /**
@@ -283,69 +175,12 @@ public class TemplateFactoryRandomizer {
         }
 
         // randomize all c0 indices, but keep only numFromC0inC0 of them
-        int[] inds0 = XMath.randomizeWithoutReplacement(c0.getSize(), rsgen);
-
-        TemplateImpl newt = new TemplateImpl(orig.getName());
-        TemplateImpl.ClassImpl newc0 = new TemplateImpl.ClassImpl(c0.getName());
-        TemplateImpl.ClassImpl newc1 = new TemplateImpl.ClassImpl(c1.getName());
-
-        String id0 = c0.getItem(0).getId(); // some item
-        String id1 = c1.getItem(0).getId(); // some item
-
-        // place the first numFromC0inC0 of these rnd class0 items in the new C0
-        int x0 = 0;
-        for (; x0 < numFromC0inC0; x0++) { // constrain to numFromC0inC0 of them only
-            Template.Item item = c0.getItem(inds0[x0]);
-            Template.Item newitem = TemplateImpl.ItemImpl.createItem(id0, item.getProfilePosition());
-            newc0.add(newitem);
-            newt.add(newitem);
-        }
-
-        // rest go to the other template class
-        for (; x0 < inds0.length; x0++) { // constrain to num of them only
-            Template.Item item = c0.getItem(inds0[x0]);
-            Template.Item newitem = TemplateImpl.ItemImpl.createItem(id1, item.getProfilePosition());
-            newc1.add(newitem);
-            newt.add(newitem);
-        }
+        final int[] inds0 = XMath.randomizeWithoutReplacement(c0.getSize(), rsgen);
 
         // randomize all c1 indices but keep only numFromC1inC0
-        int[] inds1 = XMath.randomizeWithoutReplacement(c1.getSize(), rsgen);
-
-        int x1 = 0;
-        for (; x1 < numFromC1inC0; x1++) { // constrain to num1 of them only
-            Template.Item item = c1.getItem(inds1[x1]);
-            Template.Item newitem = TemplateImpl.ItemImpl.createItem(id0, item.getProfilePosition());
-            newc0.add(newitem);
-            newt.add(newitem);
-        }
-
-        // rest go to the other template class
-        for (; x1 < inds1.length; x1++) { // constrain to num of them only
-            Template.Item item = c1.getItem(inds1[x1]);
-            Template.Item newitem = TemplateImpl.ItemImpl.createItem(id1, item.getProfilePosition());
-            newc1.add(newitem);
-            newt.add(newitem);
-        }
-
-        newt.add(newc0);
-        newt.add(newc1);
-
-        //newt.assignItems();  // DO NOT call - custom addition already done above
-
-        newt.setClassOfInterestIndex(orig.getClassOfInterestIndex());
-
-        if (orig.isAux()) {
-            newt.setAux(true);
-        }
-
-        if (orig.isContinuous()) {
-            newt.setContinuous(true);
-        }
-
-        newt.makeImmutable();
+        final int[] inds1 = XMath.randomizeWithoutReplacement(c1.getSize(), rsgen);
 
-        return newt;
+        return TemplatePermutations.createConstrainedTemplate(orig, c0, numFromC0inC0, c1, numFromC1inC0, inds0, 0, inds1, 0);
     }
 
 } // End class TemplateFactoryRandomizer
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.objects;
+
+import edu.mit.broad.genome.math.RandomSeedGenerator;
+import edu.mit.broad.genome.math.Vector;
+import edu.mit.broad.genome.objects.strucs.TemplateRandomizerType;
+
+import java.util.Random;
+
+/**
+ * The random permutations of a Template, drawn one at a time (from a random source) as compact int arrays
+ * rather than all made up front as Templates. A permutation is only made into a Template (createTemplate) when
+ * something needs one, and can then be let go of.
+ * <p/>
+ * A permutation is the indices drawn for it, getNumItems() of them:
+ * <ul>
+ * <li>no_balance (and continuous templates): a shuffle of [0, numItems) -- the i-th item (by profile position)
+ * takes the class (or value) of the shuffle[i]-th</li>
+ * <li>balance_class0, balance_class1 and equalize_and_balance: a shuffle of the items of class 0 followed by one
+ * of the items of class 1 -- the first few of each shuffle make up the new class 0, the rest the new class 1</li>
+ * </ul>
+ * These are drawn from the random source exactly as TemplateFactoryRandomizer always drew them, so the Templates
+ * made are the same as those of TemplateFactoryRandomizer.createRandomTemplates with the same source.
+ * <p/>
+ * Drawing is not safe for concurrent use; making Templates of drawn permutations is.
+ *
+ * @see TemplateFactoryRandomizer
+ */
+public class TemplatePermutations {
+
+    private final Template fTemplate;
+
+    private final TemplateRandomizerType fType;
+
+    private final Random fRandom;
+
+    private final int fNumItems;
+
+    // For the balanced types: how many of each class go to the new class 0 (the rest to the new class 1)
+    private final int fNumFromC0InC0;
+
+    private final int fNumFromC1InC0;
+
+    // Scratch for the draws
+    private final boolean[] fSeen;
+
+    public TemplatePermutations(final Template origTemplate, final TemplateRandomizerType rt,
+                                final RandomSeedGenerator rst) {
+        if (origTemplate == null) {
+            throw new IllegalArgumentException("Param origTemplate cannot be null");
+        }
+
+        if (rt == null) {
+            throw new IllegalArgumentException("Param rt cannot be null");
+        }
+
+        if (rst == null) {
+            throw new IllegalArgumentException("Param rst cannot be null");
+        }
+
+        if (rt == TemplateRandomizerType.NO_BALANCE) {
+            // @note for now only allow rnd of 2 class templates
+            if (!origTemplate.isContinuous() && origTemplate.getNumClasses() != 2) {
+                throw new IllegalArgumentException("Only 2 class templates rnd allowed: " + origTemplate.getNumClasses());
+            }
+            this.fNumFromC0InC0 = -1;
+            this.fNumFromC1InC0 = -1;
+        } else if (rt == TemplateRandomizerType.BALANCED_CLASS0 || rt == TemplateRandomizerType.BALANCED_CLASS1
+                || rt == TemplateRandomizerType.EQUALIZE_AND_BALANCE) {
+            if (origTemplate.getNumClasses() != 2) {
+                throw new IllegalArgumentException("Balanced rnd only possible for 2 class templates");
+            }
+
+            final int size0 = origTemplate.getClass(0).getSize();
+            final int size1 = origTemplate.getClass(1).getSize();
+            if (rt == TemplateRandomizerType.BALANCED_CLASS0) {
+                this.fNumFromC0InC0 = size0 / 2;
+                this.fNumFromC1InC0 = size0 - fNumFromC0InC0;
+            } else if (rt == TemplateRandomizerType.BALANCED_CLASS1) {
+                this.fNumFromC1InC0 = size1 / 2;
+                this.fNumFromC0InC0 = size0 - fNumFromC1InC0;
+            } else {
+                // @note equalizing is not done (see the note in TemplateFactoryRandomizer); balanced as for class 0
+                // but with the bigger half (if odd) from class 0
+                this.fNumFromC1InC0 = size0 / 2;
+                this.fNumFromC0InC0 = size0 - fNumFromC1InC0;
+            }
+
+            if (fNumFromC1InC0 > size1) {
+                throw new IllegalArgumentException("numFromC1inC0: " + fNumFromC1InC0 + " cannot be larger than size of templateclass 1: " + size1);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown RandomizerType: " + rt);
+        }
+
+        this.fTemplate = origTemplate;
+        this.fType = rt;
+        this.fRandom = rst.getRandom();
+        this.fNumItems = origTemplate.getNumItems();
+        this.fSeen = new boolean[fNumItems];
+    }
+
+    public Template getTemplate() {
+        return fTemplate;
+    }
+
+    public TemplateRandomizerType getType() {
+        return fType;
+    }
+
+    /**
+     * @return the length of a permutation
+     */
+    public int getNumItems() {
+        return fNumItems;
+    }
+
+    /**
+     * @return the next permutation
+     */
+    public int[] next() {
+        final int[] perm = new int[fNumItems];
+        next(perm);
+        return perm;
+    }
+
+    /**
+     * Draws the next permutation into into[0, getNumItems())
+     */
+    public void next(final int[] into) {
+        if (into.length < fNumItems) {
+            throw new IllegalArgumentException("into: " + into.length + " cannot hold a permutation of: " + fNumItems);
+        }
+
+        if (fType == TemplateRandomizerType.NO_BALANCE) {
+            shuffle(into, 0, fNumItems);
+        } else {
+            final int size0 = fTemplate.getClass(0).getSize();
+            shuffle(into, 0, size0);
+            shuffle(into, size0, fNumItems - size0);
+        }
+    }
+
+    /**
+     * Draws (and drops) the next num permutations, e.g. to get to the first of a block of them
+     */
+    public void skip(final int num) {
+        final int[] scratch = new int[fNumItems];
+        for (int i = 0; i < num; i++) {
+            next(scratch);
+        }
+    }
+
+    /**
+     * @param perm a permutation drawn by this
+     */
+    public Template createTemplate(final int[] perm) {
+        if (fType == TemplateRandomizerType.NO_BALANCE) {
+            if (fTemplate.isContinuous()) {
+                return TemplateFactory.createContinuousTemplate(fTemplate.getName(), createContinuousValues(fTemplate, perm));
+            } else {
+                return createShuffledTemplate(fTemplate, perm);
+            }
+        } else {
+            return createConstrainedTemplate(fTemplate, fTemplate.getClass(0), fNumFromC0InC0, fTemplate.getClass(1),
+                    fNumFromC1InC0, perm, 0, perm, fTemplate.getClass(0).getSize());
+        }
+    }
+
+    // into[from, from + num) = a shuffle of [0, num), drawn as XMath.randomizeWithoutReplacement does (the same
+    // nextInt calls, rejecting repeats) but without its list lookups
+    private void shuffle(final int[] into, final int from, final int num) {
+        for (int i = 0; i < num; i++) {
+            fSeen[i] = false;
+        }
+
+        for (int cnt = 0; cnt < num; ) {
+            final int r = fRandom.nextInt(num);
+            if (!fSeen[r]) {
+                fSeen[r] = true;
+                into[from + cnt++] = r;
+            }
+        }
+    }
+
+    /**
+     * The values of a continuous template, shuffled by inds
+     */
+    static Vector createContinuousValues(final Template origContinuousTemplate, final int[] inds) {
+        final Vector shufv = new Vector(origContinuousTemplate.getNumItems());
+        final int[] profilePos = origContinuousTemplate.getProfilePositionsOrdered();
+
+        for (int i = 0; i < profilePos.length; i++) {
+            final int rndProfilePos = profilePos[inds[i]];
+            final Template.Item item = origContinuousTemplate.getItemByProfilePos(rndProfilePos);
+            shufv.setElement(i, Float.parseFloat(item.getId()));
+        }
+
+        return shufv;
+    }
+
+    /**
+     * A 2 class template with the class labels shuffled by inds
+     *
+     * @note IMP to make new items and classes and NOT add orig templates items and classes
+     * (i.e clone dont use refs)
+     * @note we are just randomizing the indices so the number of items in each
+     * class IS preserved.
+     */
+    static Template createShuffledTemplate(final Template origTemplate, final int[] inds) {
+        final Template.Item[] items = origTemplate.getItemsOrderedByProfilePos();
+        final Template.Item[] newItems = new Template.Item[items.length];
+        final TemplateImpl newT = new TemplateImpl(origTemplate.getName());
+
+        for (int i = 0; i < items.length; i++) {
+            final Template.Item real_item = items[i];
+            final Template.Item real_rnd_item = items[inds[i]];
+            final Template.Class cl = origTemplate.getClass(real_rnd_item);
+            // cant use rnd label as item label (e.g t) need not be the same as class label (e.g tumor)
+            newItems[i] = TemplateImpl.ItemImpl.createItem(cl.getName(), real_item.getProfilePosition());//rnd label (class), same position(data);
+            newT.add(newItems[i]);
+        }
+
+        final TemplateImpl.ClassImpl newClassA = new TemplateImpl.ClassImpl(origTemplate.getClass(0).getName());
+        final TemplateImpl.ClassImpl newClassB = new TemplateImpl.ClassImpl(origTemplate.getClass(1).getName());
+
+        // @note make our custom assignments here
+        for (int i = 0; i < newItems.length; i++) {
+            if (newItems[i].getId().equals(newClassA.getName())) {
+                newClassA.add(newItems[i]);
+            } else if (newItems[i].getId().equals(newClassB.getName())) {
+                newClassB.add(newItems[i]);
+            } else {
+                throw new IllegalStateException("Unknown item class: " + newItems[i].getId());
+            }
+        }
+
+        newT.add(newClassA);
+        newT.add(newClassB);
+        //newt.assignItems();  // DO NOT call - custom addition already done above
+
+        newT.setClassOfInterestIndex(origTemplate.getClassOfInterestIndex());
+        newT.setAux(origTemplate.isAux());
+        newT.setContinuous(false);
+        newT.makeImmutable();
+        return newT;
+    }
+
+    /**
+     * A 2 class template with the first numFromC0inC0 items of c0 (as shuffled by inds0, from off0) and the first
+     * numFromC1inC0 of c1 (as shuffled by inds1, from off1) in class 0, and the rest in class 1
+     */
+    static Template createConstrainedTemplate(final Template orig,
+                                              final Template.Class c0,
+                                              final int numFromC0inC0,
+                                              final Template.Class c1,
+                                              final int numFromC1inC0,
+                                              final int[] inds0, final int off0,
+                                              final int[] inds1, final int off1) {
+        final TemplateImpl newt = new TemplateImpl(orig.getName());
+        final TemplateImpl.ClassImpl newc0 = new TemplateImpl.ClassImpl(c0.getName());
+        final TemplateImpl.ClassImpl newc1 = new TemplateImpl.ClassImpl(c1.getName());
+
+        final String id0 = c0.getItem(0).getId(); // some item
+        final String id1 = c1.getItem(0).getId(); // some item
+
+        // place the first numFromC0inC0 of these rnd class0 items in the new C0
+        int x0 = 0;
+        for (; x0 < numFromC0inC0; x0++) { // constrain to numFromC0inC0 of them only
+            final Template.Item item = c0.getItem(inds0[off0 + x0]);
+            final Template.Item newitem = TemplateImpl.ItemImpl.createItem(id0, item.getProfilePosition());
+            newc0.add(newitem);
+            newt.add(newitem);
+        }
+
+        // rest go to the other template class
+        for (; x0 < c0.getSize(); x0++) {
+            final Template.Item item = c0.getItem(inds0[off0 + x0]);
+            final Template.Item newitem = TemplateImpl.ItemImpl.createItem(id1, item.getProfilePosition());
+            newc1.add(newitem);
+            newt.add(newitem);
+        }
+
+        int x1 = 0;
+        for (; x1 < numFromC1inC0; x1++) { // constrain to num1 of them only
+            final Template.Item item = c1.getItem(inds1[off1 + x1]);
+            final Template.Item newitem = TemplateImpl.ItemImpl.createItem(id0, item.getProfilePosition());
+            newc0.add(newitem);
+            newt.add(newitem);
+        }
+
+        // rest go to the other template class
+        for (; x1 < c1.getSize(); x1++) {
+            final Template.Item item = c1.getItem(inds1[off1 + x1]);
+            final Template.Item newitem = TemplateImpl.ItemImpl.createItem(id1, item.getProfilePosition());
+            newc1.add(newitem);
+            newt.add(newitem);
+        }
+
+        newt.add(newc0);
+        newt.add(newc1);
+
+        //newt.assignItems();  // DO NOT call - custom addition already done above
+
+        newt.setClassOfInterestIndex(orig.getClassOfInterestIndex());
+
+        if (orig.isAux()) {
+            newt.setAux(true);
+        }
+
+        if (orig.isContinuous()) {
+            newt.setContinuous(true);
+        }
+
+        newt.makeImmutable();
+
+        return newt;
+    }
+
+}
@@ -3,6 +3,7 @@
  */
 package edu.mit.broad.genome.objects.esmatrix.db;
 
+import edu.mit.broad.genome.math.NullScoreStore;
 import edu.mit.broad.genome.math.Vector;
 import edu.mit.broad.genome.objects.GeneSet;
 import edu.mit.broad.genome.objects.GeneSetSignal;
@@ -20,6 +21,11 @@ public class EnrichmentResult {
 
     private Vector fRndESS;
 
+    // Or the rnd ess are a row of a (shared) store
+    private NullScoreStore fRndStore;
+
+    private int fRndRow;
+
     private RankedList fRankedList;
 
     private Template fTemplate_opt;
@@ -50,6 +56,37 @@ public class EnrichmentResult {
         this.fFdr = fdr;
     }
 
+    /**
+     * Class constructor
+     * The rnd ess are row rndRow of rndStore, and are read from it as needed rather than held here
+     */
+    public EnrichmentResult(final RankedList rl, final Template t_opt, final GeneSet gset, final Chip chip,
+                            final EnrichmentScore es, final NullScoreStore rndStore, final int rndRow,
+                            final FdrStruc fdr) {
+        this(rl, t_opt, gset, chip, es, null, fdr);
+
+        if (rndStore == null) {
+            throw new IllegalArgumentException("Param rndStore cannot be null");
+        }
+
+        if (rndRow < 0 || rndRow >= rndStore.getNumRow()) {
+            throw new IllegalArgumentException("Row: " + rndRow + " not in store of rows: " + rndStore.getNumRow());
+        }
+
+        this.fRndStore = rndStore;
+        this.fRndRow = rndRow;
+    }
+
+    /**
+     * Class constructor
+     * Same data (and rnd ess) as result, with a new score and fdr
+     */
+    public EnrichmentResult(final EnrichmentResult result, final EnrichmentScore es, final FdrStruc fdr) {
+        this(result.fRankedList, result.fTemplate_opt, result.fGeneSet, result.fChip, es, result.fRndESS, fdr);
+        this.fRndStore = result.fRndStore;
+        this.fRndRow = result.fRndRow;
+    }
+
     private GeneSetSignal fSignal;
 
     public GeneSetSignal getSignal() {
@@ -60,10 +97,31 @@ public class EnrichmentResult {
         return fSignal;
     }
 
+    /**
+     * @return the rnd ess (a copy, if they are held in a store)
+     */
     public Vector getRndESS() {
+        if (fRndStore != null) {
+            return fRndStore.getRow(fRndRow);
+        }
+
         return fRndESS;
     }
 
+    /**
+     * @return the store the rnd ess are read from, or null if they are held here
+     */
+    public NullScoreStore getRndStore() {
+        return fRndStore;
+    }
+
+    /**
+     * @return the row of the rnd ess in getRndStore()
+     */
+    public int getRndRow() {
+        return fRndRow;
+    }
+
     public FdrStruc getFDR() {
         return fFdr;
     }
@@ -95,6 +153,10 @@ public class EnrichmentResult {
     }
 
     public int getNumPerms() {
+        if (fRndStore != null) {
+            return fRndStore.getRowLength(fRndRow);
+        }
+
         return fRndESS.getSize();
     }
 
@@ -129,7 +129,6 @@ public class SkewCorrectedFdrStruc implements FdrStruc {
             }
         }
 
-        final float numr = col_mean_sum / ncols_actual;
         final float numSets;
         if (pos) {
             numSets = all_real_scores_norm_sorted.getSize(ScoreMode.POS_ONLY);
@@ -137,6 +136,82 @@ public class SkewCorrectedFdrStruc implements FdrStruc {
             numSets = all_real_scores_norm_sorted.getSize(ScoreMode.NEG_ONLY);
         }
 
+        _init(name, real_score_of_name, real_score_norm_of_name, pos, nominalP, moreRealThan, totalRealCnt,
+                numSets, col_mean_sum, ncols_actual, moreRndThan, totalRndCnt_used,
+                all_rnd_scores_norm_by_col_pos.getDim_orig(), doPos);
+    }
+
+    /**
+     * Class constructor for when the per column counts have already been worked out (see FdrAlgs) -- the
+     * same fdr as above, without scanning every column of the random scores for each set.
+     * <p/>
+     * The column sums must be accumulated exactly as above (floats, in column order) for identical results.
+     *
+     * @param all_rnd_scores_norm_moded the pos (or neg) random scores that the column sums are over
+     * @param numSets                   the number of pos (or neg) real scores
+     * @param col_mean_sum              sum over the columns with scores of (# more (or less) than / # in column)
+     * @param ncols_actual              the number of columns with scores
+     * @param moreRndThan               total # more (or less) than over all columns
+     * @param totalRndCnt_used          total # of scores over all columns
+     */
+    public SkewCorrectedFdrStruc(final String name,
+                                 final float real_score_of_name,
+                                 final RankedList all_real_scores_norm_sorted,
+                                 final Vector rnd_scores_of_name_only,
+                                 final DatasetModed all_rnd_scores_norm_moded,
+                                 final float numSets,
+                                 final float col_mean_sum,
+                                 final int ncols_actual,
+                                 final int moreRndThan,
+                                 final int totalRndCnt_used,
+                                 final boolean doPos) {
+
+        if (rnd_scores_of_name_only == null) {
+            throw new IllegalArgumentException("Param rnd_scores_of_name_only cannot be null");
+        }
+
+        if (all_rnd_scores_norm_moded == null) {
+            throw new IllegalArgumentException("Param all_rnd_scores_norm_moded cannot be null");
+        }
+
+        if (rnd_scores_of_name_only.getSize() != all_rnd_scores_norm_moded.getNumCol()) {
+            throw new MismatchedSizeException("calc_all", rnd_scores_of_name_only.getSize(), "num_col", all_rnd_scores_norm_moded.getNumCol());
+        }
+
+        final boolean pos = XMath.isPositive(real_score_of_name);
+        final float real_score_norm_of_name = all_real_scores_norm_sorted.getScore(name);
+
+        float nominalP;
+        if (pos) {
+            nominalP = (float) XMath.getPValue(real_score_of_name, rnd_scores_of_name_only);
+        } else {
+            nominalP = (float) XMath.getPValueLessThan(real_score_of_name, rnd_scores_of_name_only);
+        }
+
+        final int moreRealThan = all_real_scores_norm_sorted.getRank(name) + 1;
+        final int totalRealCnt = all_real_scores_norm_sorted.getSize();
+
+        _init(name, real_score_of_name, real_score_norm_of_name, pos, nominalP, moreRealThan, totalRealCnt,
+                numSets, col_mean_sum, ncols_actual, moreRndThan, totalRndCnt_used,
+                all_rnd_scores_norm_moded.getDim_orig(), doPos);
+    }
+
+    private void _init(final String name,
+                       final float real_score_of_name,
+                       final float real_score_norm_of_name,
+                       final boolean pos,
+                       final float nominalP,
+                       final int moreRealThan,
+                       final int totalRealCnt,
+                       final float numSets,
+                       final float col_mean_sum,
+                       final int ncols_actual,
+                       final int moreRndThan,
+                       final int totalRndCnt_used,
+                       final int totRndCnt,
+                       final boolean doPos) {
+
+        final float numr = col_mean_sum / ncols_actual;
         final float denr = ((float) moreRealThan) / numSets;
         float fdrcalc = numr / denr;
 
@@ -166,7 +241,7 @@ public class SkewCorrectedFdrStruc implements FdrStruc {
                 moreRndThan,
                 totalRealCnt,
                 totalRndCnt_used,
-                all_rnd_scores_norm_by_col_pos.getDim_orig(),
+                totRndCnt,
                 fdrcalc, numr, denr);
     }
 
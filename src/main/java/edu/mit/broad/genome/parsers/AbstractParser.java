@@ -183,6 +183,46 @@ public abstract class AbstractParser implements Parser {
 
     }
 
+    // As nextLine(BufferedReader)
+    protected String nextLine(final DataLineReader in) throws IOException {
+        String currLine = in.readLine();
+        if (currLine == null) {
+            return null;
+        }
+
+        currLine = currLine.trim();
+
+        while ((currLine != null) && ((currLine.length() == 0) || (currLine.startsWith(Constants.COMMENT_CHAR)))) {
+            if (currLine.startsWith(Constants.COMMENT_CHAR)) {
+                fComment.add(currLine);
+            }
+
+            currLine = in.readLine();
+            if (currLine != null) {
+                currLine = currLine.trim();
+            }
+        }
+
+        return currLine;
+    }
+
+    /**
+     * As nextLineTrimless, but the line is left in the reader (as bytes) rather than made into a String
+     *
+     * @return false if there are no more lines
+     */
+    protected boolean nextDataLine(final DataLineReader in) throws IOException {
+        while (in.nextLine()) {
+            if (in.startsWith(Constants.COMMENT_CHAR.charAt(0))) {
+                fComment.add(in.getLine());
+            } else if (!in.isEmptyLine()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     protected boolean isNull(Object obj) {
         if (obj == null) {
             return true;
@@ -405,6 +445,24 @@ public abstract class AbstractParser implements Parser {
     }
 
 
+    /**
+     * Splits the current line of in at tabs
+     *
+     * @return the number of fields string2stringsV2 would find on the line: the extra fields beyond expectedLen
+     * count only if not blank, and missing ones are (blank) fields
+     */
+    protected static int splitV2(final DataLineReader in, final int expectedLen) {
+        final int numFields = in.split('\t');
+        int cnt = expectedLen;
+        for (int f = expectedLen; f < numFields; f++) {
+            if (!in.isBlank(f)) {
+                cnt++;
+            }
+        }
+
+        return cnt;
+    }
+
     protected static int indexOf(final String s, final List list, final boolean barfIfMising) throws ParserException {
         int index = list.indexOf(s);
         if (index == -1 && barfIfMising) {
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.parsers;
+
+import edu.mit.broad.genome.Constants;
+import edu.mit.broad.genome.NamingConventions;
+import edu.mit.broad.genome.math.Matrix;
+import edu.mit.broad.genome.math.Vector;
+import edu.mit.broad.genome.objects.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses (and exports) the binary dataset format: the names up front and then all the values as one contiguous
+ * block of floats, so that a file's Dataset can be had by mapping the block (a MappedDataset) rather than by
+ * parsing text into a heap Matrix. Meant for the big datasets that are loaded over and over again.
+ * <p/>
+ * Format (all little endian; a String is an int count of bytes and then that many bytes of UTF-8):
+ * <p/>
+ * <pre>
+ * 'G' 'B' 'D' 'S'     magic
+ * int                 version (1)
+ * int                 numRow
+ * int                 numCol
+ * long                dataOffset -- where the floats start (a multiple of 8)
+ * String              comment
+ * String x numCol     column names
+ * String x numRow     row names
+ * String x numRow     row descriptions (empty if none)
+ * (zero padding to dataOffset)
+ * float x numRow x numCol   the values, row by row
+ * </pre>
+ * <p/>
+ * A file is mapped (parse(objname, file)); a stream is read into a DefaultDataset.
+ */
+public class BinaryDatasetParser extends AbstractParser {
+
+    private static final byte[] MAGIC = new byte[]{'G', 'B', 'D', 'S'};
+
+    private static final int VERSION = 1;
+
+    // magic, version, numRow, numCol, dataOffset
+    private static final int FIXED_HEADER_BYTES = 4 + 4 + 4 + 4 + 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Class Constructor.
+     */
+    public BinaryDatasetParser() {
+        super(Dataset.class);
+    }
+
+    /**
+     * Export a Dataset to file in the binary dataset format
+     * Only works with Datasets
+     * <p/>
+     * Written to a temporary file next to file and then moved over it, as file may be the one the Dataset's
+     * values are mapped from (a MappedDataset saved back to where it was loaded from).
+     */
+    public void export(final PersistentObject pob, final File file) throws Exception {
+        if (pob == null) {
+            throw new IllegalArgumentException("Parameter pob cannot be null");
+        }
+
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter file cannot be null");
+        }
+
+        final File tmp = File.createTempFile("tmp_" + file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean moved = false;
+        try {
+            final OutputStream os = new FileOutputStream(tmp);
+            try {
+                export(pob, os);
+            } finally {
+                os.close();
+            }
+
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+        } finally {
+            if (!moved && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    public void export(final PersistentObject pob, final OutputStream os) throws Exception {
+        if (pob == null) {
+            throw new IllegalArgumentException("Parameter pob cannot be null");
+        }
+
+        if (os == null) {
+            throw new IllegalArgumentException("Parameter os cannot be null");
+        }
+
+        final Dataset ds = (Dataset) pob;
+        final int numRow = ds.getNumRow();
+        final int numCol = ds.getNumCol();
+
+        FeatureAnnot ann = null;
+        if (ds.getAnnot() != null && ds.getAnnot().getFeatureAnnot() != null
+                && ds.getAnnot().getFeatureAnnot().hasNativeDescriptions()) {
+            ann = ds.getAnnot().getFeatureAnnot();
+        }
+
+        // The names go first but their size fixes where the floats go, so they are made up front
+        final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        writeString(names, ds.getComment());
+        for (int c = 0; c < numCol; c++) {
+            writeString(names, ds.getColumnName(c));
+        }
+        for (int r = 0; r < numRow; r++) {
+            writeString(names, ds.getRowName(r));
+        }
+        for (int r = 0; r < numRow; r++) {
+            writeString(names, (ann == null) ? null : ann.getNativeDesc(ds.getRowName(r)));
+        }
+
+        final long dataOffset = (FIXED_HEADER_BYTES + names.size() + 7L) / 8 * 8;
+
+        final OutputStream out = new BufferedOutputStream(os);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putInt(numRow).putInt(numCol).putLong(dataOffset);
+            out.write(header.array());
+            names.writeTo(out);
+            for (long i = FIXED_HEADER_BYTES + names.size(); i < dataOffset; i++) {
+                out.write(0);
+            }
+
+            final ByteBuffer buf = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (int r = 0; r < numRow; r++) {
+                final Vector row = ds.getRow(r);
+                for (int c = 0; c < numCol; c++) {
+                    if (buf.remaining() < 4) {
+                        out.write(buf.array(), 0, buf.position());
+                        buf.clear();
+                    }
+                    buf.putFloat(row.getElement(c));
+                }
+            }
+            out.write(buf.array(), 0, buf.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return 1 MappedDataset of the values in the file (which must stay as is while it is in use)
+     */
+    public List<PersistentObject> parse(String objname, File file) throws Exception {
+        startImport(file.getPath());
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final Header header;
+        try {
+            final FileChannel ch = raf.getChannel();
+            header = _parseHeader(new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()))));
+            final long expectedSize = header.dataOffset + 4L * header.numRow * header.numCol;
+            if (ch.size() < expectedSize) {
+                throw new ParserException("Bad binary dataset -- expected: " + expectedSize + " bytes for "
+                        + header.numRow + "x" + header.numCol + " values but the file has: " + ch.size());
+            }
+        } finally {
+            raf.close();
+        }
+
+        final String objName = NamingConventions.removeExtension(objname);
+        final Dataset ds = new MappedDataset(objName, file, header.dataOffset, header.rowNames, header.colNames,
+                createAnnot(objName, header));
+        return done(ds, header);
+    }
+
+    /**
+     * @return 1 Dataset, with the values read onto the heap
+     */
+    public List<PersistentObject> parse(String sourcepath, InputStream is) throws Exception {
+        startImport(sourcepath);
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        final Header header = _parseHeader(in);
+
+        final Matrix matrix = new Matrix(header.numRow, header.numCol);
+        final byte[] rowBytes = new byte[4 * header.numCol];
+        final float[] row = new float[header.numCol];
+        for (int r = 0; r < header.numRow; r++) {
+            in.readFully(rowBytes);
+            ByteBuffer.wrap(rowBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(row);
+            matrix.setRow(r, row);
+        }
+        in.close();
+
+        final String objName = NamingConventions.removeExtension(sourcepath);
+        final Dataset ds = new DefaultDataset(objName, matrix, header.rowNames, header.colNames,
+                createAnnot(objName, header));
+        return done(ds, header);
+    }
+
+    private List<PersistentObject> done(final Dataset ds, final Header header) {
+        if (header.comment.length() > 0) {
+            ds.addComment(header.comment);
+        }
+        doneImport();
+        return Collections.<PersistentObject>singletonList(ds);
+    }
+
+    private Annot createAnnot(final String objName, final Header header) {
+        final FeatureAnnot ann = new FeatureAnnot(objName, header.rowNames, header.rowDescs);
+        ann.addComment(header.comment);
+        return new Annot(ann, new SampleAnnot(objName, header.colNames));
+    }
+
+    // What comes before the values
+    private static class Header {
+        private int numRow;
+        private int numCol;
+        private long dataOffset;
+        private String comment;
+        private List<String> colNames;
+        private List<String> rowNames;
+        private List<String> rowDescs;
+    }
+
+    // Reads the header and names, leaving in at the first value
+    private static Header _parseHeader(final DataInputStream in) throws Exception {
+        final byte[] fixed = new byte[FIXED_HEADER_BYTES];
+        try {
+            in.readFully(fixed);
+        } catch (EOFException e) {
+            throw new ParserException("Bad binary dataset -- too short for a header", e);
+        }
+
+        final ByteBuffer buf = ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get() != MAGIC[i]) {
+                throw new ParserException("Not a binary dataset -- bad magic number");
+            }
+        }
+
+        final int version = buf.getInt();
+        if (version != VERSION) {
+            throw new ParserException("Unsupported binary dataset version: " + version + " expected: " + VERSION);
+        }
+
+        final Header header = new Header();
+        header.numRow = buf.getInt();
+        header.numCol = buf.getInt();
+        header.dataOffset = buf.getLong();
+        if (header.numRow < 0 || header.numCol < 0 || header.dataOffset < FIXED_HEADER_BYTES) {
+            throw new ParserException("Bad binary dataset -- bad header numRow: " + header.numRow + " numCol: "
+                    + header.numCol + " dataOffset: " + header.dataOffset);
+        }
+
+        // The names are read from their own (bounded) buffer, so a bad count cannot run off into the values
+        final long namesSize = header.dataOffset - FIXED_HEADER_BYTES;
+        if (namesSize > Integer.MAX_VALUE) {
+            throw new ParserException("Bad binary dataset -- names section too large: " + namesSize);
+        }
+
+        final byte[] names = new byte[(int) namesSize];
+        try {
+            in.readFully(names);
+        } catch (EOFException e) {
+            throw new ParserException("Bad binary dataset -- truncated names section", e);
+        }
+
+        final ByteBuffer nbuf = ByteBuffer.wrap(names).order(ByteOrder.LITTLE_ENDIAN);
+        header.comment = readString(nbuf);
+        header.colNames = readStrings(nbuf, header.numCol);
+        header.rowNames = readStrings(nbuf, header.numRow);
+        header.rowDescs = readStrings(nbuf, header.numRow);
+        for (int r = 0; r < header.numRow; r++) {
+            if (header.rowDescs.get(r).length() == 0) {
+                header.rowDescs.set(r, Constants.NA);
+            }
+        }
+
+        return header;
+    }
+
+    private static List<String> readStrings(final ByteBuffer buf, final int num) throws ParserException {
+        final List<String> strings = new ArrayList<String>(num);
+        for (int i = 0; i < num; i++) {
+            strings.add(readString(buf));
+        }
+
+        return strings;
+    }
+
+    private static String readString(final ByteBuffer buf) throws ParserException {
+        if (buf.remaining() < 4) {
+            throw new ParserException("Bad binary dataset -- names section ends early");
+        }
+
+        final int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+            throw new ParserException("Bad binary dataset -- bad name length: " + len);
+        }
+
+        final String s = new String(buf.array(), buf.position(), len, UTF8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static void writeString(final ByteArrayOutputStream out, final String s_opt) {
+        final byte[] bytes = (s_opt == null) ? new byte[0] : s_opt.getBytes(UTF8);
+        final int len = bytes.length;
+        out.write(len);
+        out.write(len >>> 8);
+        out.write(len >>> 16);
+        out.write(len >>> 24);
+        out.write(bytes, 0, len);
+    }
+
+}
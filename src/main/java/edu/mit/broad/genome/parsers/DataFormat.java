@@ -71,6 +71,13 @@ public class DataFormat extends DataType implements Constants {
             "Stanford Format for a Dataset", "pcl",
             JarResources.getIcon("Pcl.gif"), PclParser.class);
 
+    /**
+     * Binary dataset format, read by memory mapping its values
+     */
+    public static final DataFormat BDS_FORMAT = new DataFormat(Dataset.class, "Dataset",
+            "Binary (memory mapped) Format for a Dataset", BDS,
+            JarResources.getIcon("Gct16.gif"), BinaryDatasetParser.class);
+
     /**
      * MIT cls format for class vectors
      */
@@ -115,7 +122,7 @@ public class DataFormat extends DataType implements Constants {
 
     // imp to not expose
     private static final DataFormat[] ALL = new DataFormat[]{
-            RES_FORMAT, GCT_FORMAT, TXT_DATASET_FORMAT, PCL_FORMAT,
+            RES_FORMAT, GCT_FORMAT, TXT_DATASET_FORMAT, PCL_FORMAT, BDS_FORMAT,
             CLS_FORMAT,
             GRP_FORMAT, GMT_FORMAT, GMX_FORMAT,
             RNK_FORMAT,
@@ -129,7 +136,7 @@ public class DataFormat extends DataType implements Constants {
      * @maint
      */
     public static final DataFormat[] ALL_DATASET_FORMATS = new DataFormat[]
-            {GCT_FORMAT, RES_FORMAT, TXT_DATASET_FORMAT, PCL_FORMAT};
+            {GCT_FORMAT, RES_FORMAT, TXT_DATASET_FORMAT, PCL_FORMAT, BDS_FORMAT};
 
     public static final DataFormat[] ALL_GENESETMATRIX_FORMATS = new DataFormat[]
             {GMX_FORMAT, GMT_FORMAT};  // Seems like GRP should be here...
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.parsers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a delimited text file a line at a time straight from the bytes of its stream, so that the (many, long)
+ * data lines of a dataset need never be made into Strings: the fields of the current line are found in place,
+ * only those asked for as text (row names, descriptions) are decoded, and numbers are parsed from the bytes.
+ * Header lines can still be had as Strings (readLine).
+ * <p/>
+ * The bytes come from a stream or from a ByteBuffer (e.g. a memory mapped range of a file).
+ * <p/>
+ * Lines end where BufferedReader.readLine ends them (at \n, \r or \r\n), and text is decoded with the platform
+ * charset as an InputStreamReader would. Fields are split at a single byte (ascii) delimiter, which is safe for
+ * the ascii compatible charsets (UTF-8, ISO-8859-1 etc).
+ * <p/>
+ * Not safe for concurrent use.
+ */
+class DataLineReader implements Closeable {
+
+    private static final int BUF_SIZE = 64 * 1024;
+
+    // 10^0 to 10^22 are exactly representable as doubles
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    // One of these is the source
+    private final InputStream fIn;
+
+    private final ByteBuffer fBytes;
+
+    private final Charset fCharset;
+
+    private byte[] fBuf;
+
+    // fBuf[fPos, fEnd) is read but not yet consumed
+    private int fPos;
+
+    private int fEnd;
+
+    private boolean fEof;
+
+    // Bytes read from the source so far
+    private long fNumRead;
+
+    // The last line ended in a \r at the end of the buffer, so a \n that starts the next fill belongs to it
+    private boolean fSkipLF;
+
+    // The current line is fBuf[fLineStart, fLineEnd)
+    private int fLineStart;
+
+    private int fLineEnd;
+
+    // The fields of the current line (as last split)
+    private int fNumFields;
+
+    private int[] fFieldStarts;
+
+    private int[] fFieldEnds;
+
+    DataLineReader(final InputStream is) {
+        this(is, null);
+        if (is == null) {
+            throw new IllegalArgumentException("Param is cannot be null");
+        }
+    }
+
+    /**
+     * @param bytes read from its position to its limit (and left there)
+     */
+    DataLineReader(final ByteBuffer bytes) {
+        this(null, bytes);
+        if (bytes == null) {
+            throw new IllegalArgumentException("Param bytes cannot be null");
+        }
+    }
+
+    private DataLineReader(final InputStream is_opt, final ByteBuffer bytes_opt) {
+        this.fIn = is_opt;
+        this.fBytes = bytes_opt;
+        this.fCharset = Charset.defaultCharset();
+        this.fBuf = new byte[BUF_SIZE];
+        this.fFieldStarts = new int[64];
+        this.fFieldEnds = new int[64];
+    }
+
+    /**
+     * Moves to the next line
+     *
+     * @return false if there are no more lines
+     */
+    boolean nextLine() throws IOException {
+        fNumFields = 0;
+
+        if (fSkipLF) {
+            if (fPos == fEnd) {
+                fill();
+            }
+            if (fPos < fEnd && fBuf[fPos] == '\n') {
+                fPos++;
+            }
+            fSkipLF = false;
+        }
+
+        int i = fPos;
+        while (true) {
+            for (; i < fEnd; i++) {
+                final byte b = fBuf[i];
+                if (b == '\n' || b == '\r') {
+                    fLineStart = fPos;
+                    fLineEnd = i;
+                    fPos = i + 1;
+                    if (b == '\r') {
+                        if (fPos < fEnd) {
+                            if (fBuf[fPos] == '\n') {
+                                fPos++;
+                            }
+                        } else {
+                            fSkipLF = true;
+                        }
+                    }
+                    return true;
+                }
+            }
+
+            if (fEof) {
+                if (fPos == fEnd) {
+                    return false;
+                }
+                fLineStart = fPos;
+                fLineEnd = fEnd;
+                fPos = fEnd;
+                return true;
+            }
+
+            i -= fPos; // fill moves the unconsumed bytes to the start of the buffer
+            fill();
+        }
+    }
+
+    /**
+     * @return the offset (from where the source was first read) of the line after the current one
+     */
+    long getPosition() {
+        return fNumRead - (fEnd - fPos);
+    }
+
+    /**
+     * @return the next line as a String, or null if there are no more lines (as BufferedReader.readLine)
+     */
+    String readLine() throws IOException {
+        return nextLine() ? getLine() : null;
+    }
+
+    /**
+     * @return the current line as a String
+     */
+    String getLine() {
+        return new String(fBuf, fLineStart, fLineEnd - fLineStart, fCharset);
+    }
+
+    boolean isEmptyLine() {
+        return fLineEnd == fLineStart;
+    }
+
+    /**
+     * @return true if the current line starts with the (ascii) char c
+     */
+    boolean startsWith(final char c) {
+        return fLineEnd > fLineStart && fBuf[fLineStart] == c;
+    }
+
+    /**
+     * Splits the current line at every delim, String.split(delim, -1) fashion: n delims make n + 1 fields,
+     * empty ones included
+     *
+     * @return the number of fields
+     */
+    int split(final char delim) {
+        final byte d = (byte) delim;
+        int n = 0;
+        int start = fLineStart;
+        for (int i = fLineStart; i <= fLineEnd; i++) {
+            if (i == fLineEnd || fBuf[i] == d) {
+                if (n == fFieldStarts.length) {
+                    final int[] starts = new int[n * 2];
+                    final int[] ends = new int[n * 2];
+                    System.arraycopy(fFieldStarts, 0, starts, 0, n);
+                    System.arraycopy(fFieldEnds, 0, ends, 0, n);
+                    fFieldStarts = starts;
+                    fFieldEnds = ends;
+                }
+                fFieldStarts[n] = start;
+                fFieldEnds[n] = i;
+                n++;
+                start = i + 1;
+            }
+        }
+
+        this.fNumFields = n;
+        return n;
+    }
+
+    int getNumFields() {
+        return fNumFields;
+    }
+
+    /**
+     * @return field f as is; fields past the last of the line are empty
+     */
+    String getField(final int f) {
+        if (f >= fNumFields) {
+            return "";
+        }
+        return new String(fBuf, fFieldStarts[f], fFieldEnds[f] - fFieldStarts[f], fCharset);
+    }
+
+    /**
+     * @return field f trimmed (as String.trim)
+     */
+    String getFieldTrimmed(final int f) {
+        if (f >= fNumFields) {
+            return "";
+        }
+        final int start = trimStart(f);
+        return new String(fBuf, start, trimEnd(f, start) - start, fCharset);
+    }
+
+    /**
+     * @return true if field f is empty or only white space
+     */
+    boolean isBlank(final int f) {
+        return f >= fNumFields || trimStart(f) == fFieldEnds[f];
+    }
+
+    /**
+     * @return field f as Float.parseFloat would parse it (so a blank field is a NumberFormatException).
+     * Plain decimals (up to 19 significant digits, exponents to 22) are worked out from the bytes, anything else
+     * (NaN, Infinity, hex ...) is left to Float.parseFloat
+     */
+    float getFloat(final int f) {
+        if (f >= fNumFields) {
+            return Float.parseFloat("");
+        }
+
+        final int start = trimStart(f);
+        final int end = trimEnd(f, start);
+        final float val = parseFloat(fBuf, start, end);
+        if (val == val) {
+            return val;
+        }
+
+        return Float.parseFloat(new String(fBuf, start, end - start, fCharset));
+    }
+
+    // NaN if not a plain decimal, or one whose float is not sure to be got by a double multiply or divide.
+    // The mantissa (to 2^53) and 10^e (to 10^22) are exact doubles, so their product or quotient is the correctly
+    // rounded double of the value; rounding that to a float again is exact too unless it lands on a float midpoint
+    // (or is out of the normal float range), which are left to Float.parseFloat
+    private static float parseFloat(final byte[] b, final int start, final int end) {
+        int i = start;
+        if (i == end) {
+            return Float.NaN;
+        }
+
+        boolean neg = false;
+        if (b[i] == '-' || b[i] == '+') {
+            neg = b[i] == '-';
+            i++;
+        }
+
+        long mant = 0;
+        int numDigits = 0;
+        int exp = 0;
+        boolean anyDigits = false;
+
+        for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+            anyDigits = true;
+            final int d = b[i] - '0';
+            if (mant == 0 && d == 0) {
+                continue;
+            }
+            if (numDigits == 19) {
+                return Float.NaN;
+            }
+            mant = mant * 10 + d;
+            numDigits++;
+        }
+
+        if (i < end && b[i] == '.') {
+            i++;
+            for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                anyDigits = true;
+                final int d = b[i] - '0';
+                if (mant == 0 && d == 0) {
+                    exp--;
+                    continue;
+                }
+                if (numDigits == 19) {
+                    return Float.NaN;
+                }
+                mant = mant * 10 + d;
+                numDigits++;
+                exp--;
+            }
+        }
+
+        if (!anyDigits) {
+            return Float.NaN;
+        }
+
+        if (i < end && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            boolean negExp = false;
+            if (i < end && (b[i] == '-' || b[i] == '+')) {
+                negExp = b[i] == '-';
+                i++;
+            }
+
+            if (i == end) {
+                return Float.NaN;
+            }
+
+            int e = 0;
+            for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                if (e > 10000) {
+                    return Float.NaN;
+                }
+                e = e * 10 + (b[i] - '0');
+            }
+            exp += negExp ? -e : e;
+        }
+
+        if (i != end) {
+            return Float.NaN; // e.g. a trailing f or d, or not a number at all
+        }
+
+        if (mant == 0) {
+            return neg ? -0f : 0f;
+        }
+
+        if (mant > (1L << 53) || exp < -22 || exp > 22) {
+            return Float.NaN;
+        }
+
+        final double d = (exp >= 0) ? mant * POW10[exp] : mant / POW10[-exp];
+        if (d < Float.MIN_NORMAL || d >= Float.MAX_VALUE) {
+            return Float.NaN;
+        }
+
+        // A double exactly halfway between two floats: the float depends on the digits the double lost
+        if ((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L) {
+            return Float.NaN;
+        }
+
+        final float val = (float) d;
+        return neg ? -val : val;
+    }
+
+    private int trimStart(final int f) {
+        int start = fFieldStarts[f];
+        final int end = fFieldEnds[f];
+        while (start < end && (fBuf[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(final int f, final int start) {
+        int end = fFieldEnds[f];
+        while (end > start && (fBuf[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    // Moves the unconsumed bytes to the start of the buffer (growing it if they fill it) and reads more after them
+    private void fill() throws IOException {
+        final int len = fEnd - fPos;
+        if (fPos > 0) {
+            System.arraycopy(fBuf, fPos, fBuf, 0, len);
+        } else if (len == fBuf.length) {
+            final byte[] buf = new byte[fBuf.length * 2];
+            System.arraycopy(fBuf, 0, buf, 0, len);
+            fBuf = buf;
+        }
+
+        fPos = 0;
+        fEnd = len;
+        fLineStart = fLineEnd = 0;
+        fNumFields = 0;
+
+        final int n;
+        if (fIn != null) {
+            n = fIn.read(fBuf, fEnd, fBuf.length - fEnd);
+        } else if (fBytes.hasRemaining()) {
+            n = Math.min(fBytes.remaining(), fBuf.length - fEnd);
+            fBytes.get(fBuf, fEnd, n);
+        } else {
+            n = -1;
+        }
+
+        if (n < 0) {
+            fEof = true;
+        } else {
+            fEnd += n;
+            fNumRead += n;
+        }
+    }
+
+    public void close() throws IOException {
+        if (fIn != null) {
+            fIn.close();
+        }
+    }
+
+}
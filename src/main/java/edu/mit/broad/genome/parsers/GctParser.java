@@ -9,8 +9,11 @@ import edu.mit.broad.genome.math.Matrix;
 import edu.mit.broad.genome.objects.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Parses a gct formatted dataset -- similar to dataframe except that formatted
@@ -29,6 +32,9 @@ import java.util.List;
  */
 public class GctParser extends AbstractParser {
 
+    // The most bytes of the file mapped (and parsed) as one range
+    private static final long MAX_RANGE_BYTES = 1L << 30;
+
     /**
      * Class Constructor.
      */
@@ -113,20 +119,168 @@ public class GctParser extends AbstractParser {
     public List parse(String sourcepath, InputStream is) throws Exception {
         startImport(sourcepath);
 
-        BufferedReader bin = new BufferedReader(new InputStreamReader(is));
-        return _parse(sourcepath, bin, true);
+        DataLineReader in = new DataLineReader(is);
+        return _parse(sourcepath, in, true);
+
+    }
+
+    /**
+     * Parses a (local) gct file on numThreads threads. The data lines are split into line aligned byte ranges of
+     * the file (memory mapped), the data lines of each range are counted, and then each range is parsed into its
+     * own (preassigned) rows of the matrix. The row names, descriptions and comments of the ranges are put together
+     * in file order afterwards, so the Dataset (and the checks) are as parse(sourcepath, is) makes them.
+     */
+    public List parse(String sourcepath, File file, final int numThreads) throws Exception {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1, got: " + numThreads);
+        }
+
+        startImport(sourcepath);
+        final String objName = NamingConventions.removeExtension(sourcepath);
+
+        final List<String> colnames = new ArrayList<String>();
+        final int nrows;
+        final long dataStart;
+        DataLineReader hin = new DataLineReader(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            nrows = _parseHeader(hin, colnames);
+            dataStart = hin.getPosition();
+        } finally {
+            hin.close();
+        }
+
+        final int ncols = colnames.size();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final ExecutorService exec = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int cnt = 0;
+
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "GctParser-" + (cnt++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            final FileChannel ch = raf.getChannel();
+            final long[] bounds = _alignedRanges(ch, dataStart, ch.size(), numThreads);
+            final int numRanges = bounds.length - 1;
+            final ByteBuffer[] ranges = new ByteBuffer[numRanges];
+            for (int c = 0; c < numRanges; c++) {
+                ranges[c] = ch.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]);
+            }
+
+            // 1st pass: count the data lines of each range, to know where its rows go
+            final List<Future<Integer>> counts = new ArrayList<Future<Integer>>(numRanges);
+            for (int c = 0; c < numRanges; c++) {
+                final ByteBuffer range = ranges[c];
+                counts.add(exec.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        final DataLineReader in = new DataLineReader(range.duplicate());
+                        int cnt = 0;
+                        while (in.nextLine()) {
+                            if (!in.isEmptyLine() && !in.startsWith(Constants.COMMENT_CHAR.charAt(0))) {
+                                cnt++;
+                            }
+                        }
+                        return cnt;
+                    }
+                }));
+            }
+
+            final int[] firstRow = new int[numRanges + 1];
+            for (int c = 0; c < numRanges; c++) {
+                firstRow[c + 1] = firstRow[c] + waitFor(counts.get(c));
+            }
+
+            if (firstRow[numRanges] != nrows) {
+                throw new ParserException("Bad gct format -- exepcted nrows from specification on header line: " + nrows + " but found in data: " + firstRow[numRanges]);
+            }
+
+            // 2nd pass: parse each range into its rows
+            final Matrix matrix = new Matrix(nrows, ncols);
+            final List<Future<ParsedRange>> parsed = new ArrayList<Future<ParsedRange>>(numRanges);
+            for (int c = 0; c < numRanges; c++) {
+                final ByteBuffer range = ranges[c];
+                final int from = firstRow[c];
+                parsed.add(exec.submit(new Callable<ParsedRange>() {
+                    public ParsedRange call() throws Exception {
+                        final ParsedRange pr = new ParsedRange();
+                        final DataLineReader in = new DataLineReader(range.duplicate());
+                        final float[] row = new float[ncols];
+                        int r = from;
+                        while (in.nextLine()) {
+                            if (in.startsWith(Constants.COMMENT_CHAR.charAt(0))) {
+                                pr.comments.add(in.getLine());
+                            } else if (!in.isEmptyLine()) {
+                                _parseRow(in, r, row, pr.rowNames, pr.rowDescs, true);
+                                matrix.setRow(r++, row);
+                            }
+                        }
+                        return pr;
+                    }
+                }));
+            }
+
+            final List<String> rowNames = new ArrayList<String>(nrows);
+            final List<String> rowDescs = new ArrayList<String>(nrows);
+            for (int c = 0; c < numRanges; c++) {
+                final ParsedRange pr = waitFor(parsed.get(c));
+                rowNames.addAll(pr.rowNames);
+                rowDescs.addAll(pr.rowDescs);
+                for (int i = 0; i < pr.comments.size(); i++) {
+                    fComment.add(pr.comments.get(i));
+                }
+            }
 
+            return _createDataset(objName, matrix, rowNames, rowDescs, colnames);
+        } finally {
+            exec.shutdownNow();
+            raf.close();
+        }
     }
 
     /// does the real parsing
-    // expects the bin to be untouched
-    private List _parse(String objName, BufferedReader bin, boolean nameBeforeDesc) throws Exception {
+    // expects the reader to be untouched
+    private List _parse(String objName, DataLineReader in, boolean nameBeforeDesc) throws Exception {
         objName = NamingConventions.removeExtension(objName);
-        String currLine = nextLine(bin);
+        List<String> colnames = new ArrayList<String>();
+        int nrows = _parseHeader(in, colnames);
+        int ncols = colnames.size();
+
+        // data line: <row name> <tab> <desc> <tab> <ex1> <tab> <ex2> <tab>
+        // @note the header gives the dims, so the rows go straight into the matrix as they are read
+        Matrix matrix = new Matrix(nrows, ncols);
+        List<String> rowNames = new ArrayList<String>(nrows);
+        List<String> rowDescs = new ArrayList<String>(nrows);
+        float[] row = new float[ncols];
+
+        int nlines = 0;
+        while (nextDataLine(in)) { /// trimless -> imp for mv datasets -> last col(s) can be a tab
+            if (nlines < nrows) {
+                _parseRow(in, nlines, row, rowNames, rowDescs, nameBeforeDesc);
+                matrix.setRow(nlines, row);
+            }
+            nlines++;
+        }
+
+        in.close();
+
+        if (nlines != nrows) {
+            throw new ParserException("Bad gct format -- exepcted nrows from specification on header line: " + nrows + " but found in data: " + nlines);
+        }
+
+        return _createDataset(objName, matrix, rowNames, rowDescs, colnames);
+    }
+
+    // Reads the dims and column names lines, leaving in at the first data line
+    // @return the number of rows
+    private int _parseHeader(DataLineReader in, List<String> colnames) throws Exception {
+        String currLine = nextLine(in);
 
         // 1st  non-empty, non-comment line is numrows and numcols
         int[] nstuff = ParseUtils.string2ints(currLine, " \t");
-        if (nstuff.length != 2) {
+        if (nstuff.length != 2 || nstuff[0] < 0 || nstuff[1] < 0) {
             throw new ParserException("Gct file with bad row/col info on line: " + currLine);
         }
 
@@ -134,9 +288,9 @@ public class GctParser extends AbstractParser {
         int ncols = nstuff[1];
 
         // First 2 fields name and desc are to be ignored
-        currLine = nextLine(bin);
+        currLine = nextLine(in);
         //System.out.println(currLine);
-        List<String> colnames = ParseUtils.string2stringsList(currLine, "\t"); // colnames can have spaces
+        colnames.addAll(ParseUtils.string2stringsList(currLine, "\t")); // colnames can have spaces
 
         colnames.remove(0);                                 // first elem is always nonsense
         colnames.remove(0);
@@ -145,92 +299,132 @@ public class GctParser extends AbstractParser {
             throw new ParserException("Bad gct format -- expected ncols from specification on header line: " + ncols + " but found in data: " + colnames.size());
         }
 
-        // At this point, currLine should contain the first data line
-        // data line: <row name> <tab> <ex1> <tab> <ex2> <tab>
-        List<String> lines = new ArrayList<String>();
+        return nrows;
+    }
 
-        currLine = nextLineTrimless(bin);
+    private List _createDataset(String objName, Matrix matrix, List<String> rowNames, List<String> rowDescs,
+                                List<String> colNames) {
+        final FeatureAnnot ann = new FeatureAnnot(objName, rowNames, rowDescs);
+        ann.addComment(fComment.toString());
+        final SampleAnnot sann = new SampleAnnot(objName, colNames);
+
+        final Dataset ds = new DefaultDataset(objName, matrix, rowNames, colNames, new Annot(ann, sann));
+        ds.addComment(fComment.toString());
+        doneImport();
+        return unmodlist(new PersistentObject[]{ds});
+    }
 
-        // save all rows so that we can determine how many rows exist
-        while (currLine != null) {
-            lines.add(currLine);
-            //currLine = nextLine(bin);
-            currLine = nextLineTrimless(bin); /// imp for mv datasets -> last col(s) can be a tab
+    // [from, to) split into (about) numRanges ranges (more if need be to keep each mappable), each moved on to the
+    // start of a line
+    // @return the range bounds, from first and to last
+    private static long[] _alignedRanges(FileChannel ch, long from, long to, int numRanges) throws IOException {
+        numRanges = (int) Math.max(numRanges, (to - from + MAX_RANGE_BYTES - 1) / MAX_RANGE_BYTES);
+        final long[] bounds = new long[numRanges + 1];
+        bounds[0] = from;
+        for (int c = 1; c < numRanges; c++) {
+            final long pos = from + (to - from) * c / numRanges;
+            bounds[c] = Math.max(bounds[c - 1], _nextLineStart(ch, pos, to));
         }
+        bounds[numRanges] = to;
+        return bounds;
+    }
 
-        if (lines.size() != nrows) {
-            throw new ParserException("Bad gct format -- exepcted nrows from specification on header line: " + nrows + " but found in data: " + lines.size());
+    // The start of the first line after (the one containing) pos
+    private static long _nextLineStart(FileChannel ch, long pos, long to) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        boolean afterCR = false;
+        while (pos < to) {
+            buf.clear();
+            final int n = ch.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                final byte b = buf.get(i);
+                if (afterCR) {
+                    return (b == '\n') ? pos + i + 1 : pos + i;
+                }
+                if (b == '\n') {
+                    return pos + i + 1;
+                }
+                afterCR = (b == '\r');
+            }
+            pos += n;
         }
 
-        bin.close();
+        return to;
+    }
 
-        return _parseHasDesc(objName, lines, colnames, nameBeforeDesc);
+    // What a range of data lines holds besides its rows of the matrix
+    private static class ParsedRange {
+        private final List<String> rowNames = new ArrayList<String>();
+        private final List<String> rowDescs = new ArrayList<String>();
+        private final List<String> comments = new ArrayList<String>();
     }
 
-    private List _parseHasDesc(String objName, List<String> lines, List<String> colNames, boolean nameBeforeDesc) throws Exception {
-        objName = NamingConventions.removeExtension(objName);
-        Matrix matrix = new Matrix(lines.size(), colNames.size());
-        List<String> rowNames = new ArrayList<String>();
-        List<String> rowDescs = new ArrayList<String>();
-
-        for (int i = 0; i < lines.size(); i++) {
-            String currLine = (String) lines.get(i);
-            List<String> fields = string2stringsV2(currLine, colNames.size() + 2); // spaces allowed in name & desc field so DONT tokenize them
-
-            if (fields.size() != colNames.size() + 1 + 1) {
-                //System.out.println(">> " + fields);
-                throw new ParserException("Bad format - expect ncols: " + (colNames.size() + 1 + 1)
-                        + " but found: " + fields.size() + " on line >"
-                        + currLine + "<\nIf this dataset has missing values, use ImputeDataset to fill these in before importing as a Dataset");
+    private static <T> T waitFor(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new IllegalStateException(cause);
+        }
+    }
 
-            String rowname = fields.get(0).toString().trim();
-            if (rowname.length() == 0) {
-                throw new ParserException("Bad rowname - cant be empty at: " + i + " >" + currLine);
-            }
+    private void _parseRow(DataLineReader in, int i, float[] row, List<String> rowNames, List<String> rowDescs,
+                           boolean nameBeforeDesc) throws Exception {
+        int nfields = splitV2(in, row.length + 2); // spaces allowed in name & desc field so DONT tokenize them
 
-            String desc = fields.get(1).toString().trim();
-            if (desc.length() == 0) {
-                desc = Constants.NA;
-            }
+        if (nfields != row.length + 1 + 1) {
+            throw new ParserException("Bad format - expect ncols: " + (row.length + 1 + 1)
+                    + " but found: " + nfields + " on line >"
+                    + in.getLine() + "<\nIf this dataset has missing values, use ImputeDataset to fill these in before importing as a Dataset");
+        }
 
-            if (nameBeforeDesc) {
-                // the standard way, do nothing
-            } else { // the flipped one
-                String tmp = rowname;
-                rowname = desc;
-                desc = tmp;
-            }
+        String rowname = in.getFieldTrimmed(0);
+        if (rowname.length() == 0) {
+            throw new ParserException("Bad rowname - cant be empty at: " + i + " >" + in.getLine());
+        }
 
-            rowDescs.add(desc);
-            rowNames.add(rowname);
+        String desc = in.getFieldTrimmed(1);
+        if (desc.length() == 0) {
+            desc = Constants.NA;
+        }
 
-            for (int f = 2; f < fields.size(); f++) {
-                String s = fields.get(f).toString().trim();
-                float val;
-                if (s.length() == 0) {
-                    val = Float.NaN;
-                } else {
-                    try {
-                        val = Float.parseFloat(s);
-                    } catch (Exception e) {
-                        System.out.println(">" + s + "<");
-                        //val = Float.NaN;
-                        throw e;
-                    }
+        if (nameBeforeDesc) {
+            // the standard way, do nothing
+        } else { // the flipped one
+            String tmp = rowname;
+            rowname = desc;
+            desc = tmp;
+        }
+
+        rowDescs.add(desc);
+        rowNames.add(rowname);
+
+        for (int f = 2; f < nfields; f++) {
+            float val;
+            if (in.isBlank(f)) {
+                val = Float.NaN;
+            } else {
+                try {
+                    val = in.getFloat(f);
+                } catch (Exception e) {
+                    System.out.println(">" + in.getFieldTrimmed(f) + "<");
+                    //val = Float.NaN;
+                    throw e;
                 }
-                matrix.setElement(i, f - 2, val);
             }
+            row[f - 2] = val;
         }
-
-        final FeatureAnnot ann = new FeatureAnnot(objName, rowNames, rowDescs);
-        ann.addComment(fComment.toString());
-        final SampleAnnot sann = new SampleAnnot(objName, colNames);
-
-        final Dataset ds = new DefaultDataset(objName, matrix, rowNames, colNames, new Annot(ann, sann));
-        ds.addComment(fComment.toString());
-        doneImport();
-        return unmodlist(new PersistentObject[]{ds});
     }
 
 }    // End of class GctParser
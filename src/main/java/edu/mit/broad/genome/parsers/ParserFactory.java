@@ -55,6 +55,11 @@ public class ParserFactory implements Constants {
 
     private static final ObjectCache kDefaultObjectCache = new ObjectCache();
 
+    // Local gct files at least this big are parsed in line aligned ranges on kNumParseThreads threads
+    private static final long MIN_PARALLEL_PARSE_BYTES = 32L * 1024 * 1024;
+
+    private static int kNumParseThreads = Runtime.getRuntime().availableProcessors();
+
     // The default one is the generic NON-application related cache
     //additionally there are application specific classes
     static ObjectCache _getCache() {
@@ -79,10 +84,52 @@ public class ParserFactory implements Constants {
         return gset;
     }
 
+    /**
+     * @param numThreads the number of threads that a large (local) gct file is parsed on; 1 to always parse on
+     *                   the calling thread
+     */
+    public static void setNumParseThreads(final int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1, got: " + numThreads);
+        }
+
+        kNumParseThreads = numThreads;
+    }
+
+    public static int getNumParseThreads() {
+        return kNumParseThreads;
+    }
+
     public static Dataset readDataset(File file, boolean useCache, boolean add2cache) throws Exception {
+        if (isParallelParseable(file)) {
+            return readDatasetGct(file, useCache, add2cache);
+        }
+
+        if (isMappable(file)) {
+            return readDatasetBds(file, useCache, add2cache);
+        }
+
         return readDataset(file.getPath(), createInputStream(file), useCache, add2cache);
     }
 
+    // A local gct file big enough to be worth parsing in parallel
+    private static boolean isParallelParseable(final File file) {
+        return kNumParseThreads > 1
+                && !NamingConventions.isURL(file.getPath())
+                && !AuxUtils.isAuxFile(file)
+                && NamingConventions.getExtension(file.getPath()).equals(Constants.GCT)
+                && file.isFile()
+                && file.length() >= MIN_PARALLEL_PARSE_BYTES;
+    }
+
+    // A local binary dataset file, whose values can be mapped rather than read
+    private static boolean isMappable(final File file) {
+        return !NamingConventions.isURL(file.getPath())
+                && !AuxUtils.isAuxFile(file)
+                && NamingConventions.getExtension(file.getPath()).equals(Constants.BDS)
+                && file.isFile();
+    }
+
     private static Dataset readDataset(String path, InputStream is, boolean useCache) throws Exception {
         return readDataset(path, is, useCache, true);
     }
@@ -109,6 +156,10 @@ public class ParserFactory implements Constants {
             return readDatasetPcl(path, is, useCache, add2cache);
         }
 
+        if (ext.equals(Constants.BDS)) {
+            return readDatasetBds(path, is, useCache, add2cache);
+        }
+
         Dataset ds;
         Parser parser = new ResParser();
         parser.setSilentMode(false);
@@ -169,6 +220,78 @@ public class ParserFactory implements Constants {
         return ds;
     }
 
+    // As readDatasetGct(path, is, useCache, add2cache), but parsed in parallel straight from the (mapped) file
+    private static Dataset readDatasetGct(final File file, final boolean useCache, final boolean add2cache) throws Exception {
+        final String path = file.getPath();
+        if (useCache && (_getCache().isCached(path, Dataset.class))) {
+            return (Dataset) _getCache().get(path, Dataset.class);
+        }
+
+        GctParser parser = new GctParser();
+        parser.setSilentMode(false);
+        List<?> list = parser.parse(toName(path), file, kNumParseThreads);
+
+        Dataset ds = (Dataset) list.get(0);
+
+        if (add2cache) {
+            _getCache().add(path, ds, Dataset.class);
+        }
+
+        return ds;
+    }
+
+    private static Dataset readDatasetBds(String path, InputStream is, boolean useCache) throws Exception {
+        return readDatasetBds(path, is, useCache, true);
+    }
+
+    // @note a stream (e.g. a url) can't be mapped, so its values are read onto the heap
+    private static Dataset readDatasetBds(String path, InputStream is, boolean useCache, boolean add2cache) throws Exception {
+        if (path == null) {
+            throw new IllegalArgumentException("Param file cannot be null");
+        }
+
+        if (is == null) {
+            throw new IllegalArgumentException("Param is cannot be null");
+        }
+
+        if (useCache && (_getCache().isCached(path, Dataset.class))) {
+            return (Dataset) _getCache().get(path, Dataset.class);
+        }
+
+        BinaryDatasetParser parser = new BinaryDatasetParser();
+        parser.setSilentMode(false);
+        List<?> list = parser.parse(toName(path), is);
+        Dataset ds = (Dataset) list.get(0);
+
+        if (add2cache) {
+            _getCache().add(path, ds, Dataset.class);
+        }
+
+        // TODO: very likely should be handled in try/finally
+        is.close();
+        return ds;
+    }
+
+    // A MappedDataset over the values in the file
+    private static Dataset readDatasetBds(final File file, final boolean useCache, final boolean add2cache) throws Exception {
+        final String path = file.getPath();
+        if (useCache && (_getCache().isCached(path, Dataset.class))) {
+            return (Dataset) _getCache().get(path, Dataset.class);
+        }
+
+        BinaryDatasetParser parser = new BinaryDatasetParser();
+        parser.setSilentMode(false);
+        List<?> list = parser.parse(toName(path), file);
+
+        Dataset ds = (Dataset) list.get(0);
+
+        if (add2cache) {
+            _getCache().add(path, ds, Dataset.class);
+        }
+
+        return ds;
+    }
+
     private static Dataset readDatasetTXT(String path, InputStream is, boolean useCache) throws Exception {
         if (path == null) {
             throw new IllegalArgumentException("Param file cannot be null");
@@ -748,6 +871,8 @@ public class ParserFactory implements Constants {
                 return readDatasetTXT(path, is, useCache);
             } else if (ext.equalsIgnoreCase(PCL)) {
                 return readDatasetPcl(path, is, useCache);
+            } else if (ext.equalsIgnoreCase(BDS)) {
+                return readDatasetBds(path, is, useCache);
             } else if (ext.startsWith(CLS)) { // IMP note -- special for the aux hash
                 return readTemplate(path, is, useCache, useCache, false);
             } else if (ext.equalsIgnoreCase(GRP)) {
@@ -795,6 +920,14 @@ public class ParserFactory implements Constants {
     // It is probably better to turn this on its head somehow, where we raise the cache query to
     // the fore front and centralize it.
     public static PersistentObject read(final File file, final boolean useCache) throws Exception {
+        if (isParallelParseable(file)) {
+            return readDatasetGct(file, useCache, true);
+        }
+
+        if (isMappable(file)) {
+            return readDatasetBds(file, useCache, true);
+        }
+
         File baseFile = AuxUtils.getBaseFileFromAuxFile(file);
         return read(file.getPath(), createInputStream(baseFile), useCache);
     }
@@ -819,7 +952,9 @@ public class ParserFactory implements Constants {
         }
 
         // TODO: We may not allow all of these to be saved
-        if (pob instanceof Dataset) {
+        if (pob instanceof Dataset && NamingConventions.getExtension(file).equals(BDS)) {
+            saveBds((Dataset) pob, file);
+        } else if (pob instanceof Dataset) {
             file = ensureCorrectExt(file, RES);
             save((Dataset) pob, file);
         } else if (pob instanceof Template) {
@@ -880,6 +1015,20 @@ public class ParserFactory implements Constants {
         return save(ds,toFile);
     }
 
+    /**
+     * Saves in the binary dataset format, which is read back by mapping its values (see BinaryDatasetParser)
+     *
+     * @param ds
+     * @param toFile
+     * @throws Exception
+     */
+    public static File saveBds(final Dataset ds, final File toFile) throws Exception {
+        BinaryDatasetParser parser = new BinaryDatasetParser();
+        parser.export(ds, toFile);
+        _getCache().add(toFile, ds, Dataset.class);
+        return toFile;
+    }
+
     public static void saveInvisibly2Cache(IDataframe idf, File toFile) throws Exception {
         if (idf instanceof Dataframe) {
             saveInvisibly2Cache((Dataframe) idf, toFile);
@@ -5,7 +5,6 @@ package edu.mit.broad.genome.parsers;
 
 import edu.mit.broad.genome.math.Matrix;
 import edu.mit.broad.genome.objects.*;
-import edu.mit.broad.genome.utils.FileUtils;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -86,12 +85,9 @@ public class PclParser extends AbstractParser {
     public List parse(String hackINeedFullPath, InputStream is) throws Exception {
 
         startImport(hackINeedFullPath);
-        int nlines = FileUtils.countLines(hackINeedFullPath, true);
-        int nfloatlines = nlines - 2;
-        log.debug("Number of float lines = " + nfloatlines);
 
-        BufferedReader bin = new BufferedReader(new InputStreamReader(is));
-        String currLine = nextLine(bin);
+        DataLineReader in = new DataLineReader(is);
+        String currLine = nextLine(in);
 
         List<String> colNames = ParseUtils.string2stringsList(currLine, "\t"); // spaces allowed in col names
         int expectedNCols = colNames.size();
@@ -101,59 +97,64 @@ public class PclParser extends AbstractParser {
         log.debug("Number of columns of floats = " + colNames.size());
 
         // get rid of the EWUIGHT line
-        nextLine(bin);
+        nextLine(in);
 
-        // Initialize the Dataset and Annotation
-        List<String> rowNames = new ArrayList<String>(nfloatlines);
-        List<String> rowDescs = new ArrayList<String>(nfloatlines);
-        Matrix matrix = new Matrix(nfloatlines, colNames.size());
+        // @note the rows are parsed as read (in one pass over the file, rather than one more to count them first)
+        // and only put into a matrix once all are in
+        List<float[]> rows = new ArrayList<float[]>();
+        List<String> rowNames = new ArrayList<String>();
+        List<String> rowDescs = new ArrayList<String>();
 
         int r = 0;
-        currLine = nextLineTrimless(bin); // first line of float data @note trimless as may be missing fields
-        while (currLine != null) {
-            //System.out.println(">> " + currLine);
-            List<String> fields = string2stringsV2(currLine, expectedNCols); // spaces allowed in name & desc field so DONT tokenize them
+        while (nextDataLine(in)) { // @note trimless as may be missing fields
+            int nfields = splitV2(in, expectedNCols); // spaces allowed in name & desc field so DONT tokenize them
 
-            if (fields.size() != expectedNCols) { // silly check
-                throw new ParserException("Invalid format on line: " + currLine + " expected # fields = " + expectedNCols + " but found: " + fields.size());
+            if (nfields != expectedNCols) { // silly check
+                throw new ParserException("Invalid format on line: " + in.getLine() + " expected # fields = " + expectedNCols + " but found: " + nfields);
             }
 
-            String rowName = fields.get(0).toString().trim();
+            String rowName = in.getFieldTrimmed(0);
             if (rowName.length() == 0) {
-                throw new ParserException("Bad rowname - cant be empty at: " + r + " >" + currLine);
+                throw new ParserException("Bad rowname - cant be empty at: " + r + " >" + in.getLine());
             }
 
             rowNames.add(rowName);
 
-            String desc = fields.get(1).toString().trim();
+            String desc = in.getFieldTrimmed(1);
             if (desc.length() == 0) {
-                throw new ParserException("Bad rowdescname - cant be empty at: " + r + " >" + currLine);
+                throw new ParserException("Bad rowdescname - cant be empty at: " + r + " >" + in.getLine());
             }
 
             rowDescs.add(desc);
 
             // ignore the GWEIGHT, actually just a check
-            if (Integer.parseInt(fields.get(2).toString()) != 1) {
-                throw new ParserException("Expected field was not 1 for GWEIGHT: " + fields.get(2) + " " + currLine);
+            if (Integer.parseInt(in.getFieldTrimmed(2)) != 1) {
+                throw new ParserException("Expected field was not 1 for GWEIGHT: " + in.getFieldTrimmed(2) + " " + in.getLine());
             }
 
             // -- then, onto the floats
-            for (int f = 3; f < fields.size(); f++) {
-                String s = fields.get(f).toString().trim();
+            float[] row = new float[colNames.size()];
+            for (int f = 3; f < nfields; f++) {
                 float val;
-                if (s.length() == 0) {
+                if (in.isBlank(f)) {
                     val = Float.NaN;
                 } else {
-                    val = Float.parseFloat(s);
+                    val = in.getFloat(f);
                 }
-                matrix.setElement(r, f - 3, val);
+                row[f - 3] = val;
             }
+            rows.add(row);
 
             r++;
-            currLine = nextLineTrimless(bin);
         }
 
-        bin.close();
+        in.close();
+
+        Matrix matrix = new Matrix(rows.size(), colNames.size());
+        for (int i = 0; i < rows.size(); i++) {
+            matrix.setRow(i, rows.get(i));
+            rows.set(i, null); // let it go as soon as it is copied
+        }
 
         // Initialize the Dataset and Annotation
         String name = new File(hackINeedFullPath).getName();
@@ -145,18 +145,16 @@ public class ResParser extends AbstractParser {
         int currLineNum = 0;
         StringBuffer comment = new StringBuffer();
 
-        BufferedReader bin = new BufferedReader(new InputStreamReader(is));
-        //bin = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-        //bin = new BufferedReader(new InputStreamReader(pis));
+        DataLineReader in = new DataLineReader(is);
 
         // 1st header line: Description <tab> Accession <tab> <sample 1> <tab> <tab> <sample 2> ...
         // (column names)
         // NOTE: if line ends in CR-LF, then we have actually read currLine.length() + 2 bytes...
-        String currLine = bin.readLine();
+        String currLine = in.readLine();
 
         while (currLine.startsWith("#")) {
             comment.append(currLine).append('\n');
-            currLine = bin.readLine();
+            currLine = in.readLine();
         }
 
         currLineNum++;
@@ -188,11 +186,13 @@ public class ResParser extends AbstractParser {
 
         // 2nd header line, chip scaling factors or blank
         // <tab> CH1999021515AA <tab> <tab> CH1999021306AA/scale factor=0.9564 <tab> <tab>
-        bin.readLine();
+        in.readLine();
         currLineNum++;
 
         // 3rd header line optional, number of rows or blank or first data line
-        currLine = bin.readLine();
+        // @note if it is not the row count it stays the current line of the reader, to be parsed as data below
+        boolean more = in.nextLine();
+        currLine = more ? in.getLine() : null;
 
         currLineNum++;
 
@@ -206,7 +206,7 @@ public class ResParser extends AbstractParser {
             String intStr = currLine.trim();
 
             numRows = Integer.parseInt(intStr);
-            currLine = bin.readLine();
+            more = in.nextLine();
 
             currLineNum++;
 
@@ -224,7 +224,7 @@ public class ResParser extends AbstractParser {
             colNames.add(colArr.get(i));
         }
 
-        // At this point, currLine should contain the first data line
+        // At this point, the reader should be at the first data line
         // data line: <row desc> <tab> <row name> <tab> <ex1> <tab> <call1> <tab> <ex2> <tab> <call2>
         Matrix matrix = new Matrix(numRows, numCols);
         APMMatrix apmMatrix = new APMMatrix(numRows, numCols);
@@ -232,60 +232,44 @@ public class ResParser extends AbstractParser {
         List<String> rowDescs = new ArrayList<String>(numRows);
         int dataRowInd = 0;
 
-        while (currLine != null) {
-            //currLine = currLine.trim();
-            if (currLine.length() == 0) {
-                currLine = bin.readLine();
+        final float[] theFloats = new float[numCols];
+        final float[] theCalls = new float[numCols];
+
+        // @note the data lines are split in place (as bytes) and not made into Strings
+        while (more) {
+            if (in.isEmptyLine()) {
+                more = in.nextLine();
                 continue;
             }
 
-            // substring returns a String that references the original String's buffer
-            // Upshot is that that the buffer (in our case a whole line) never gets freed
-            // Solution is to explicitly create a string from the substring
-            int ind1 = currLine.indexOf(theDelim);
-
-            //System.out.println(">>>PPP " + currLine);
-            checkIndex(ind1, currLineNum);
+            // desc, name, then (ex, call) pairs -- the call right after each ex
+            int nfields = in.split(theDelim);
+            checkIndex(nfields > 1 ? 1 : -1, currLineNum);
+            checkIndex(nfields > 2 ? 2 : -1, currLineNum);
 
-            String desc = currLine.substring(0, ind1);
-            int ind2 = currLine.indexOf(theDelim, ind1 + 1);
-            checkIndex(ind2, currLineNum);
-            //System.out.println(">>>TTT " + currLine);
-            String name = currLine.substring(ind1 + 1, ind2);
+            String desc = in.getField(0);
+            String name = in.getField(1);
             rowNames.add(name);
 
             // add to the Annotation
             // for each res file float entry, theres one name and one desc
-            //ann.addFeature(name, new String[]{desc});
-            float[] theFloats = new float[numCols];
-            float[] theCalls = new float[numCols];
-
-            ind1 = ind2;
-
-            //System.out.println(">>> " + currLine);
             for (int i = 0; i < numCols; ++i) {
-                ind2 = currLine.indexOf(theDelim, ind1 + 1);
-
-                checkIndex(ind2, currLineNum);
+                final int floatField = 2 + 2 * i;
+                checkIndex(floatField + 1 < nfields ? floatField + 1 : -1, currLineNum);
 
-                //System.out.println(">>>RRR " + currLine);
                 // get expression level
-                String floatStr = currLine.substring(ind1 + 1, ind2);
+                theFloats[i] = in.getFloat(floatField);
 
-                //if (floatStr.length() < 1)
-                //theFloats[i] = 0;
-                //else
-                theFloats[i] = Float.valueOf(floatStr).floatValue();
-
-                // call (absent, present, etc.) column
-                //int apindx = currLine.indexOf(theDelim, ind1 + 1 + 1);
-                String apStr = currLine.substring(ind1 + 1 + floatStr.length() + 1,
-                        ind1 + 1 + floatStr.length() + 1 + 1);
+                // call (absent, present, etc.) column -- its first char, or the delim after it if empty
+                String apStr = in.getField(floatField + 1);
+                if (apStr.length() == 0) {
+                    checkIndex(floatField + 2 < nfields ? floatField + 2 : -1, currLineNum);
+                    apStr = String.valueOf(theDelim);
+                } else {
+                    apStr = apStr.substring(0, 1);
+                }
 
                 theCalls[i] = APMMatrix.valueOf(apStr);
-
-                //System.out.println(">> " + apStr);
-                ind1 = currLine.indexOf(theDelim, ind2 + 1);
             }
 
             matrix.setRow(dataRowInd, theFloats);
@@ -294,11 +278,13 @@ public class ResParser extends AbstractParser {
 
             dataRowInd++;
 
-            currLine = bin.readLine();
+            more = in.nextLine();
 
             currLineNum++;
         }
 
+        in.close();
+
         doneImport();
 
         FeatureAnnot fann = new FeatureAnnot(sourcepath, rowNames, rowDescs);
@@ -82,157 +82,94 @@ public class TxtDatasetParser extends AbstractParser {
     public List parse(String sourcepath, InputStream is) throws Exception {
         startImport(sourcepath);
 
-        BufferedReader bin = new BufferedReader(new InputStreamReader(is));
-        return parse(sourcepath, bin);
+        DataLineReader in = new DataLineReader(is);
+        return _parse(sourcepath, in);
     }
 
     /// does the real parsing
-    // expects the bin to be untouched
-    public List parse(String objName, final BufferedReader bin) throws Exception {
+    // expects the reader to be untouched
+    private List _parse(String objName, final DataLineReader in) throws Exception {
         objName = NamingConventions.removeExtension(objName);
-        String currLine = nextLine(bin);
+        String currLine = nextLine(in);
 
         // 1st  non-empty, non-comment line are the column names
-        List<String> colnames = ParseUtils.string2stringsList(currLine, "\t"); // colnames can have spaces
+        List<String> colNames = ParseUtils.string2stringsList(currLine, "\t"); // colnames can have spaces
 
-        colnames.remove(0);                                 // first elem is always nonsense
+        colNames.remove(0);                                 // first elem is always nonsense
 
         boolean hasDesc = false;
-        if (colnames.get(0).toString().equalsIgnoreCase(Constants.DESCRIPTION)
+        if (colNames.get(0).toString().equalsIgnoreCase(Constants.DESCRIPTION)
                 ||
-                colnames.get(0).toString().equalsIgnoreCase("DESC")
+                colNames.get(0).toString().equalsIgnoreCase("DESC")
                 ) {
-            colnames.remove(0);
+            colNames.remove(0);
             hasDesc = true;
         }
 
         log.debug("HAS DESC: " + hasDesc);
 
-        // At this point, currLine should contain the first data line
-        // data line: <row name> <tab> <ex1> <tab> <ex2> <tab>
-        List<String> lines = new ArrayList<String>();
-
-        currLine = nextLineTrimless(bin);
-
-        // save all rows so that we can determine how many rows exist
-        while (currLine != null) {
-            lines.add(currLine);
-            //currLine = nextLine(bin);
-            currLine = nextLineTrimless(bin); /// imp for mv datasets -> last col(s) can be a tab
-        }
-
-        bin.close();
-
-        if (hasDesc) {
-            return _parseHasDesc(objName, lines, colnames);
-        }
-        return _parseNoDesc(objName, lines, colnames);
-    }
-
-    private List _parseNoDesc(String objName, List<String> lines, List<String> colNames) throws Exception {
-        objName = NamingConventions.removeExtension(objName);
-        Matrix matrix = new Matrix(lines.size(), colNames.size());
+        // data line: <row name> <tab> [<desc> <tab>] <ex1> <tab> <ex2> <tab>
+        // @note there is no header count of the rows, so they are parsed as read and only put into a matrix
+        // once all are in
+        final int firstCol = hasDesc ? 2 : 1;
+        final int ncols = colNames.size() + firstCol;
+        List<float[]> rows = new ArrayList<float[]>();
         List<String> rowNames = new ArrayList<String>();
         List<String> rowDescs = new ArrayList<String>();
 
-        for (int i = 0; i < lines.size(); i++) {
-            String currLine = (String) lines.get(i);
-            List<String> fields = string2stringsV2(currLine, colNames.size() + 1); // spaces allowed in name & desc field so DONT tokenize them
+        while (nextDataLine(in)) { /// trimless -> imp for mv datasets -> last col(s) can be a tab
+            final int i = rows.size();
+            int nfields = splitV2(in, ncols); // spaces allowed in name & desc field so DONT tokenize them
 
-            if (fields.size() != colNames.size() + 1) {
+            if (nfields != ncols) {
                 //System.out.println(">> " + fields);
-                throw new ParserException("Bad format - expect ncols: " + (colNames.size() + 1)
-                        + " but found: " + fields.size() + " on line >"
-                        + currLine + "<\nIf this dataset has missing values, use ImputeDataset to fill these in before importing as a Dataset");
+                throw new ParserException("Bad format - expect ncols: " + ncols
+                        + " but found: " + nfields + " on line >"
+                        + in.getLine() + "<\nIf this dataset has missing values, use ImputeDataset to fill these in before importing as a Dataset");
             }
 
-            String rowname = fields.get(0).trim();
+            String rowname = in.getFieldTrimmed(0);
             if (rowname.length() == 0) {
-                throw new ParserException("Bad rowname - cant be empty at: " + i + " >" + currLine);
+                throw new ParserException("Bad rowname - cant be empty at: " + i + " >" + in.getLine());
             }
 
             String desc = Constants.NA;
+            if (hasDesc) {
+                desc = in.getFieldTrimmed(1);
+                if (desc.length() == 0) {
+                    desc = Constants.NA;
+                }
+            }
 
             rowDescs.add(desc);
             rowNames.add(rowname);
 
+            float[] row = new float[colNames.size()];
             int coln = 0;
-            for (int f = 1; f < fields.size(); f++) {
-                String s = fields.get(f).trim();
+            for (int f = firstCol; f < nfields; f++) {
                 float val;
-                if (s.length() == 0) {
+                if (in.isBlank(f)) {
                     val = Float.NaN;
                 } else {
                     try {
-                        val = Float.parseFloat(s);
+                        val = in.getFloat(f);
                     } catch (Exception e) {
-                        System.out.println(">" + s + "<");
+                        System.out.println(">" + in.getFieldTrimmed(f) + "<");
                         //val = Float.NaN;
                         throw e;
                     }
                 }
-                matrix.setElement(i, coln++, val);
+                row[coln++] = val;
             }
+            rows.add(row);
         }
 
-        final FeatureAnnot ann = new FeatureAnnot(objName, rowNames, rowDescs);
-        ann.addComment(fComment.toString());
-        final SampleAnnot sann = new SampleAnnot(objName, colNames);
-
-        final Dataset ds = new DefaultDataset(objName, matrix, rowNames, colNames, new Annot(ann, sann));
-        ds.addComment(fComment.toString());
-        doneImport();
-        return unmodlist(new PersistentObject[]{ds});
-    }
-
-    private List _parseHasDesc(String objName, List<String> lines, List<String> colNames) throws Exception {
-        objName = NamingConventions.removeExtension(objName);
-        Matrix matrix = new Matrix(lines.size(), colNames.size());
-        List<String> rowNames = new ArrayList<String>();
-        List<String> rowDescs = new ArrayList<String>();
-
-        for (int i = 0; i < lines.size(); i++) {
-            String currLine = (String) lines.get(i);
-            List<String> fields = string2stringsV2(currLine, colNames.size() + 2); // spaces allowed in name & desc field so DONT tokenize them
-
-            if (fields.size() != colNames.size() + 2) {
-                //System.out.println(">> " + fields);
-                throw new ParserException("Bad format - expect ncols: " + (colNames.size() + 2)
-                        + " but found: " + fields.size() + " on line >"
-                        + currLine + "<\nIf this dataset has missing values, use ImputeDataset to fill these in before importing as a Dataset");
-            }
-
-            String rowname = fields.get(0).trim();
-            if (rowname.length() == 0) {
-                throw new ParserException("Bad rowname - cant be empty at: " + i + " >" + currLine);
-            }
-
-            String desc = fields.get(1).trim();
-
-            if (desc.length() == 0) {
-                desc = Constants.NA;
-            }
-
-            rowDescs.add(desc);
-            rowNames.add(rowname);
+        in.close();
 
-            int coln = 0;
-            for (int f = 2; f < fields.size(); f++) {
-                String s = fields.get(f).trim();
-                float val;
-                if (s.length() == 0) {
-                    val = Float.NaN;
-                } else {
-                    try {
-                        val = Float.parseFloat(s);
-                    } catch (Exception e) {
-                        System.out.println(">" + s + "<");
-                        //val = Float.NaN;
-                        throw e;
-                    }
-                }
-                matrix.setElement(i, coln++, val);
-            }
+        Matrix matrix = new Matrix(rows.size(), colNames.size());
+        for (int r = 0; r < rows.size(); r++) {
+            matrix.setRow(r, rows.get(r));
+            rows.set(r, null); // let it go as soon as it is copied
         }
 
         final FeatureAnnot ann = new FeatureAnnot(objName, rowNames, rowDescs);
@@ -10,7 +10,6 @@ import edu.mit.broad.genome.Printf;
 import edu.mit.broad.genome.alg.ComparatorFactory;
 import edu.mit.broad.genome.alg.DatasetGenerators;
 import edu.mit.broad.genome.alg.gsea.PValueCalculator;
-import edu.mit.broad.genome.alg.gsea.PValueCalculatorImpls;
 import edu.mit.broad.genome.alg.markers.PermutationTest;
 import edu.mit.broad.genome.charts.*;
 import edu.mit.broad.genome.math.*;
@@ -169,7 +168,7 @@ public class EnrichmentReports {
             final boolean createGcts,
             final GeneSet[] origGeneSets_opt,
             final String metricName,
-            final String normModeName) {
+            final PValueCalculator pvc) {
 
         FeatureAnnot fann = null;
         if (edb_original.getDataset() != null && edb_original.getDataset().getAnnot() != null) {
@@ -178,7 +177,7 @@ public class EnrichmentReports {
 
         return createGseaLikeReport(edb_original, out, cd, reportIndexPage, _createSubDir(edb_original, report, makeSubDir), report,
                 topXSets, minSize, maxSize,
-                makeGeneSetsReport, makeZippedFile, createSvgs, createGcts, origGeneSets_opt, metricName, normModeName, fann);
+                makeGeneSetsReport, makeZippedFile, createSvgs, createGcts, origGeneSets_opt, metricName, pvc, fann);
     }
 
     public static Ret createGseaLikeReport(
@@ -196,13 +195,13 @@ public class EnrichmentReports {
             final boolean createSvgs,
             final GeneSet[] origGeneSets_opt,
             final String metricName,
-            final String normModeName,
+            final PValueCalculator pvc,
             final FeatureAnnot fann_opt) {
 
         // Note we never create GCTs for this call; this corresponds to Preranked, which has no heatmaps in the report.
         return createGseaLikeReport(edb_original, out, cd, reportIndexPage, _createSubDir(edb_original, report, makeSubDir), report,
                 topXSets, minSize, maxSize,
-                makeGeneSetsReport, makeZippedFile, createSvgs, false, origGeneSets_opt, metricName, normModeName, fann_opt);
+                makeGeneSetsReport, makeZippedFile, createSvgs, false, origGeneSets_opt, metricName, pvc, fann_opt);
     }
 
     private static String _createPhenotypeName(EnrichmentDb edb) {
@@ -240,10 +239,10 @@ public class EnrichmentReports {
             final boolean createGcts,
             final GeneSet[] origGeneSets_opt,
             final String metricName,
-            final String normModeName,
+            final PValueCalculator pvc,
             final FeatureAnnot fann_opt) {
-        if (normModeName == null) {
-            throw new IllegalArgumentException("Param normModeName cannot be null");
+        if (pvc == null) {
+            throw new IllegalArgumentException("Param pvc cannot be null");
         }
 
         if (saveInThisDir == null) {
@@ -260,7 +259,6 @@ public class EnrichmentReports {
         String classA_name_opt = classNames[0];
         String classB_name_opt = classNames[1];
 
-        final PValueCalculator pvc = new PValueCalculatorImpls.GseaImpl(normModeName);
         final EnrichmentResult[] results = pvc.calcNPValuesAndFDR(edb_original.getResults());
         final EnrichmentDb edb = edb_original.cloneDeep(results);
 
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Index loops spread over a ForkJoinPool (or run in order on the calling thread when there is no pool).
+ * <p/>
+ * The body must be safe to call concurrently for different indices. An exception thrown by the body is
+ * rethrown by forEach.
+ */
+public class ParallelLoops {
+
+    /**
+     * Private class constructor to prevent construction outside.
+     */
+    private ParallelLoops() {
+    }
+
+    /**
+     * @return a pool with numThreads workers, or null for a single thread (which forEach takes as run in order)
+     */
+    public static ForkJoinPool createPool(final int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+        }
+
+        return (numThreads == 1) ? null : new ForkJoinPool(numThreads);
+    }
+
+    public static void shutdown(final ForkJoinPool pool_opt) {
+        if (pool_opt != null) {
+            pool_opt.shutdownNow();
+        }
+    }
+
+    /**
+     * Calls body for every index in [from, to)
+     *
+     * @param grain the most indices to run as one task (so that cheap bodies are not a task each)
+     */
+    public static void forEach(final ForkJoinPool pool_opt, final int from, final int to, final int grain,
+                               final IntConsumer body) {
+        if (grain < 1) {
+            throw new IllegalArgumentException("Grain must be at least 1, got: " + grain);
+        }
+
+        if (pool_opt == null || to - from <= grain) {
+            for (int i = from; i < to; i++) {
+                body.accept(i);
+            }
+        } else {
+            pool_opt.invoke(new RangeTask(from, to, grain, body));
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private final int fFrom;
+        private final int fTo;
+        private final int fGrain;
+        private final IntConsumer fBody;
+
+        RangeTask(final int from, final int to, final int grain, final IntConsumer body) {
+            this.fFrom = from;
+            this.fTo = to;
+            this.fGrain = grain;
+            this.fBody = body;
+        }
+
+        protected void compute() {
+            if (fTo - fFrom <= fGrain) {
+                for (int i = fFrom; i < fTo; i++) {
+                    fBody.accept(i);
+                }
+            } else {
+                final int mid = (fFrom + fTo) >>> 1;
+                invokeAll(new RangeTask(fFrom, mid, fGrain, fBody), new RangeTask(mid, fTo, fGrain, fBody));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package xtools.api.param;
+
+import edu.mit.broad.genome.math.NullScoreStores;
+
+/**
+ * Param for where the null scores are held (see NullScoreStores)
+ */
+public class NullScoreStoreReqdParam extends StringReqdParam {
+
+    /**
+     * Class constructor
+     */
+    public NullScoreStoreReqdParam() {
+        super("null_store", "Null score storage",
+                "Where the random (null) enrichment scores are held: on the java heap, off heap or in a memory mapped temporary file. Use off_heap or mmap for runs with many gene sets and permutations",
+                NullScoreStores.HEAP,
+                NullScoreStores.createStoreTypeNames());
+    }
+
+    public String getStoreTypeName() {
+        return super.getString();
+    }
+
+}    // End class NullScoreStoreReqdParam
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package xtools.api.param;
+
+import edu.mit.broad.genome.alg.gsea.PValueCalculatorImpls;
+
+/**
+ * Param for the method the nominal p-values are worked out by (see PValueCalculatorImpls)
+ */
+public class PValueMethodReqdParam extends StringReqdParam {
+
+    /**
+     * Class constructor
+     */
+    public PValueMethodReqdParam() {
+        super("pval_method", "Nominal p-value method",
+                "How the nominal p-values are worked out: from the permutations alone, (multilevel, gene set permutations only) with the p-values smaller than the permutations can resolve estimated by multilevel splitting, or (analytic, gene set permutations with the classic scoring_scheme only) from the exact null of the classic score, for which nperm can be 0",
+                PValueCalculatorImpls.PERMUTATION,
+                PValueCalculatorImpls.createPValueMethodNames());
+    }
+
+    public String getMethodName() {
+        return super.getString();
+    }
+
+}    // End class PValueMethodReqdParam
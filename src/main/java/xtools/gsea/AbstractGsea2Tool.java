@@ -87,7 +87,10 @@ public abstract class AbstractGsea2Tool extends AbstractGseaTool {
 
         log.debug(">>>>> Using samples: " + dt.getDataset().getColumnNames());
 
-        final KSTests tests = new KSTests(getOutputStream());
+        checkPValueMethod(fGcohGenReqdParam.createGeneSetCohortGenerator(), !fPermuteTypeParamType.permuteTemplate());
+
+        final KSTests tests = new KSTests(getOutputStream(), fNumThreadsParam.getIValue(), fNullStoreParam.getStoreTypeName(),
+                getStopAfterExceedances(), createCheckpoint_opt(), getNullSizeBin());
         
         // If we have a RandomSeedGenerator.Timestamp instance, save the timestamp for later reference
         if (rst instanceof RandomSeedGenerators.Timestamp) {
@@ -95,6 +98,10 @@ public abstract class AbstractGsea2Tool extends AbstractGseaTool {
                     ((RandomSeedGenerators.Timestamp)rst).getTimestamp());
         }
 
+        if (!fPermuteTypeParamType.permuteTemplate()) {
+            addGeneSetPermutationSeedComment(fGcohGenReqdParam.createGeneSetCohortGenerator());
+        }
+
         return tests.executeGsea(dt, gsets, fNumPermParam.getIValue(), fMetricParam.getMetric(),
         		fSortParam.getMode(), fOrderParam.getOrder(), rst,
                 fRndTypeParam.getRandomizerType(), getMetricParams(fMedianParam),
@@ -110,6 +117,10 @@ public abstract class AbstractGsea2Tool extends AbstractGseaTool {
         List<RankedList> store_rnd_ranked_lists_here_opt = fSaveRndRankedListsParam.isTrue() ? new ArrayList<RankedList>() : null;
 
         final EnrichmentDb edb = execute_one(fullCd, template, gsets, store_rnd_ranked_lists_here_opt);
+        if (edb == null) {
+            addShardDoneComment();
+            return;
+        }
 
         // -------------------------------------------------------------------------------------------- //
         // rest are for the reporting
@@ -123,7 +134,9 @@ public abstract class AbstractGsea2Tool extends AbstractGseaTool {
         // Make the report
         EnrichmentReports.Ret ret = EnrichmentReports.createGseaLikeReport(edb, getOutputStream(), fullCd,
         		reportIndexPage, makeSubDir, fReport, showDetailsForTopXSets, minSize, maxSize, makeGeneSetReports,
-                makeZippedReport, createSvgs, createGcts, origGeneSets, metric.getName(), fNormModeParam.getNormModeName());
+                makeZippedReport, createSvgs, createGcts, origGeneSets, metric.getName(),
+                createPValueCalculator(fGcohGenReqdParam.createGeneSetCohortGenerator(),
+                        !fPermuteTypeParamType.permuteTemplate()));
 
         // Save the rnd ranked lists
         // Note: carrying this list through until after the algorithm completes has negative memory usage implications.
@@ -6,6 +6,12 @@ package xtools.gsea;
 import edu.mit.broad.genome.alg.DatasetGenerators;
 import edu.mit.broad.genome.alg.Metric;
 import edu.mit.broad.genome.alg.Metrics;
+import edu.mit.broad.genome.alg.gsea.GeneSetCohort;
+import edu.mit.broad.genome.alg.gsea.GeneSetScoringTables;
+import edu.mit.broad.genome.alg.gsea.PValueCalculator;
+import edu.mit.broad.genome.alg.gsea.PValueCalculatorImpls;
+import edu.mit.broad.genome.alg.gsea.PermutationCheckpoint;
+import edu.mit.broad.genome.math.RandomSeedGenerators;
 import edu.mit.broad.genome.objects.Dataset;
 import edu.mit.broad.genome.objects.GeneSet;
 import edu.mit.broad.genome.objects.RankedList;
@@ -13,6 +19,9 @@ import xtools.api.AbstractTool;
 import xtools.api.ToolCategory;
 import xtools.api.param.*;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -46,6 +55,12 @@ public abstract class AbstractGseaTool extends AbstractTool {
         }
     }
 
+    private static final String CHECKPOINT_FILE_NAME = "permutations.checkpoint";
+
+    private static final String SHARD_FILE_PREFIX = "permutations.shard_";
+
+    private static final String SHARD_FILE_SUFFIX = ".checkpoint";
+
     protected GeneSetMatrixMultiChooserParam fGeneSetMatrixParam;
     protected ChipOptParam fChipParam = new ChipOptParam(false);
 
@@ -55,6 +70,7 @@ public abstract class AbstractGseaTool extends AbstractTool {
 
     protected final IntegerParam fNumPermParam = new IntegerParam("nperm", "Number of permutations", "The number of permutations", 1000, new int[]{0, 1, 10, 100, 1000}, true);
     protected final RandomSeedTypeParam fRndSeedTypeParam = new RandomSeedTypeParam(false);
+    protected final IntegerParam fNumThreadsParam = new IntegerParam("num_threads", "Number of threads", "The number of worker threads used to run the permutations and the significance calculations", 1, false, Param.ADVANCED);
 
     protected final ModeReqdParam fCollapseModeParam = new ModeReqdParam("mode", "Collapsing mode for probe sets => 1 gene", "Collapsing mode for probe sets => 1 gene", "Max_probe", new String[]{"Max_probe", "Median_of_probes", "Mean_of_probes", "Sum_of_probes"});
     protected final FeatureSpaceReqdParam fFeatureSpaceParam;
@@ -62,6 +78,16 @@ public abstract class AbstractGseaTool extends AbstractTool {
 
     // restrict to just the regular norm mode??
     protected final NormModeReqdParam fNormModeParam = new NormModeReqdParam();
+    protected final NullScoreStoreReqdParam fNullStoreParam = new NullScoreStoreReqdParam();
+    protected final BooleanParam fAdaptivePermParam = new BooleanParam("adaptive_perm", "Stop gene set permutations early", "Stop the gene set permutations of each set once enough of its random scores are more extreme than its real score; nperm is then the most permutations any one set gets. Has no effect on phenotype permutations", false, false, Param.ADVANCED);
+    protected final PValueMethodReqdParam fPValueMethodParam = new PValueMethodReqdParam();
+    protected final DirParam fCheckpointDirParam = new DirParam("checkpoint_dir", "Checkpoint folder", "Folder to save the permutations to as they complete, so that a run that is cut short can be resumed", false);
+    protected final BooleanParam fResumeParam = new BooleanParam("resume", "Resume from checkpoint", "Pick up from the permutations saved in checkpoint_dir by an earlier run of the same data and params (starts afresh if there are none)", false, false, Param.ADVANCED);
+    protected final IntegerParam fNumShardsParam = new IntegerParam("num_shards", "Number of shards", "Split the permutations into this many shards, to be run as separate processes (each with its own shard_index, and all with the same fixed rnd_seed) and then put together with merge_shards", 1, false, Param.ADVANCED);
+    protected final IntegerParam fShardIndexParam = new IntegerParam("shard_index", "Shard to run", "With num_shards, which of the shards this run does (from 0); its permutations are saved to checkpoint_dir and no report is made", 0, false, Param.ADVANCED);
+    protected final BooleanParam fMergeShardsParam = new BooleanParam("merge_shards", "Merge shards", "Put together the shards saved in checkpoint_dir (copied there from all the shard runs) and report on the whole run; permutations the shards lack are done by this run", false, false, Param.ADVANCED);
+    protected final IntegerParam fAdaptiveExceedancesParam = new IntegerParam("adaptive_exceedances", "Exceedances before stopping", "With adaptive_perm, the number of random scores more extreme than the real score after which the permutations of a gene set are stopped", 20, false, Param.ADVANCED);
+    protected final IntegerParam fNullSizeBinParam = new IntegerParam("null_size_bin", "Share nulls by set size", "With gene_set permutations, make one null distribution for each bin of this many gene set sizes (1 for one per size) and share it among the sets of those sizes, rather than one per gene set; the null of a bin is that of its smallest size. 0 for one per gene set. Cannot be used with adaptive_perm", 0, false, Param.ADVANCED);
     protected final GeneSetScoringTableReqdParam fGcohGenReqdParam = new GeneSetScoringTableReqdParam();
 
     /**
@@ -117,7 +143,18 @@ public abstract class AbstractGseaTool extends AbstractTool {
         
         // advanced
         fParamSet.addParamAdv(fRndSeedTypeParam);
+        fParamSet.addParamAdv(fNumThreadsParam);
         fParamSet.addParamAdv(fNormModeParam);
+        fParamSet.addParamAdv(fNullStoreParam);
+        fParamSet.addParamAdv(fAdaptivePermParam);
+        fParamSet.addParamAdv(fAdaptiveExceedancesParam);
+        fParamSet.addParamAdv(fNullSizeBinParam);
+        fParamSet.addParamAdv(fPValueMethodParam);
+        fParamSet.addParamAdv(fCheckpointDirParam);
+        fParamSet.addParamAdv(fResumeParam);
+        fParamSet.addParamAdv(fNumShardsParam);
+        fParamSet.addParamAdv(fShardIndexParam);
+        fParamSet.addParamAdv(fMergeShardsParam);
         fParamSet.addParamAdv(fIncludeOnlySymbols);
 
         doAdditionalParams();
@@ -128,6 +165,158 @@ public abstract class AbstractGseaTool extends AbstractTool {
         }
     }
 
+    /**
+     * @return the number of more extreme random scores after which the gene set permutations of a set are stopped,
+     * 0 if they are not to be stopped early (see KSTests)
+     */
+    protected int getStopAfterExceedances() {
+        if (!fAdaptivePermParam.isTrue()) {
+            return 0;
+        }
+
+        final int exceedances = fAdaptiveExceedancesParam.getIValue();
+        if (exceedances < 1) {
+            throw new BadParamException("adaptive_exceedances must be at least 1, got: " + exceedances, 1007);
+        }
+
+        return exceedances;
+    }
+
+    /**
+     * @return the width of the bins of gene set sizes that share a null distribution, 0 for a null per gene set
+     * (see KSTests)
+     */
+    protected int getNullSizeBin() {
+        final int bin = fNullSizeBinParam.getIValue();
+        if (bin < 0) {
+            throw new BadParamException("null_size_bin cannot be negative, got: " + bin, 1007);
+        }
+
+        if (bin > 0 && fAdaptivePermParam.isTrue()) {
+            throw new BadParamException("null_size_bin cannot be used with adaptive_perm", 1007);
+        }
+
+        return bin;
+    }
+
+    /**
+     * Checks pval_method against the permutation type and the scoring scheme, so that a bad combination fails
+     * before any permutations are run rather than when the report is made
+     *
+     * @param permuteGeneSets false for phenotype (template) permutations, which only the permutation method
+     *                        applies to
+     */
+    protected void checkPValueMethod(final GeneSetCohort.Generator gcohgen, final boolean permuteGeneSets) {
+        final String methodName = fPValueMethodParam.getMethodName();
+        if (!permuteGeneSets && !methodName.equals(PValueCalculatorImpls.PERMUTATION)) {
+            throw new BadParamException("pval_method " + methodName + " needs gene_set permutations", 1007);
+        }
+
+        if (methodName.equals(PValueCalculatorImpls.ANALYTIC)
+                && !gcohgen.getScoringTableName().equals(new GeneSetScoringTables.Classic().getName())) {
+            throw new BadParamException("pval_method " + methodName + " needs the classic scoring_scheme, not: "
+                    + gcohgen.getScoringTableName(), 1007);
+        }
+    }
+
+    /**
+     * @param permuteGeneSets false for phenotype (template) permutations, which only the permutation method
+     *                        applies to
+     */
+    protected PValueCalculator createPValueCalculator(final GeneSetCohort.Generator gcohgen,
+                                                      final boolean permuteGeneSets) {
+        checkPValueMethod(gcohgen, permuteGeneSets);
+
+        final String methodName = fPValueMethodParam.getMethodName();
+        return PValueCalculatorImpls.createPValueCalculator(methodName, fNormModeParam.getNormModeName(),
+                fNumThreadsParam.getIValue(), gcohgen, fRndSeedTypeParam.createSeed());
+    }
+
+    /**
+     * @return null if no checkpoint_dir was specified
+     */
+    protected PermutationCheckpoint createCheckpoint_opt() {
+        final int numShards = fNumShardsParam.getIValue();
+        final int shardIndex = fShardIndexParam.getIValue();
+        if (numShards < 1) {
+            throw new BadParamException("num_shards must be at least 1, got: " + numShards, 1007);
+        }
+
+        if (shardIndex < 0 || shardIndex >= numShards) {
+            throw new BadParamException("shard_index must be in [0, " + numShards + "), got: " + shardIndex, 1007);
+        }
+
+        if (numShards > 1 && fMergeShardsParam.isTrue()) {
+            throw new BadParamException("merge_shards is a run of its own, after the num_shards shard runs", 1007);
+        }
+
+        if (!fCheckpointDirParam.isSpecified()) {
+            if (fResumeParam.isTrue() || numShards > 1 || fMergeShardsParam.isTrue()) {
+                throw new BadParamException("resume, num_shards and merge_shards need a checkpoint_dir", 1007);
+            }
+            return null;
+        }
+
+        final File dir = fCheckpointDirParam.getDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new BadParamException("Could not make checkpoint_dir: " + dir, 1007);
+        }
+
+        if (numShards > 1) {
+            // @note the shards must all draw the same permutations, so each needs the same seed
+            if (fRndSeedTypeParam.createSeed() instanceof RandomSeedGenerators.Timestamp) {
+                throw new BadParamException("num_shards needs a fixed rnd_seed, the same for every shard", 1007);
+            }
+
+            final String name = SHARD_FILE_PREFIX + shardIndex + "_of_" + numShards + SHARD_FILE_SUFFIX;
+            return new PermutationCheckpoint(new File(dir, name), fResumeParam.isTrue(), shardIndex, numShards);
+        }
+
+        final File file = new File(dir, CHECKPOINT_FILE_NAME);
+        if (fMergeShardsParam.isTrue()) {
+            final File[] shardFiles = dir.listFiles(new FilenameFilter() {
+                public boolean accept(final File d, final String name) {
+                    return name.startsWith(SHARD_FILE_PREFIX) && name.endsWith(SHARD_FILE_SUFFIX);
+                }
+            });
+
+            if (shardFiles == null || shardFiles.length == 0) {
+                throw new BadParamException("No shards to merge in checkpoint_dir: " + dir, 1007);
+            }
+
+            Arrays.sort(shardFiles);
+            PermutationCheckpoint.merge(shardFiles, file);
+            return new PermutationCheckpoint(file, true);
+        }
+
+        return new PermutationCheckpoint(file, fResumeParam.isTrue());
+    }
+
+    /**
+     * Notes in the report that only a shard was run (for which there are no results to report on)
+     */
+    protected void addShardDoneComment() {
+        fReport.addComment("Ran shard " + fShardIndexParam.getIValue() + " of " + fNumShardsParam.getIValue()
+                + "; its permutations were saved to: " + fCheckpointDirParam.getDir()
+                + ". Once all the shards are done, copy their checkpoints into one checkpoint_dir and run with merge_shards to report on the whole run");
+    }
+
+    /**
+     * Notes in the report how gene set permutations are seeded and scored, as that changed the nulls of a
+     * given rnd_seed
+     */
+    protected void addGeneSetPermutationSeedComment(final GeneSetCohort.Generator gcohgen) {
+        fReport.addComment("Gene set permutations draw one seed per gene set from rnd_seed and make each null from its own seed,"
+                + " so that the nulls do not depend on num_threads. For a given rnd_seed the nulls (and so the p-values and FDRs)"
+                + " differ slightly from releases that drew every gene set's random sets from one shared generator");
+
+        if (gcohgen.isSparseScorable() && !gcohgen.getScoringTableName().equals(new GeneSetScoringTables.Classic().getName())) {
+            fReport.addComment("With the " + gcohgen.getScoringTableName() + " scoring_scheme, the weights of a random gene set"
+                    + " are summed in the order its members were drawn rather than in hash order of their names, so a null ES"
+                    + " can differ from that of earlier releases in the last bit");
+        }
+    }
+
     protected Dataset uniquize(final Dataset ds) {
 
         final GeneSet gset = ds.getRowNamesGeneSet();
@@ -142,22 +142,31 @@ public class GseaPreranked extends AbstractGseaTool {
             fann = new FeatureAnnot(rl.getName(), rl.getRankedNames(), null);
         }
 
-        final KSTests tests = new KSTests(getOutputStream());
+        checkPValueMethod(gcohgen, true);
+
+        final KSTests tests = new KSTests(getOutputStream(), fNumThreadsParam.getIValue(), fNullStoreParam.getStoreTypeName(),
+                getStopAfterExceedances(), createCheckpoint_opt(), getNullSizeBin());
         
         // If we have a RandomSeedGenerator.Timestamp instance, save the timestamp for later reference
         if (rst instanceof RandomSeedGenerators.Timestamp) {
             fReport.addComment("Timestamp used as the random seed: " + 
                     ((RandomSeedGenerators.Timestamp)rst).getTimestamp());
         }
+        addGeneSetPermutationSeedComment(gcohgen);
 
         EnrichmentDb edb = tests.executeGsea(rl, gsets, nperms, rst, chip, gcohgen);
+        if (edb == null) {
+            addShardDoneComment();
+            return;
+        }
 
         // Make the report
         EnrichmentReports.Ret ret = EnrichmentReports.createGseaLikeReport(edb, getOutputStream(),
                 fullRL, reportIndexPage, false,
                 fReport, topXSets, minSize, maxSize,
                 fMakeGeneSetReportsParam.isTrue(), fMakeZippedReportParam.isTrue(),
-                createSvgs, fOrigGeneSets, "PreRanked", fNormModeParam.getNormModeName(), fann);
+                createSvgs, fOrigGeneSets, "PreRanked",
+                createPValueCalculator(gcohgen, true), fann);
 
         // Make an edb folder thing
         new EdbFolderParser().export(ret.edb, ret.savedInDir);
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg.gsea;
+
+import edu.mit.broad.genome.Headers;
+import edu.mit.broad.genome.alg.Metric;
+import edu.mit.broad.genome.alg.Metrics;
+import edu.mit.broad.genome.math.Matrix;
+import edu.mit.broad.genome.math.Order;
+import edu.mit.broad.genome.math.RandomSeedGenerators;
+import edu.mit.broad.genome.math.SortMode;
+import edu.mit.broad.genome.math.Vector;
+import edu.mit.broad.genome.objects.Dataset;
+import edu.mit.broad.genome.objects.DefaultDataset;
+import edu.mit.broad.genome.objects.GeneSet;
+import edu.mit.broad.genome.objects.RankedList;
+import edu.mit.broad.genome.objects.Template;
+import edu.mit.broad.genome.objects.TemplateFactory;
+import edu.mit.broad.genome.objects.esmatrix.db.EnrichmentDb;
+import edu.mit.broad.genome.objects.strucs.DatasetTemplate;
+import edu.mit.broad.genome.objects.strucs.TemplateRandomizerType;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KSTestsTest {
+
+    private static final int NUM_ROW = 300;
+    private static final int NUM_COL = 16;
+
+    @Test
+    public void observedRankedListDoesNotDependOnPermutations() throws Exception {
+        final Dataset ds = createDataset();
+        final Template continuous = createContinuousTemplate();
+        final Metric[] metrics = new Metric[]{new Metrics.Pearson(), new Metrics.Cosine(), new Metrics.Euclidean()};
+        for (int m = 0; m < metrics.length; m++) {
+            final RankedList noPerms = observedRankedList(ds, continuous, metrics[m], 0, true);
+            assertSameRankedList(metrics[m].getName(), noPerms, observedRankedList(ds, continuous, metrics[m], 10, true));
+            assertSameRankedList(metrics[m].getName(), noPerms, observedRankedList(ds, continuous, metrics[m], 10, false));
+        }
+
+        final Template categorical = createCategoricalTemplate(ds);
+        final Metric s2n = new Metrics.Signal2Noise();
+        final RankedList noPerms = observedRankedList(ds, categorical, s2n, 0, true);
+        assertSameRankedList(s2n.getName(), noPerms, observedRankedList(ds, categorical, s2n, 10, true));
+        assertSameRankedList(s2n.getName(), noPerms, observedRankedList(ds, categorical, s2n, 10, false));
+    }
+
+    private static RankedList observedRankedList(final Dataset ds, final Template template, final Metric metric,
+                                                 final int nperm, final boolean permuteTemplate) throws Exception {
+        final Map<String, Boolean> params = new HashMap<String, Boolean>();
+        params.put(Headers.USE_MEDIAN, Boolean.FALSE);
+        params.put(Headers.FIX_LOW, Boolean.TRUE);
+        params.put(Headers.USE_BIASED, Boolean.FALSE);
+
+        final EnrichmentDb edb = new KSTests(System.out).executeGsea(new DatasetTemplate(ds, template),
+                createGeneSets(), nperm, metric, SortMode.REAL, Order.DESCENDING, new RandomSeedGenerators.Custom(17),
+                TemplateRandomizerType.NO_BALANCE, params,
+                new GeneSetCohort.Generator(new GeneSetScoringTables.Weighted()), permuteTemplate, 10, null);
+        return edb.getRankedList();
+    }
+
+    private static void assertSameRankedList(final String what, final RankedList expected, final RankedList actual) {
+        assertEquals(what, expected.getSize(), actual.getSize());
+        for (int r = 0; r < expected.getSize(); r++) {
+            assertEquals(what + " rank " + r, expected.getRankName(r), actual.getRankName(r));
+            assertEquals(what + " rank " + r, expected.getScore(r), actual.getScore(r), 0f);
+        }
+    }
+
+    // Values far from 0, where the one pass and the centered sums of squares round differently
+    private static Dataset createDataset() {
+        final Random rnd = new Random(3);
+        final Matrix m = new Matrix(NUM_ROW, NUM_COL);
+        final String[] rowNames = new String[NUM_ROW];
+        for (int r = 0; r < NUM_ROW; r++) {
+            rowNames[r] = "G" + r;
+            for (int c = 0; c < NUM_COL; c++) {
+                m.setElement(r, c, (float) (1000 + rnd.nextGaussian() + ((r < 30 && c < NUM_COL / 2) ? 1 : 0)));
+            }
+        }
+
+        final String[] colNames = new String[NUM_COL];
+        for (int c = 0; c < NUM_COL; c++) {
+            colNames[c] = "S" + c;
+        }
+
+        return new DefaultDataset("ds", m, rowNames, colNames, null);
+    }
+
+    private static Template createContinuousTemplate() {
+        final Random rnd = new Random(5);
+        final float[] values = new float[NUM_COL];
+        for (int c = 0; c < NUM_COL; c++) {
+            values[c] = (float) (500 + c + rnd.nextGaussian());
+        }
+
+        return TemplateFactory.createContinuousTemplate("continuous", new Vector(values));
+    }
+
+    private static Template createCategoricalTemplate(final Dataset ds) {
+        final String[] a = new String[NUM_COL / 2];
+        final String[] b = new String[NUM_COL / 2];
+        for (int c = 0; c < NUM_COL / 2; c++) {
+            a[c] = "S" + c;
+            b[c] = "S" + (c + NUM_COL / 2);
+        }
+
+        return TemplateFactory.createCategoricalTemplate("categorical", ds, "A", a, "B", b);
+    }
+
+    private static GeneSet[] createGeneSets() {
+        final Random rnd = new Random(11);
+        final GeneSet[] gsets = new GeneSet[5];
+        for (int g = 0; g < gsets.length; g++) {
+            final LinkedHashSet<String> members = new LinkedHashSet<String>();
+            while (members.size() < 20) {
+                members.add("G" + rnd.nextInt(NUM_ROW));
+            }
+            gsets[g] = new GeneSet("SET" + g, members.toArray(new String[members.size()]));
+        }
+
+        return gsets;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2003-2020 Broad Institute, Inc., Massachusetts Institute of Technology, and Regents of the University of California.  All rights reserved.
+ */
+package edu.mit.broad.genome.alg.gsea;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PermutationCheckpointTest {
+
+    private static final String FINGERPRINT = "run";
+    private static final int NUM_INDICES = 10;
+    private static final int NUM_SHARDS = 2;
+
+    @Rule
+    public TemporaryFolder fTmp = new TemporaryFolder();
+
+    @Test
+    public void mergeIntoNewFile() throws Exception {
+        final File[] shardFiles = runShards();
+        final File into = new File(fTmp.getRoot(), "merged.ckpt");
+
+        assertEquals(NUM_INDICES, PermutationCheckpoint.merge(shardFiles, into));
+        assertResumesAll(into);
+    }
+
+    @Test
+    public void mergeIntoOneOfTheShards() throws Exception {
+        final File[] shardFiles = runShards();
+
+        assertEquals(NUM_INDICES, PermutationCheckpoint.merge(shardFiles, shardFiles[0]));
+        assertResumesAll(shardFiles[0]);
+        assertEquals("no temporary file is left behind", shardFiles.length, fTmp.getRoot().list().length);
+    }
+
+    private File[] runShards() throws Exception {
+        final File[] shardFiles = new File[NUM_SHARDS];
+        for (int s = 0; s < NUM_SHARDS; s++) {
+            shardFiles[s] = fTmp.newFile("shard_" + s + ".ckpt");
+            final PermutationCheckpoint ckpt = new PermutationCheckpoint(shardFiles[s], false, s, NUM_SHARDS);
+            ckpt.begin(FINGERPRINT, new Random(1));
+            for (int i = ckpt.getFirstIndex(NUM_INDICES); i < ckpt.getEndIndex(NUM_INDICES); i++) {
+                ckpt.add(i, valuesOf(i), 3);
+            }
+            ckpt.finish();
+        }
+
+        return shardFiles;
+    }
+
+    private static void assertResumesAll(final File file) {
+        final PermutationCheckpoint ckpt = new PermutationCheckpoint(file, true);
+        ckpt.begin(FINGERPRINT, new Random(2));
+        try {
+            assertEquals(NUM_INDICES, ckpt.getNumDone());
+            for (int i = 0; i < NUM_INDICES; i++) {
+                assertTrue(ckpt.isDone(i));
+                assertArrayEquals(valuesOf(i), ckpt.takeSaved(i), 0f);
+            }
+        } finally {
+            ckpt.finish();
+        }
+    }
+
+    private static float[] valuesOf(final int index) {
+        return new float[]{index, index + 0.5f, -index};
+    }
+
+}